@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2014 kaytat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kaytat.simpleprotocolplayer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of a FLAC stream on the network thread against the same audio sent as raw PCM. Every
+ * operation hands one second of stereo audio to the receiving end in network reads of packetBytes:
+ * flac() through the FlacDecoder and raw() straight to the PcmSink the way StreamReceiver does
+ * without a codec. Both sinks copy the PCM into a buffer standing in for the ring.
+ *
+ * <p>One operation is one second of audio, so the score is how many times faster than real time
+ * the stream is taken in. The FLAC stream is made at setup with LPC subframes, the kind of frames a
+ * real encoder sends most of.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FlacDecodeBenchmark {
+  static final int SAMPLE_RATE = 44100;
+  static final int CHANNELS = 2;
+  // Default block size of the reference encoder
+  static final int BLOCK_SIZE = 4096;
+  // Quantization of the predictor, within what the reference encoder picks
+  static final int LPC_PRECISION = 15;
+  static final int LPC_SHIFT = 13;
+
+  @Param({"16", "24"})
+  public int bitsPerSample;
+
+  // Size of each network read
+  @Param({"1500", "16384"})
+  public int packetBytes;
+
+  private byte[] flac;
+  private byte[] pcm;
+  private FlacDecoder decoder;
+  private ByteBuffer rawBuffer;
+  private ByteBuffer ring;
+
+  private final PcmSink sink =
+      pcm -> {
+        ring.clear();
+        ring.put(pcm);
+      };
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    int[][] samples = signal(bitsPerSample, SAMPLE_RATE);
+    flac = encode(samples, bitsPerSample, SAMPLE_RATE, BLOCK_SIZE);
+    pcm = interleave(samples, FlacDecoder.encoding(bitsPerSample));
+    decoder = new FlacDecoder(sink);
+    rawBuffer = ByteBuffer.wrap(pcm);
+    // Room for the largest read or decoded block
+    int ringBytes = Math.max(packetBytes, BLOCK_SIZE * CHANNELS * 3);
+    ring = ByteBuffer.allocateDirect(ringBytes).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  @Benchmark
+  public long flac() throws IOException, InterruptedException {
+    decoder.reset();
+    for (int off = 0; off < flac.length; off += packetBytes) {
+      decoder.write(flac, off, Math.min(packetBytes, flac.length - off));
+    }
+    return decoder.frames();
+  }
+
+  @Benchmark
+  public int raw() throws InterruptedException {
+    for (int off = 0; off < pcm.length; off += packetBytes) {
+      rawBuffer.clear();
+      rawBuffer.limit(Math.min(off + packetBytes, pcm.length));
+      rawBuffer.position(off);
+      sink.offer(rawBuffer);
+    }
+    return ring.position();
+  }
+
+  /** Two tones and a little noise, different in each channel, at -6 dBFS at most. */
+  static int[][] signal(int bitsPerSample, int frames) {
+    Random random = new Random(1);
+    double scale = (1 << (bitsPerSample - 1)) - 1;
+    int[][] samples = new int[CHANNELS][frames];
+    for (int ch = 0; ch < CHANNELS; ch++) {
+      double tone = 440 * (ch + 1);
+      for (int i = 0; i < frames; i++) {
+        double t = (double) i / SAMPLE_RATE;
+        double s =
+            0.35 * Math.sin(2 * Math.PI * tone * t)
+                + 0.1 * Math.sin(2 * Math.PI * 3000 * t)
+                + 0.01 * random.nextGaussian();
+        samples[ch][i] = (int) Math.round(s * scale);
+      }
+    }
+    return samples;
+  }
+
+  /** The samples as little-endian PCM in format. */
+  static byte[] interleave(int[][] samples, PcmFormat format) {
+    int frames = samples[0].length;
+    ByteBuffer out =
+        ByteBuffer.allocate(frames * CHANNELS * format.bytesPerSample)
+            .order(ByteOrder.LITTLE_ENDIAN);
+    for (int i = 0; i < frames; i++) {
+      for (int[] channel : samples) {
+        int v = channel[i];
+        if (format == PcmFormat.S16) {
+          out.putShort((short) v);
+        } else {
+          out.put((byte) v).put((byte) (v >> 8)).put((byte) (v >> 16));
+        }
+      }
+    }
+    return out.array();
+  }
+
+  /**
+   * A FLAC stream of the samples: STREAMINFO then frames of independent channels, each an order 2
+   * LPC subframe with its predictor from the block's autocorrelation.
+   */
+  static byte[] encode(int[][] samples, int bitsPerSample, int sampleRate, int blockSize) {
+    int frames = samples[0].length;
+    BitWriter out = new BitWriter();
+    out.write('f', 8).write('L', 8).write('a', 8).write('C', 8);
+    // Last metadata block, STREAMINFO, 34 bytes
+    out.write(0x80, 8).write(34, 24);
+    out.write(blockSize, 16).write(blockSize, 16).write(0, 24).write(0, 24);
+    out.write(sampleRate, 20).write(CHANNELS - 1, 3).write(bitsPerSample - 1, 5);
+    out.write(0, 4).write(frames, 32);
+    for (int i = 0; i < 16; i++) {
+      out.write(0, 8);
+    }
+
+    for (int start = 0, n = 0; start < frames; start += blockSize, n++) {
+      int size = Math.min(blockSize, frames - start);
+      int headerStart = out.bytes();
+      out.write(FlacDecoder.SYNC, 16);
+      // 16 bit block size, rate, depth from STREAMINFO, independent channels
+      out.write(7, 4).write(0, 4).write(CHANNELS - 1, 4).write(0, 3).write(0, 1);
+      if (n < 0x80) {
+        out.write(n, 8);
+      } else {
+        out.write(0xc0 | n >> 6, 8).write(0x80 | n & 0x3f, 8);
+      }
+      out.write(size - 1, 16);
+      out.write(out.crc(headerStart, 0x07, 8), 8);
+      for (int[] channel : samples) {
+        writeLpcSubframe(out, channel, start, size, bitsPerSample);
+      }
+      out.align();
+      out.write(out.crc(headerStart, 0x8005, 16), 16);
+    }
+    return out.toByteArray();
+  }
+
+  private static void writeLpcSubframe(
+      BitWriter out, int[] s, int start, int size, int bitsPerSample) {
+    int order = Math.min(2, size);
+    long[] c = predictor(s, start, size);
+    out.write(0, 1).write(32 + order - 1, 6).write(0, 1);
+    for (int i = 0; i < order; i++) {
+      out.writeSigned(s[start + i], bitsPerSample);
+    }
+    out.write(LPC_PRECISION - 1, 4).write(LPC_SHIFT, 5);
+    for (int i = 0; i < order; i++) {
+      out.writeSigned((int) c[i], LPC_PRECISION);
+    }
+
+    int[] residual = new int[size];
+    long total = 0;
+    for (int i = order; i < size; i++) {
+      long sum = 0;
+      for (int j = 0; j < order; j++) {
+        sum += c[j] * s[start + i - 1 - j];
+      }
+      residual[i] = s[start + i] - (int) (sum >> LPC_SHIFT);
+      total += Math.abs(residual[i]);
+    }
+    // Rice parameter for the mean magnitude, one partition with 5 bit parameters
+    long mean = total / Math.max(1, size - order);
+    int param = Math.min(30, 63 - Long.numberOfLeadingZeros(Math.max(1, mean)));
+    out.write(1, 2).write(0, 4).write(param, 5);
+    for (int i = order; i < size; i++) {
+      int v = residual[i] << 1 ^ residual[i] >> 31;
+      for (int q = v >>> param; q > 0; q--) {
+        out.write(0, 1);
+      }
+      out.write(1, 1).write(v & ((1 << param) - 1), param);
+    }
+  }
+
+  /** Order 2 predictor from the autocorrelation, quantized. */
+  private static long[] predictor(int[] s, int start, int size) {
+    double r0 = 0;
+    double r1 = 0;
+    double r2 = 0;
+    for (int i = start; i < start + size; i++) {
+      r0 += (double) s[i] * s[i];
+      if (i >= start + 1) {
+        r1 += (double) s[i] * s[i - 1];
+      }
+      if (i >= start + 2) {
+        r2 += (double) s[i] * s[i - 2];
+      }
+    }
+    double d = r0 * r0 - r1 * r1;
+    double a1 = d == 0 ? 0 : r1 * (r0 - r2) / d;
+    double a2 = d == 0 ? 0 : (r0 * r2 - r1 * r1) / d;
+    long max = (1 << (LPC_PRECISION - 1)) - 1;
+    return new long[] {
+      Math.max(-max, Math.min(max, Math.round(a1 * (1 << LPC_SHIFT)))),
+      Math.max(-max, Math.min(max, Math.round(a2 * (1 << LPC_SHIFT))))
+    };
+  }
+
+  /** Writes bits most significant first, as FLAC is laid out. */
+  static final class BitWriter {
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private int current;
+    private int bits;
+
+    BitWriter write(int value, int n) {
+      for (int i = n - 1; i >= 0; i--) {
+        current = current << 1 | (value >>> i & 1);
+        if (++bits == 8) {
+          bytes.write(current);
+          current = bits = 0;
+        }
+      }
+      return this;
+    }
+
+    BitWriter writeSigned(int value, int n) {
+      return write(value & (int) ((1L << n) - 1), n);
+    }
+
+    void align() {
+      while (bits != 0) {
+        write(0, 1);
+      }
+    }
+
+    int bytes() {
+      return bytes.size();
+    }
+
+    /** CRC of the whole bytes written since start, MSB first with a zero initial value. */
+    int crc(int start, int polynomial, int width) {
+      byte[] data = bytes.toByteArray();
+      int top = 1 << (width - 1);
+      int mask = (1 << width) - 1;
+      int crc = 0;
+      for (int i = start; i < data.length; i++) {
+        crc ^= (data[i] & 0xff) << (width - 8);
+        for (int b = 0; b < 8; b++) {
+          crc = (crc & top) != 0 ? (crc << 1) ^ polynomial : crc << 1;
+        }
+      }
+      return crc & mask;
+    }
+
+    byte[] toByteArray() {
+      return bytes.toByteArray();
+    }
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2014 kaytat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kaytat.simpleprotocolplayer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time from the network thread handing over a packet until the audio thread has woken up and
+ * played it out. The benchmark thread plays the network side and an audio thread of its own waits
+ * in JitterBuffer.await() like BufferToAudioTrackThread does, so this includes the wake-up through
+ * AudioRingBuffer. Sampled per packet, JMH reports the percentiles.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandoffBenchmark {
+  // How long the audio thread waits before it checks whether it should stop
+  static final long POLL_NANOS = 10_000_000L;
+
+  // Size of each network read, rounded down to whole frames so every packet is a burst
+  @Param({"256", "1764", "7056"})
+  public int packetBytes;
+
+  @Param({"S16", "FLOAT"})
+  public String sampleFormat;
+
+  private PcmFormat format;
+
+  private byte[] packet;
+  private JitterBuffer jitterBuffer;
+  private AudioRingBuffer ring;
+  private long handedOver;
+
+  private Thread audioThread;
+  private volatile boolean running;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    format = PcmFormat.valueOf(sampleFormat);
+    StreamFormat streamFormat =
+        new StreamFormat(PipelineBenchmark.SAMPLE_RATE, PipelineBenchmark.CHANNELS, format);
+    int bytesPerFrame = streamFormat.bytesPerFrame();
+    int burstBytes = Math.max(bytesPerFrame, packetBytes / bytesPerFrame * bytesPerFrame);
+    packet = PipelineBenchmark.sine(format, PipelineBenchmark.CHANNELS, burstBytes);
+    jitterBuffer =
+        new JitterBuffer(
+            streamFormat,
+            burstBytes,
+            burstBytes,
+            PipelineBenchmark.UNDERRUNS_PER_MINUTE,
+            OverflowPolicy.DROP_OLDEST,
+            JitterBuffer.MAX_TARGET_MS);
+    ring = jitterBuffer.ring();
+    handedOver = 0;
+
+    running = true;
+    audioThread = new Thread(this::play, "audio");
+    audioThread.start();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws InterruptedException {
+    running = false;
+    audioThread.interrupt();
+    audioThread.join();
+  }
+
+  @Benchmark
+  public long handoff() throws InterruptedException {
+    jitterBuffer.offer(packet, 0, packet.length);
+    handedOver += packet.length;
+    while (ring.readPosition() < handedOver) {
+      Thread.yield();
+    }
+    return handedOver;
+  }
+
+  private void play() {
+    int channels = PipelineBenchmark.CHANNELS;
+    int burstBytes = jitterBuffer.burstBytes();
+    int framesPerBurst = burstBytes / ring.bytesPerFrame();
+    DriftResampler resampler = new DriftResampler(channels, format, framesPerBurst);
+    LossConcealer concealer = new LossConcealer(PipelineBenchmark.SAMPLE_RATE, channels);
+    float[] block = new float[DriftResampler.maxOutSamples(framesPerBurst, channels)];
+    PcmFormat outputFormat = format == PcmFormat.S16 ? PcmFormat.S16 : PcmFormat.FLOAT;
+    ByteBuffer sink =
+        ByteBuffer.allocateDirect(outputFormat.bytesPerSample * block.length)
+            .order(ByteOrder.LITTLE_ENDIAN);
+
+    try {
+      while (running) {
+        if (!jitterBuffer.await(POLL_NANOS)) {
+          continue;
+        }
+        int samples = 0;
+        int remaining = burstBytes;
+        while (remaining > 0) {
+          ByteBuffer region = ring.readableRegion(remaining);
+          int n = region.remaining();
+          samples += resampler.process(region, PipelineBenchmark.DRIFT_RATIO, block, samples);
+          ring.commitRead(n);
+          remaining -= n;
+        }
+        concealer.played(block, samples);
+        sink.clear();
+        outputFormat.fromFloat(block, 0, samples, sink);
+      }
+    } catch (InterruptedException e) {
+      // Stopped by tearDown()
+    }
+  }
+}
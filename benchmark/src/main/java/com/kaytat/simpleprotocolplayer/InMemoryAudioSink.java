@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2014 kaytat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kaytat.simpleprotocolplayer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * AudioSink that keeps time like a sound card without playing anything. From play() on it takes
+ * frames out of its buffer at the sample rate, counts an underrun whenever it runs dry and notes
+ * when each tone that starts in the output would have been heard.
+ *
+ * <p>The audio thread plays into it, any thread may read the statistics.
+ */
+final class InMemoryAudioSink implements AudioSink {
+  // A frame louder than this after ONSET_GAP_MS of quiet starts a tone
+  static final float ONSET_THRESHOLD = 0.1f;
+  static final int ONSET_GAP_MS = 20;
+
+  private final int sampleRate;
+  private final int channels;
+  private final PcmFormat encoding;
+  private final int bytesPerFrame;
+  private final int bufferFrames;
+  private final long outputLatencyNanos;
+  private final int onsetGapFrames;
+  private float[] scratch = new float[0];
+
+  private boolean playing;
+  private long startNanos;
+  // Frames the clock has moved on since play()
+  private long clockedFrames;
+  private long writtenFrames;
+  private long playedFrames;
+  private boolean dry;
+  private int underruns;
+  private long silentFrames;
+  private long quietFrames = Long.MAX_VALUE;
+  private final List<Long> onsetNanos = new ArrayList<>();
+
+  /**
+   * @param encoding what the audio thread writes
+   * @param bufferFrames how far ahead of the clock writes may get before they block
+   * @param outputLatencyNanos how long after leaving the buffer a frame is heard, like the DSP and
+   *     the output device of a phone would add
+   */
+  InMemoryAudioSink(
+      int sampleRate,
+      int channels,
+      PcmFormat encoding,
+      int bufferFrames,
+      long outputLatencyNanos) {
+    this.sampleRate = sampleRate;
+    this.channels = channels;
+    this.encoding = encoding;
+    this.bytesPerFrame = channels * encoding.bytesPerSample;
+    this.bufferFrames = bufferFrames;
+    this.outputLatencyNanos = outputLatencyNanos;
+    this.onsetGapFrames = sampleRate * ONSET_GAP_MS / 1000;
+  }
+
+  @Override
+  public synchronized void play() {
+    playing = true;
+    startNanos = System.nanoTime();
+    clockedFrames = 0;
+  }
+
+  @Override
+  public int write(ByteBuffer data, int size) {
+    int frames = size / bytesPerFrame;
+    long waitNanos;
+    while ((waitNanos = waitNanos(frames)) > 0) {
+      LockSupport.parkNanos(waitNanos);
+    }
+    queue(data, size);
+    data.position(data.position() + size);
+    return size;
+  }
+
+  /** How long until frames more fit in the buffer, 0 if they do now. */
+  private synchronized long waitNanos(int frames) {
+    advance();
+    long queued = writtenFrames - playedFrames;
+    if (!playing || queued == 0 || queued + frames <= bufferFrames) {
+      return 0;
+    }
+    return Math.max(1, (queued + frames - bufferFrames) * 1_000_000_000L / sampleRate);
+  }
+
+  private synchronized void queue(ByteBuffer data, int size) {
+    long now = System.nanoTime();
+    advance();
+    long queued = writtenFrames - playedFrames;
+    int frames = size / bytesPerFrame;
+    if (scratch.length < frames * channels) {
+      scratch = new float[frames * channels];
+    }
+    ByteBuffer view = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    view.limit(view.position() + frames * bytesPerFrame);
+    encoding.toFloat(view, scratch, 0);
+
+    for (int f = 0; f < frames; f++) {
+      float peak = 0;
+      for (int ch = 0; ch < channels; ch++) {
+        peak = Math.max(peak, Math.abs(scratch[f * channels + ch]));
+      }
+      if (peak <= ONSET_THRESHOLD) {
+        quietFrames++;
+        continue;
+      }
+      if (quietFrames >= onsetGapFrames) {
+        onsetNanos.add(now + (queued + f) * 1_000_000_000L / sampleRate + outputLatencyNanos);
+      }
+      quietFrames = 0;
+    }
+    writtenFrames += frames;
+    dry = false;
+  }
+
+  /** Moves the clock on to now, playing out what is queued. */
+  private void advance() {
+    if (!playing) {
+      return;
+    }
+    long due = (System.nanoTime() - startNanos) * sampleRate / 1_000_000_000L;
+    long frames = due - clockedFrames;
+    clockedFrames = due;
+    long queued = writtenFrames - playedFrames;
+    if (frames <= queued) {
+      playedFrames += frames;
+      return;
+    }
+    playedFrames = writtenFrames;
+    // Silence before the first write is just a stream that hasn't started
+    if (writtenFrames > 0) {
+      silentFrames += frames - queued;
+      if (!dry) {
+        dry = true;
+        underruns++;
+      }
+    }
+  }
+
+  @Override
+  public synchronized int playbackHeadPosition() {
+    advance();
+    return (int) playedFrames;
+  }
+
+  @Override
+  public int bufferSizeInFrames() {
+    return bufferFrames;
+  }
+
+  @Override
+  public synchronized boolean timestamp(Timestamp timestamp) {
+    if (!playing) {
+      return false;
+    }
+    advance();
+    timestamp.framePosition = playedFrames;
+    timestamp.nanoTime = System.nanoTime() + outputLatencyNanos;
+    return true;
+  }
+
+  @Override
+  public synchronized int underrunCount() {
+    advance();
+    return underruns;
+  }
+
+  @Override
+  public void setVolume(float volume) {}
+
+  @Override
+  public synchronized void pause() {
+    advance();
+    playing = false;
+  }
+
+  @Override
+  public synchronized void release() {
+    advance();
+    playing = false;
+  }
+
+  /** Total time the sink played silence because it had run dry. */
+  synchronized long silentNanos() {
+    advance();
+    return silentFrames * 1_000_000_000L / sampleRate;
+  }
+
+  /** System.nanoTime() at which each tone that was written starts to play. */
+  synchronized long[] onsetNanos() {
+    long[] result = new long[onsetNanos.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = onsetNanos.get(i);
+    }
+    return result;
+  }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2014 kaytat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kaytat.simpleprotocolplayer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntToLongFunction;
+
+/**
+ * Plays a LoopbackServer over a local socket through the jitter buffer and the PlaybackLoop into an
+ * InMemoryAudioSink, the way the app does on a device, and prints the latency from the tones and
+ * the underruns for a few scripted network conditions. The latency heard from the tones is what
+ * LatencyProbe should report. Run with ./gradlew :benchmark:loopback,
+ * optionally with -PloopbackSeconds=n for the length of each run.
+ */
+public final class LoopbackHarness {
+  static final int SAMPLE_RATE = 48000;
+  static final int CHANNELS = 2;
+  static final int PACKET_MS = 10;
+  static final int BURST_MS = 10;
+  static final int SINK_BUFFER_MS = 40;
+  // Latency of a typical phone after its AudioTrack buffer
+  static final int OUTPUT_LATENCY_MS = 20;
+  static final int RUN_SECONDS = 20;
+
+  // Same as the MusicService defaults, which can't be built here
+  static final float UNDERRUNS_PER_MINUTE = 1.0f;
+  static final OverflowPolicy OVERFLOW_POLICY = OverflowPolicy.DROP_OLDEST;
+  static final int MAX_LATENCY_MS = 500;
+
+  private LoopbackHarness() {}
+
+  public static void main(String[] args) throws Exception {
+    int seconds = args.length > 0 ? Integer.parseInt(args[0]) : RUN_SECONDS;
+    run("steady", i -> 0, seconds);
+
+    Random random = new Random(1);
+    run("jitter 0-30ms", i -> (long) (random.nextDouble() * 30_000_000L), seconds);
+
+    // The network stops for 200 ms every 5 s, then everything held up arrives at once
+    long stallEvery = 5_000_000_000L;
+    long stall = 200_000_000L;
+    long packetNanos = PACKET_MS * 1_000_000L;
+    run(
+        "stall 200ms/5s",
+        i -> {
+          long t = (i + 1) * packetNanos;
+          return t >= stallEvery && t % stallEvery < stall ? stall - t % stallEvery : 0;
+        },
+        seconds);
+  }
+
+  static void run(String name, IntToLongFunction delayNanos, int seconds)
+      throws IOException, InterruptedException {
+    StreamFormat format = new StreamFormat(SAMPLE_RATE, CHANNELS, PcmFormat.S16);
+    int bytesPerFrame = format.bytesPerFrame();
+    int burstBytes = SAMPLE_RATE * BURST_MS / 1000 * bytesPerFrame;
+    int packetBytes = SAMPLE_RATE * PACKET_MS / 1000 * bytesPerFrame;
+    JitterBuffer jitterBuffer =
+        new JitterBuffer(
+            format, burstBytes, packetBytes, UNDERRUNS_PER_MINUTE, OVERFLOW_POLICY, MAX_LATENCY_MS);
+    StreamMetrics metrics = new StreamMetrics(name);
+    InMemoryAudioSink sink =
+        new InMemoryAudioSink(
+            SAMPLE_RATE,
+            CHANNELS,
+            PcmFormat.S16,
+            SAMPLE_RATE * SINK_BUFFER_MS / 1000,
+            OUTPUT_LATENCY_MS * 1_000_000L);
+
+    try (LoopbackServer server = new LoopbackServer(format, PACKET_MS, delayNanos);
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.port())) {
+      socket.setTcpNoDelay(true);
+      AtomicBoolean running = new AtomicBoolean(true);
+      Thread network =
+          new Thread(
+              () -> {
+                // NetworkReadThread without the Android parts
+                byte[] buffer = new byte[packetBytes];
+                metrics.connected();
+                try {
+                  InputStream in = socket.getInputStream();
+                  int n;
+                  while ((n = in.read(buffer)) > 0) {
+                    metrics.received(n);
+                    jitterBuffer.offer(buffer, 0, n);
+                  }
+                } catch (IOException | InterruptedException e) {
+                  // Stopped
+                }
+              },
+              "network");
+      Thread audio =
+          new Thread(
+              () -> {
+                sink.play();
+                PlaybackLoop loop =
+                    new PlaybackLoop(jitterBuffer, sink, PcmFormat.S16, metrics, 0, 0);
+                try {
+                  while (running.get() && loop.step()) {
+                    // Plays until stopped
+                  }
+                } catch (InterruptedException e) {
+                  // Stopped
+                }
+                sink.release();
+              },
+              "audio");
+      network.start();
+      audio.start();
+      // What LatencyProbe reports while the tones are heard, to check it against them
+      long[] probed = new long[seconds * 10];
+      for (int i = 0; i < probed.length; i++) {
+        Thread.sleep(100);
+        probed[i] = metrics.latencyNanos();
+      }
+
+      running.set(false);
+      audio.interrupt();
+      audio.join();
+      // The socket itself is closed by the try
+      socket.shutdownInput();
+      network.interrupt();
+      network.join();
+      report(name, server.startNanos(), sink, jitterBuffer, metrics, probed);
+    }
+  }
+
+  /** Latency of each tone is the time it was heard less the time the server captured it. */
+  static void report(
+      String name,
+      long startNanos,
+      InMemoryAudioSink sink,
+      JitterBuffer jitterBuffer,
+      StreamMetrics metrics,
+      long[] probed) {
+    long tickNanos = LoopbackServer.TICK_MS * 1_000_000L;
+    long[] onsets = sink.onsetNanos();
+    long[] latencies = new long[onsets.length];
+    for (int i = 0; i < onsets.length; i++) {
+      latencies[i] = (onsets[i] - startNanos) % tickNanos;
+    }
+    Arrays.sort(latencies);
+    Arrays.sort(probed);
+    System.out.println(
+        String.format(
+            Locale.US,
+            "%-16s tones:%d latencyMs p50:%.1f p90:%.1f p99:%.1f max:%.1f probeMs p50:%.1f"
+                + " sinkUnderruns:%d silentMs:%d targetMs:%d",
+            name,
+            latencies.length,
+            percentileMs(latencies, 0.5),
+            percentileMs(latencies, 0.9),
+            percentileMs(latencies, 0.99),
+            percentileMs(latencies, 1.0),
+            percentileMs(probed, 0.5),
+            sink.underrunCount(),
+            sink.silentNanos() / 1_000_000,
+            jitterBuffer.bytesToNanos(jitterBuffer.targetBytes()) / 1_000_000));
+    System.out.println("  " + metrics.summary());
+  }
+
+  private static double percentileMs(long[] sorted, double fraction) {
+    if (sorted.length == 0) {
+      return Double.NaN;
+    }
+    int i = (int) Math.ceil(fraction * sorted.length) - 1;
+    return sorted[Math.max(0, i)] / 1e6;
+  }
+}
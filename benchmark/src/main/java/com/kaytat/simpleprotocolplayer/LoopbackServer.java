@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2014 kaytat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kaytat.simpleprotocolplayer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntToLongFunction;
+
+/**
+ * Stand-in for a PCM server on the loopback interface. Streams a test signal to one connection in
+ * real time, a packet at a time, and holds back each packet by a scripted delay to play the part of
+ * the network. The signal is silence with a short tone every TICK_MS, so the time a tone is heard
+ * at the other end gives the latency.
+ */
+final class LoopbackServer implements Closeable {
+  static final int TICK_MS = 500;
+  static final int TONE_MS = 50;
+  static final int TONE_HZ = 1000;
+
+  private final StreamFormat format;
+  private final int packetFrames;
+  private final IntToLongFunction delayNanos;
+  private final ServerSocket serverSocket;
+  private final Thread thread;
+
+  private volatile Socket socket;
+  private volatile long startNanos;
+
+  /**
+   * @param packetMs audio in each packet, it is sent once all of it would have been captured
+   * @param delayNanos extra delay for each packet by its index. A packet can't overtake the one
+   *     before, so a long delay holds up the ones after it like a stall in the network would.
+   */
+  LoopbackServer(StreamFormat format, int packetMs, IntToLongFunction delayNanos)
+      throws IOException {
+    this.format = format;
+    this.packetFrames = format.sampleRate * packetMs / 1000;
+    this.delayNanos = delayNanos;
+    serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    thread = new Thread(this::serve, "loopback-server");
+    thread.start();
+  }
+
+  int port() {
+    return serverSocket.getLocalPort();
+  }
+
+  /** System.nanoTime() of the first frame, 0 until a client has connected. */
+  long startNanos() {
+    return startNanos;
+  }
+
+  private void serve() {
+    try (Socket socket = serverSocket.accept()) {
+      this.socket = socket;
+      socket.setTcpNoDelay(true);
+      OutputStream out = socket.getOutputStream();
+      byte[] packet = new byte[packetFrames * format.bytesPerFrame()];
+      ByteBuffer packetBuffer = ByteBuffer.wrap(packet).order(ByteOrder.LITTLE_ENDIAN);
+      float[] samples = new float[packetFrames * format.channels];
+      long packetNanos = packetFrames * 1_000_000_000L / format.sampleRate;
+
+      long start = System.nanoTime();
+      startNanos = start;
+      for (int i = 0; ; i++) {
+        long due = start + (i + 1) * packetNanos + delayNanos.applyAsLong(i);
+        long wait;
+        while ((wait = due - System.nanoTime()) > 0) {
+          LockSupport.parkNanos(wait);
+        }
+        signal((long) i * packetFrames, samples);
+        packetBuffer.clear();
+        format.encoding.fromFloat(samples, 0, samples.length, packetBuffer);
+        out.write(packet);
+      }
+    } catch (IOException e) {
+      // Closed
+    }
+  }
+
+  /** Fills samples with the test signal from frame first on. */
+  private void signal(long first, float[] samples) {
+    long tickFrames = (long) format.sampleRate * TICK_MS / 1000;
+    long toneFrames = (long) format.sampleRate * TONE_MS / 1000;
+    for (int f = 0; f < samples.length / format.channels; f++) {
+      long n = first + f;
+      float s = 0;
+      if (n % tickFrames < toneFrames) {
+        s = (float) (0.5 * Math.sin(2 * Math.PI * TONE_HZ * n / format.sampleRate));
+      }
+      for (int ch = 0; ch < format.channels; ch++) {
+        samples[f * format.channels + ch] = s;
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    serverSocket.close();
+    Socket socket = this.socket;
+    if (socket != null) {
+      socket.close();
+    }
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2014 kaytat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kaytat.simpleprotocolplayer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * CPU time of StreamMixer for a number of streams. Every operation hands each stream a burst the
+ * way NetworkReadThread does and mixes one burst into a sink that never blocks, so the time per
+ * operation grows by the cost of one more stream with every step in streams.
+ *
+ * <p>A burst is 10 ms, so the score divided by 10 ms is the share of one core the mixer needs.
+ * Run with -prof gc for the allocation rate, which should be zero.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MixerBenchmark {
+  static final int SAMPLE_RATE = PipelineBenchmark.SAMPLE_RATE;
+  static final int CHANNELS = PipelineBenchmark.CHANNELS;
+  static final int FRAMES_PER_BURST = SAMPLE_RATE / 100;
+
+  // Audio kept waiting in each jitter buffer
+  static final int QUEUE_DEPTH_MS = 50;
+
+  @Param({"1", "2", "4", "8"})
+  public int streams;
+
+  @Param({"S16", "FLOAT"})
+  public String sampleFormat;
+
+  private StreamMixer mixer;
+  private JitterBuffer[] jitterBuffers;
+  private byte[] packet;
+
+  @Setup(Level.Trial)
+  public void setUp() throws InterruptedException {
+    PcmFormat format = PcmFormat.valueOf(sampleFormat);
+    StreamFormat streamFormat = new StreamFormat(SAMPLE_RATE, CHANNELS, format);
+    int burstBytes = FRAMES_PER_BURST * streamFormat.bytesPerFrame();
+    int queueBytes =
+        streamFormat.bytesPerSecond() * QUEUE_DEPTH_MS / 1000 / burstBytes * burstBytes;
+    packet = PipelineBenchmark.sine(format, CHANNELS, burstBytes);
+    byte[] fill = PipelineBenchmark.sine(format, CHANNELS, queueBytes);
+
+    mixer = new StreamMixer(new NullSink(), SAMPLE_RATE, CHANNELS, FRAMES_PER_BURST);
+    jitterBuffers = new JitterBuffer[streams];
+    for (int i = 0; i < streams; i++) {
+      jitterBuffers[i] =
+          new JitterBuffer(
+              streamFormat,
+              burstBytes,
+              queueBytes,
+              PipelineBenchmark.UNDERRUNS_PER_MINUTE,
+              OverflowPolicy.DROP_OLDEST,
+              2 * JitterBuffer.MAX_TARGET_MS);
+      jitterBuffers[i].offer(fill, 0, fill.length);
+      mixer.add(jitterBuffers[i], new StreamMetrics("bench" + i), QUEUE_DEPTH_MS);
+    }
+  }
+
+  @Benchmark
+  public void burst() throws InterruptedException {
+    for (JitterBuffer jitterBuffer : jitterBuffers) {
+      jitterBuffer.offer(packet, 0, packet.length);
+    }
+    mixer.step();
+  }
+
+  /** Takes everything at once, as if the device played it the moment it arrived. */
+  private static final class NullSink implements AudioSink {
+    private int frames;
+
+    @Override
+    public void play() {}
+
+    @Override
+    public int write(ByteBuffer data, int size) {
+      frames += size / (CHANNELS * PcmFormat.FLOAT.bytesPerSample);
+      data.position(data.position() + size);
+      return size;
+    }
+
+    @Override
+    public int playbackHeadPosition() {
+      return frames;
+    }
+
+    @Override
+    public int bufferSizeInFrames() {
+      return 2 * FRAMES_PER_BURST;
+    }
+
+    @Override
+    public boolean timestamp(Timestamp timestamp) {
+      return false;
+    }
+
+    @Override
+    public int underrunCount() {
+      return 0;
+    }
+
+    @Override
+    public void setVolume(float volume) {}
+
+    @Override
+    public void pause() {}
+
+    @Override
+    public void release() {}
+  }
+}
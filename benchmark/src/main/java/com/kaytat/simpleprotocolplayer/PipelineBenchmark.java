@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2014 kaytat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kaytat.simpleprotocolplayer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the whole pipeline on one thread. Every operation hands one packet to the jitter
+ * buffer the way NetworkReadThread does and then plays out the bursts that are over the queue depth
+ * the way BufferToAudioTrackThread does, through the resampler and the concealer into a direct
+ * buffer standing in for AudioTrack.
+ *
+ * <p>One operation is one packet, so bytes per second is the score times packetBytes. Run with
+ * -prof gc for the allocation rate, which should be zero once the pipeline is warmed up.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PipelineBenchmark {
+  static final int SAMPLE_RATE = 44100;
+  static final int CHANNELS = 2;
+
+  // A typical clock drift, so the resampler interpolates like it does on a device
+  static final double DRIFT_RATIO = 1.0001;
+
+  // Same as MusicService.DEFAULT_UNDERRUNS_PER_MINUTE, which can't be built here
+  static final float UNDERRUNS_PER_MINUTE = 1.0f;
+
+  // Size of each network read, bytesPerAudioPacket in the app. 1764 is 10 ms of 16 bit stereo.
+  @Param({"256", "1764", "7056"})
+  public int packetBytes;
+
+  // Audio kept waiting in the jitter buffer
+  @Param({"20", "100", "500"})
+  public int queueDepthMs;
+
+  @Param({"S16", "FLOAT"})
+  public String sampleFormat;
+
+  private PcmFormat format;
+
+  private byte[] packet;
+  private JitterBuffer jitterBuffer;
+  private AudioRingBuffer ring;
+  private int burstBytes;
+  private int queueBytes;
+
+  private DriftResampler resampler;
+  private LossConcealer concealer;
+  private float[] block;
+  private PcmFormat outputFormat;
+  private ByteBuffer sink;
+
+  @Setup(Level.Trial)
+  public void setUp() throws InterruptedException {
+    format = PcmFormat.valueOf(sampleFormat);
+    StreamFormat streamFormat = new StreamFormat(SAMPLE_RATE, CHANNELS, format);
+    int bytesPerFrame = streamFormat.bytesPerFrame();
+    packet = sine(format, CHANNELS, packetBytes);
+    // As WorkerThreadPair.calcBurstBytes() with an AudioTrack buffer larger than a packet
+    burstBytes = Math.max(bytesPerFrame, packetBytes / bytesPerFrame * bytesPerFrame);
+    queueBytes =
+        (int) ((long) streamFormat.bytesPerSecond() * queueDepthMs / 1000)
+            / bytesPerFrame * bytesPerFrame;
+
+    // Room for the queue and a packet on top, so the overflow policy never drops anything
+    jitterBuffer =
+        new JitterBuffer(
+            streamFormat,
+            burstBytes,
+            queueBytes,
+            UNDERRUNS_PER_MINUTE,
+            OverflowPolicy.DROP_OLDEST,
+            2 * JitterBuffer.MAX_TARGET_MS);
+    ring = jitterBuffer.ring();
+    byte[] fill = sine(format, CHANNELS, queueBytes);
+    jitterBuffer.offer(fill, 0, fill.length);
+
+    int framesPerBurst = burstBytes / bytesPerFrame;
+    resampler = new DriftResampler(CHANNELS, format, framesPerBurst);
+    concealer = new LossConcealer(SAMPLE_RATE, CHANNELS);
+    block = new float[DriftResampler.maxOutSamples(framesPerBurst, CHANNELS)];
+    outputFormat = format == PcmFormat.S16 ? PcmFormat.S16 : PcmFormat.FLOAT;
+    sink =
+        ByteBuffer.allocateDirect(outputFormat.bytesPerSample * block.length)
+            .order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  @Benchmark
+  public int packet() throws InterruptedException {
+    jitterBuffer.offer(packet, 0, packet.length);
+    int bursts = 0;
+    while (ring.available() >= queueBytes + burstBytes && jitterBuffer.await(0)) {
+      playBurst();
+      bursts++;
+    }
+    return bursts;
+  }
+
+  private void playBurst() {
+    int samples = 0;
+    int remaining = burstBytes;
+    while (remaining > 0) {
+      ByteBuffer region = ring.readableRegion(remaining);
+      int n = region.remaining();
+      samples += resampler.process(region, DRIFT_RATIO, block, samples);
+      ring.commitRead(n);
+      remaining -= n;
+    }
+    concealer.played(block, samples);
+    sink.clear();
+    outputFormat.fromFloat(block, 0, samples, sink);
+  }
+
+  /** len bytes of a 1 kHz tone at -6 dBFS. */
+  static byte[] sine(PcmFormat format, int channels, int len) {
+    int frames = len / (format.bytesPerSample * channels) + 1;
+    float[] samples = new float[frames * channels];
+    for (int i = 0; i < frames; i++) {
+      float s = (float) (0.5 * Math.sin(2 * Math.PI * 1000 * i / SAMPLE_RATE));
+      for (int ch = 0; ch < channels; ch++) {
+        samples[i * channels + ch] = s;
+      }
+    }
+    ByteBuffer out =
+        ByteBuffer.allocate(samples.length * format.bytesPerSample).order(ByteOrder.LITTLE_ENDIAN);
+    format.fromFloat(samples, 0, samples.length, out);
+    byte[] data = new byte[len];
+    System.arraycopy(out.array(), 0, data, 0, len);
+    return data;
+  }
+}
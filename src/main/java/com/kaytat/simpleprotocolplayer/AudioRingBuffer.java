@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2014 kaytat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kaytat.simpleprotocolplayer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Single producer, single consumer ring buffer of audio frames.
+ *
+ * <p>Exactly one thread may call the writer methods (write, writableRegion, commitWrite,
+ * awaitWritable) and exactly one other thread the reader methods (readableRegion, commitRead, skip,
+ * awaitAvailable).
+ * Both sides only publish their own position and never wait on each other, so reads and writes are
+ * wait-free. A thread only blocks when it asks to: the reader to wait for data that is not there
+ * yet, the writer to wait for room. A writer that can't block can leave a listener instead, which
+ * the reader runs as soon as it has read something.
+ *
+ * <p>The writer may hand over any number of bytes, but only whole frames are made visible to the
+ * reader. A partial frame is held back until the rest of it arrives. The capacity is a multiple of
+ * the frame size so a frame never wraps around the end of the storage.
+ *
+ * <p>The storage is a direct ByteBuffer so a SocketChannel can receive into it without a copy
+ * through the Java heap. The region methods hand out a view of the storage that belongs to the
+ * calling side and is reused on every call.
+ */
+final class AudioRingBuffer {
+  private final int capacity;
+  private final int bytesPerFrame;
+
+  // Views of the same storage owned by the writer and the reader
+  private final ByteBuffer writeView;
+  private final ByteBuffer readView;
+
+  // Total bytes ever written and read. Each is only advanced by its owner.
+  private final AtomicLong writePosition = new AtomicLong();
+  private final AtomicLong readPosition = new AtomicLong();
+
+  // Writer only. Bytes of a partial frame stored after writePosition.
+  private int pendingBytes;
+
+  // Last seen position of the other side, saves a volatile read on most calls
+  private long cachedReadPosition;
+  private long cachedWritePosition;
+
+  // Set while the reader is parked waiting for data
+  private volatile Thread waitingReader;
+
+  // Set while the writer waits for room, run and cleared by the reader after it read
+  private final AtomicReference<Runnable> writerListener = new AtomicReference<>();
+
+  AudioRingBuffer(int minCapacity, int bytesPerFrame) {
+    this.bytesPerFrame = bytesPerFrame;
+    capacity = (Math.max(minCapacity, 2 * bytesPerFrame) + bytesPerFrame - 1)
+        / bytesPerFrame * bytesPerFrame;
+    ByteBuffer storage = ByteBuffer.allocateDirect(capacity);
+    writeView = storage.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    readView = storage.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  int capacity() {
+    return capacity;
+  }
+
+  int bytesPerFrame() {
+    return bytesPerFrame;
+  }
+
+  /** Bytes that can be read. Safe to call from either side. */
+  int available() {
+    return (int) (writePosition.get() - readPosition.get());
+  }
+
+  /** Total number of bytes ever made visible to the reader. */
+  long writePosition() {
+    return writePosition.get();
+  }
+
+  /** Total number of bytes ever read or skipped. */
+  long readPosition() {
+    return readPosition.get();
+  }
+
+  /**
+   * Writer side. Copies src into the ring. Returns the number of bytes taken, less than len only if
+   * the ring is full.
+   */
+  int write(byte[] src, int off, int len) {
+    int written = 0;
+    while (written < len) {
+      ByteBuffer region = writableRegion(len - written);
+      int n = region.remaining();
+      if (n == 0) {
+        break;
+      }
+      region.put(src, off + written, n);
+      commitWrite(n);
+      written += n;
+    }
+    return written;
+  }
+
+  /**
+   * Writer side. Copies src from its position to its limit into the ring and advances its position
+   * past what was taken. Less than all of it is taken only if the ring is full.
+   */
+  int write(ByteBuffer src) {
+    int written = 0;
+    int limit = src.limit();
+    while (src.hasRemaining()) {
+      ByteBuffer region = writableRegion(src.remaining());
+      int n = region.remaining();
+      if (n == 0) {
+        break;
+      }
+      src.limit(src.position() + n);
+      region.put(src);
+      src.limit(limit);
+      commitWrite(n);
+      written += n;
+    }
+    return written;
+  }
+
+  /** Writer side. Bytes that can be written right now. */
+  int writable() {
+    cachedReadPosition = readPosition.get();
+    return capacity - (int) (writePosition.get() + pendingBytes - cachedReadPosition);
+  }
+
+  /** Writer side. Waits until len bytes can be written. */
+  void awaitWritable(int len) throws InterruptedException {
+    if (writable() >= len) {
+      return;
+    }
+    Thread writer = Thread.currentThread();
+    Runnable unpark = () -> LockSupport.unpark(writer);
+    try {
+      while (true) {
+        writerListener.set(unpark);
+        if (writable() >= len) {
+          return;
+        }
+        LockSupport.park(this);
+        if (Thread.interrupted()) {
+          throw new InterruptedException();
+        }
+      }
+    } finally {
+      writerListener.compareAndSet(unpark, null);
+    }
+  }
+
+  /**
+   * Writer side. Has the reader run listener, once, the next time it reads or skips something or
+   * calls wakeWriter(). It runs on the reader thread and must not block. Replaces any listener set
+   * before.
+   */
+  void setWriterListener(Runnable listener) {
+    writerListener.set(listener);
+  }
+
+  /** Takes back a listener that hasn't run yet. */
+  void clearWriterListener(Runnable listener) {
+    writerListener.compareAndSet(listener, null);
+  }
+
+  /**
+   * Writer side. Returns the writer's view positioned at the next free byte, with at most max bytes
+   * remaining. Fewer bytes are returned if the free space wraps around the end of the storage.
+   * Follow up with commitWrite() for what was put into it.
+   */
+  ByteBuffer writableRegion(int max) {
+    long write = writePosition.get() + pendingBytes;
+    int free = capacity - (int) (write - cachedReadPosition);
+    if (free < max) {
+      cachedReadPosition = readPosition.get();
+      free = capacity - (int) (write - cachedReadPosition);
+    }
+    int index = (int) (write % capacity);
+    int len = Math.max(0, Math.min(Math.min(max, free), capacity - index));
+    writeView.limit(index + len);
+    writeView.position(index);
+    return writeView;
+  }
+
+  /** Writer side. Adds len bytes put into the writable region, makes whole frames visible. */
+  void commitWrite(int len) {
+    pendingBytes += len;
+    int whole = pendingBytes - pendingBytes % bytesPerFrame;
+    if (whole == 0) {
+      return;
+    }
+    pendingBytes -= whole;
+
+    // A full store so it can't be ordered after the read of waitingReader
+    writePosition.set(writePosition.get() + whole);
+
+    Thread reader = waitingReader;
+    if (reader != null) {
+      LockSupport.unpark(reader);
+    }
+  }
+
+  /** Writer side. Forgets a partial frame held back by commitWrite(), for a restarted stream. */
+  void dropPartialFrame() {
+    pendingBytes = 0;
+  }
+
+  /**
+   * Reader side. Returns the reader's view positioned at the oldest unread byte, with at most max
+   * bytes remaining. Fewer bytes are returned if the data wraps around the end of the storage.
+   * Release what was consumed with commitRead().
+   */
+  ByteBuffer readableRegion(int max) {
+    long read = readPosition.get();
+    int index = (int) (read % capacity);
+    int len = Math.max(0, Math.min(Math.min(max, readable(read, max)), capacity - index));
+    readView.limit(index + len);
+    readView.position(index);
+    return readView;
+  }
+
+  /** Reader side. Hands len bytes back to the writer. */
+  void commitRead(int len) {
+    // A full store so it can't be ordered after the read of writerListener
+    readPosition.set(readPosition.get() + len);
+    wakeWriter();
+  }
+
+  /** Reader side. Discards up to len bytes and returns the number of bytes discarded. */
+  int skip(int len) {
+    long read = readPosition.get();
+    len = Math.min(len, readable(read, len));
+    if (len <= 0) {
+      return 0;
+    }
+    readPosition.set(read + len);
+    wakeWriter();
+    return len;
+  }
+
+  /** Reader side. Runs the writer listener if one is waiting. */
+  void wakeWriter() {
+    Runnable listener = writerListener.get();
+    if (listener != null && writerListener.compareAndSet(listener, null)) {
+      listener.run();
+    }
+  }
+
+  /**
+   * Reader side. Waits until at least len bytes can be read or the timeout passes. Returns true if
+   * the data is there.
+   */
+  boolean awaitAvailable(int len, long timeoutNanos) throws InterruptedException {
+    long read = readPosition.get();
+    if (readable(read, len) >= len) {
+      return true;
+    }
+
+    long deadline = System.nanoTime() + timeoutNanos;
+    waitingReader = Thread.currentThread();
+    try {
+      while (readable(read, len) < len) {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+          return false;
+        }
+        LockSupport.parkNanos(this, remaining);
+        if (Thread.interrupted()) {
+          throw new InterruptedException();
+        }
+      }
+      return true;
+    } finally {
+      waitingReader = null;
+    }
+  }
+
+  private int readable(long read, int wanted) {
+    int readable = (int) (cachedWritePosition - read);
+    if (readable < wanted) {
+      cachedWritePosition = writePosition.get();
+      readable = (int) (cachedWritePosition - read);
+    }
+    return readable;
+  }
+}
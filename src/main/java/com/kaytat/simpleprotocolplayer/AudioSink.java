@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2014 kaytat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kaytat.simpleprotocolplayer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Where the audio thread plays its PCM. On a device this is AudioTrackSink, anywhere else it can be
+ * a stand-in that keeps time like a sound card would.
+ *
+ * <p>Only the audio thread uses a sink, except for setVolume() and pause().
+ */
+interface AudioSink {
+  void play();
+
+  /**
+   * Queues size bytes from the position of data, blocking until all of it has been taken. Returns
+   * the number of bytes written or a negative error code.
+   */
+  int write(ByteBuffer data, int size);
+
+  /** Frames played since play(), an unsigned 32 bit count that wraps. */
+  int playbackHeadPosition();
+
+  /** Frames the sink can hold ahead of what is playing. */
+  int bufferSizeInFrames();
+
+  /**
+   * Fills in a frame position, counted like playbackHeadPosition() but without wrapping, and the
+   * System.nanoTime() at which that frame is heard. This includes any latency of the device after
+   * the sink. Returns false if the sink can't tell yet.
+   */
+  boolean timestamp(Timestamp timestamp);
+
+  /** Number of times the sink ran out of data and played silence. */
+  int underrunCount();
+
+  void setVolume(float volume);
+
+  /** Stops playback for now, a write() blocked in the audio thread returns early. */
+  void pause();
+
+  /** Stops playback and frees the sink, it can't be used afterwards. */
+  void release();
+
+  /** A frame and the time it is heard. */
+  final class Timestamp {
+    long framePosition;
+    long nanoTime;
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2014 kaytat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kaytat.simpleprotocolplayer;
+
+import android.media.AudioTimestamp;
+import android.media.AudioTrack;
+import java.nio.ByteBuffer;
+
+/** AudioSink that plays through a streaming AudioTrack. */
+final class AudioTrackSink implements AudioSink {
+  private final AudioTrack track;
+  private final AudioTimestamp audioTimestamp = new AudioTimestamp();
+
+  AudioTrackSink(AudioTrack track) {
+    this.track = track;
+  }
+
+  @Override
+  public void play() {
+    track.play();
+  }
+
+  @Override
+  public int write(ByteBuffer data, int size) {
+    return track.write(data, size, AudioTrack.WRITE_BLOCKING);
+  }
+
+  @Override
+  public int playbackHeadPosition() {
+    return track.getPlaybackHeadPosition();
+  }
+
+  @Override
+  public int bufferSizeInFrames() {
+    return track.getBufferSizeInFrames();
+  }
+
+  @Override
+  public boolean timestamp(Timestamp timestamp) {
+    // AudioTimestamp.nanoTime is on the same clock as System.nanoTime()
+    if (!track.getTimestamp(audioTimestamp)) {
+      return false;
+    }
+    timestamp.framePosition = audioTimestamp.framePosition;
+    timestamp.nanoTime = audioTimestamp.nanoTime;
+    return true;
+  }
+
+  @Override
+  public int underrunCount() {
+    return track.getUnderrunCount();
+  }
+
+  @Override
+  public void setVolume(float volume) {
+    track.setVolume(volume);
+  }
+
+  @Override
+  public void pause() {
+    track.pause();
+  }
+
+  @Override
+  public void release() {
+    track.stop();
+    track.release();
+  }
+}
@@ -17,7 +17,6 @@
 
 package com.kaytat.simpleprotocolplayer;
 
-import android.media.AudioTrack;
 import android.util.Log;
 
 /**
@@ -32,32 +31,142 @@ class BufferToAudioTrackThread extends ThreadStoppable {
       String debugTag) {
     this.setName(debugTag);
     TAG = debugTag;
-    this.mTrack = syncObject.audioTrack;
+    this.sink = syncObject.audioSink;
     this.syncObject = syncObject;
   }
 
-  // Media track
-  private AudioTrack mTrack;
+  // Replaced when the stream format changes or the sink is restarted. Also paused from other
+  // threads by restartSink().
+  private volatile AudioSink sink;
+
+  // Set by restartSink() until the audio thread got round to it
+  private volatile boolean restartSink;
+
+  // Totals from sinks and concealers of earlier formats
+  private long underrunBase;
+  private long concealedNanosBase;
+
+  static final long LOG_INTERVAL_NANOS = 60_000_000_000L;
 
   @Override
   public void run() {
     Log.i(TAG, "start");
-
-    mTrack.play();
+    syncObject.latencyProfile.threadStarted(LatencyProfile.AUDIO_THREAD);
 
     try {
       while (running) {
-        mTrack.write(syncObject.dataQueue.take(), 0,
-            syncObject.bytesPerAudioPacket);
+        play();
+        if (restartSink) {
+          restart();
+        } else {
+          switchFormat();
+        }
       }
     } catch (Exception e) {
       Log.e(TAG, "exception:" + e);
     }
 
     // Do some cleanup
-    mTrack.stop();
-    mTrack.release();
-    mTrack = null;
+    if (sink != null) {
+      sink.release();
+      sink = null;
+    }
     Log.i(TAG, "done");
   }
+
+  /**
+   * Plays until stopped or the stream format changes. A new format takes effect once everything
+   * that came before it has been played.
+   */
+  private void play() throws InterruptedException {
+    sink.play();
+
+    JitterBuffer jitterBuffer = syncObject.jitterBuffer;
+    PlaybackLoop loop =
+        new PlaybackLoop(
+            jitterBuffer,
+            sink,
+            syncObject.outputFormat,
+            syncObject.metrics,
+            underrunBase,
+            concealedNanosBase);
+
+    boolean concealing = false;
+    int targetBytes = jitterBuffer.targetBytes();
+    long lastLogNanos = System.nanoTime();
+    while (running && !restartSink && loop.step()) {
+      if (loop.concealing() != concealing) {
+        concealing = loop.concealing();
+        if (concealing) {
+          Log.w(TAG, "conceal");
+        }
+      }
+      if (targetBytes != jitterBuffer.targetBytes()) {
+        targetBytes = jitterBuffer.targetBytes();
+        Log.i(TAG, "targetMs:" + jitterBuffer.bytesToNanos(targetBytes) / 1_000_000
+            + " jitterUs:" + jitterBuffer.jitterNanos() / 1000);
+      }
+      long now = System.nanoTime();
+      if (now - lastLogNanos > LOG_INTERVAL_NANOS) {
+        lastLogNanos = now;
+        long overflowMs = jitterBuffer.bytesToNanos(jitterBuffer.overflowBytes()) / 1_000_000;
+        long concealedMs = loop.concealedFrames() * 1000 / syncObject.sampleRate;
+        Log.i(TAG, "driftPpm:" + Math.round(loop.driftPpm()) + " ratio:" + loop.ratio()
+            + " overflowMs:" + overflowMs + " concealedMs:" + concealedMs);
+      }
+    }
+  }
+
+  /**
+   * Called by StallWatchdog when the sink stopped playing. The sink is paused so a write blocked on
+   * it returns, then the audio thread builds a new one for the same format.
+   */
+  void restartSink() {
+    restartSink = true;
+    AudioSink sink = this.sink;
+    if (sink == null) {
+      return;
+    }
+    try {
+      sink.pause();
+    } catch (IllegalStateException e) {
+      // Released by the audio thread in the meantime
+      Log.i(TAG, "pause:" + e);
+    }
+  }
+
+  /** Replaces a stalled sink with a new one, what it still held is lost. */
+  private void restart() {
+    restartSink = false;
+    if (!running) {
+      return;
+    }
+    StreamFormat format = syncObject.jitterBuffer.format();
+    Log.w(TAG, "restart sink:" + format);
+    replaceSink(format);
+  }
+
+  /** Rebuilds the sink for the pending format and switches the jitter buffer over. */
+  private void switchFormat() {
+    if (!running) {
+      return;
+    }
+    StreamFormat format = syncObject.jitterBuffer.pendingFormat();
+    Log.i(TAG, "format:" + format);
+    replaceSink(format);
+    syncObject.jitterBuffer.applyFormat(syncObject.burstBytes, syncObject.bytesPerAudioPacket);
+  }
+
+  private void replaceSink(StreamFormat format) {
+    underrunBase += sink.underrunCount();
+    concealedNanosBase = syncObject.metrics.concealedNanos();
+    // Nothing is queued while there is no sink, the watchdog mustn't take that for a stall
+    syncObject.metrics.sinkPosition(0, 0);
+    sink.release();
+    sink = null;
+
+    // Only the sink is replaced, the network side keeps its connection
+    syncObject.configure(format);
+    sink = syncObject.audioSink;
+  }
 }
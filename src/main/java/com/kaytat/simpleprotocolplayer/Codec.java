@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2014 kaytat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kaytat.simpleprotocolplayer;
+
+/**
+ * How the audio is encoded on the wire. The order matches the codecs array in strings.xml.
+ *
+ * <p>Over TCP, Opus frames are sent with a 16 bit big endian length in front of each one. Over RTP
+ * every packet carries exactly one frame.
+ */
+enum Codec {
+  // Raw PCM, goes straight into the jitter buffer without a decoder
+  PCM,
+  // Opus at 48 kHz, decoded with MediaCodec
+  OPUS,
+  // FLAC, decoded in Java. Frames are found by their sync code so no length is sent.
+  FLAC;
+}
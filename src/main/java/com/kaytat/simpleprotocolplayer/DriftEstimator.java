@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2014 kaytat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kaytat.simpleprotocolplayer;
+
+/**
+ * Estimates the clock drift between the sender and the AudioTrack output clock.
+ *
+ * <p>The input is the number of frames buffered between the network and the speaker, computed
+ * from the frames received and the AudioTrack playback head. If the sender runs fast this slowly
+ * grows and if it runs slow it shrinks. A PI controller turns the difference from the target fill
+ * into a resampling ratio. The integral term converges on the actual drift, the proportional term
+ * works off any fill error left over from start-up or jitter buffer target changes.
+ */
+final class DriftEstimator {
+  // Never change the playback speed by more than this. Crystals are typically within 100 ppm.
+  static final double MAX_CORRECTION = 0.002;
+  static final double MAX_DRIFT = 0.001;
+
+  // Ignore the start of the stream while the buffers fill up
+  static final long WARMUP_NANOS = 2_000_000_000L;
+
+  // Time constant of the fill level smoothing
+  static final double FILL_TAU_SECONDS = 2.0;
+
+  // Critically damped loop settling over roughly a minute
+  static final double OMEGA = 1.0 / 60.0;
+  static final double KP = 2 * OMEGA;
+  static final double KI = OMEGA * OMEGA;
+
+  private final int sampleRate;
+
+  private long startNanos;
+  private long lastNanos;
+  private boolean filled;
+  private double fillFrames;
+  private double drift;
+  private double ratio = 1.0;
+
+  DriftEstimator(int sampleRate) {
+    this.sampleRate = sampleRate;
+  }
+
+  /**
+   * Returns the number of input frames to consume for every output frame.
+   *
+   * @param now timestamp from System.nanoTime()
+   * @param bufferedFrames input frames received but not yet played
+   * @param targetFrames the fill level that should be held
+   */
+  double update(long now, double bufferedFrames, double targetFrames) {
+    if (startNanos == 0) {
+      startNanos = lastNanos = now;
+      return ratio;
+    }
+    if (now - startNanos < WARMUP_NANOS) {
+      lastNanos = now;
+      return ratio;
+    }
+
+    double dt = (now - lastNanos) / 1e9;
+    lastNanos = now;
+    if (!filled) {
+      filled = true;
+      fillFrames = bufferedFrames;
+    } else {
+      fillFrames += (bufferedFrames - fillFrames) * Math.min(1.0, dt / FILL_TAU_SECONDS);
+    }
+
+    double error = (fillFrames - targetFrames) / sampleRate;
+    drift = clamp(drift + KI * error * dt, MAX_DRIFT);
+    ratio = 1.0 + clamp(drift + KP * error, MAX_CORRECTION);
+    return ratio;
+  }
+
+  /** Restart estimation, for example after the stream was interrupted. */
+  void reset() {
+    startNanos = 0;
+    filled = false;
+  }
+
+  double ratio() {
+    return ratio;
+  }
+
+  /** Current drift estimate in parts per million. Positive if the sender runs fast. */
+  double driftPpm() {
+    return drift * 1e6;
+  }
+
+  private static double clamp(double v, double limit) {
+    return Math.max(-limit, Math.min(limit, v));
+  }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2014 kaytat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kaytat.simpleprotocolplayer;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Asynchronous resampler for ratios very close to 1, used to absorb clock drift.
+ *
+ * <p>Most of the time the input is passed through unchanged, sample for sample. The drift asked for
+ * is added up and whenever it comes to a whole frame, one frame is dropped or repeated by running
+ * SLIP_FRAMES output frames through the filter at a ratio one frame off. Only a correction too
+ * large for that, like catching up, is resampled continuously.
+ *
+ * <p>The filter is a Kaiser windowed sinc stored as a polyphase table. Coefficients between two
+ * table phases are linearly interpolated so any ratio can be used. Phase 0 is an exact unit
+ * impulse, so the filter leaves whole frame positions alone. Elsewhere the passband is flat to
+ * about 0.8 of Nyquist, at 44.1 kHz this is 18 kHz. The last few input frames are kept between
+ * calls so the output is continuous across packets.
+ *
+ * <p>A caller that can play the input as it is may skip the resampler while passesThrough() says
+ * process() would only copy: drain() hands back what is held for the filter, then skip() keeps
+ * just enough of each burst to filter the next slip.
+ */
+final class DriftResampler {
+  static final int TAPS = 32;
+  static final int PHASES = 256;
+  static final double CUTOFF = 0.95;
+  static final double KAISER_BETA = 7.0;
+
+  // Output frames over which a single frame is dropped or repeated. A power of two, so the ratio
+  // for it and the positions it visits are exact and the position is whole again afterwards.
+  static final int SLIP_FRAMES = 128;
+
+  // Corrections at least this far from 1 are resampled continuously rather than slipped
+  static final double SLIP_LIMIT = 0.5 / SLIP_FRAMES;
+
+  // (PHASES + 1) rows of TAPS coefficients, the extra row makes interpolation simpler
+  private static final float[] FILTER = buildFilter();
+
+  private final int channels;
+  private final PcmFormat format;
+  private final float[] coefs = new float[TAPS];
+
+  // Interleaved input frames still needed for upcoming output frames
+  private final float[] history;
+  private int historyFrames;
+
+  // Position of the next output frame, in frames from the start of history. Whole while passing
+  // through.
+  private double position;
+
+  // Input frames still to be dropped, or repeated if negative
+  private double slip;
+  // Output frames left of the current slip and the ratio during it
+  private int slipRemaining;
+  private double slipRatio;
+
+  DriftResampler(int channels, PcmFormat format, int maxInFrames) {
+    this.channels = channels;
+    this.format = format;
+    history = new float[(TAPS + maxInFrames) * channels];
+    reset();
+  }
+
+  /** Forget all history and start again with silence. */
+  void reset() {
+    Arrays.fill(history, 0);
+    historyFrames = TAPS - 1;
+    position = TAPS / 2 - 1;
+    slip = 0;
+    slipRemaining = 0;
+  }
+
+  /**
+   * Most number of output samples that a call with inFrames input frames can produce, at the
+   * lowest ratio the drift correction and a refilling JitterBuffer can ask for together.
+   */
+  static int maxOutSamples(int inFrames, int channels) {
+    double minRatio = (1.0 - DriftEstimator.MAX_CORRECTION) * JitterBuffer.REFILL_SPEED;
+    return (int) ((inFrames + TAPS) / minRatio + 1) * channels;
+  }
+
+  /**
+   * Resample PCM in the format given to the constructor. All of in is consumed and the output is
+   * put into out as floats scaled to -1..1.
+   *
+   * @param in input samples from position to limit, a whole number of frames
+   * @param ratio input frames consumed per output frame
+   * @param out receives the output, needs room for maxOutSamples() from off
+   * @param off where in out to start
+   * @return number of output samples written
+   */
+  int process(ByteBuffer in, double ratio, float[] out, int off) {
+    int inSamples = format.toFloat(in, history, historyFrames * channels);
+    historyFrames += inSamples / channels;
+
+    boolean continuous = Math.abs(ratio - 1) >= SLIP_LIMIT;
+    if (continuous && slipRemaining > 0) {
+      // The rest of the slip is left to be made up later
+      slip += slipRemaining * (slipRatio - 1);
+      slipRemaining = 0;
+    } else if (!continuous && slipRemaining == 0 && position != Math.rint(position)) {
+      // Back from resampling continuously, line up with the input frames again over one slip
+      double whole = Math.rint(position) + SLIP_FRAMES;
+      slipRatio = (whole - position) / SLIP_FRAMES;
+      slip -= whole - position - SLIP_FRAMES;
+      slipRemaining = SLIP_FRAMES;
+    }
+
+    int outSamples = 0;
+    int lastStart = historyFrames - TAPS;
+    while (true) {
+      int ip = (int) position;
+      int start = ip - TAPS / 2 + 1;
+      if (start > lastStart) {
+        break;
+      }
+
+      if (continuous) {
+        filter(start, position - ip, out, off + outSamples);
+        outSamples += channels;
+        position += ratio;
+        continue;
+      }
+
+      slip += ratio - 1;
+      if (slipRemaining == 0 && Math.abs(slip) >= 1) {
+        slipRatio = slip > 0 ? 1 + 1.0 / SLIP_FRAMES : 1 - 1.0 / SLIP_FRAMES;
+        slip -= Math.signum(slip);
+        slipRemaining = SLIP_FRAMES;
+      }
+      if (slipRemaining > 0) {
+        filter(start, position - ip, out, off + outSamples);
+        outSamples += channels;
+        position += slipRatio;
+        if (--slipRemaining == 0) {
+          // Already whole after a slip of one frame, rounds off the end of lining up
+          position = Math.rint(position);
+        }
+      } else {
+        System.arraycopy(history, ip * channels, out, off + outSamples, channels);
+        outSamples += channels;
+        position += 1;
+      }
+    }
+
+    dropHistory();
+    return outSamples;
+  }
+
+  /**
+   * Whether process() would only copy inFrames input frames at ratio, with no slip going on or
+   * starting.
+   */
+  boolean passesThrough(int inFrames, double ratio) {
+    return Math.abs(ratio - 1) < SLIP_LIMIT
+        && slipRemaining == 0
+        && position == Math.rint(position)
+        && Math.abs(slip + inFrames * (ratio - 1)) < 1;
+  }
+
+  /**
+   * Puts the input frames held back for the filter into out at off, unchanged. Only while
+   * passesThrough(). Returns the number of samples written.
+   */
+  int drain(float[] out, int off) {
+    int ip = (int) position;
+    int samples = (historyFrames - ip) * channels;
+    System.arraycopy(history, ip * channels, out, off, samples);
+    position = historyFrames;
+    dropHistory();
+    return samples;
+  }
+
+  /**
+   * Takes note of input from position to limit of in that was played without process(), after a
+   * drain(). Only its last frames are kept, for the filter to look back on.
+   */
+  void skip(ByteBuffer in, double ratio) {
+    int bytesPerFrame = format.bytesPerSample * channels;
+    int frames = in.remaining() / bytesPerFrame;
+    slip += frames * (ratio - 1);
+    int p = in.position();
+    in.position(in.limit() - Math.min(frames, TAPS / 2 - 1) * bytesPerFrame);
+    historyFrames += format.toFloat(in, history, historyFrames * channels) / channels;
+    in.position(p);
+    position = historyFrames;
+    dropHistory();
+  }
+
+  /** Drops the frames the next output frame no longer needs. */
+  private void dropHistory() {
+    int drop = (int) position - TAPS / 2 + 1;
+    if (drop > 0) {
+      System.arraycopy(
+          history, drop * channels, history, 0, (historyFrames - drop) * channels);
+      historyFrames -= drop;
+      position -= drop;
+    }
+  }
+
+  /** Puts one output frame at start plus TAPS / 2 - 1 plus frac into out at off. */
+  private void filter(int start, double frac, float[] out, int off) {
+    // In double, a float product can round up to PHASES and index past the last row
+    double phase = frac * PHASES;
+    int row = (int) phase;
+    float a = (float) (phase - row);
+    int c0 = row * TAPS;
+    int c1 = c0 + TAPS;
+    for (int k = 0; k < TAPS; k++) {
+      coefs[k] = FILTER[c0 + k] + a * (FILTER[c1 + k] - FILTER[c0 + k]);
+    }
+
+    int s = start * channels;
+    for (int ch = 0; ch < channels; ch++) {
+      float acc = 0;
+      for (int k = 0, j = s + ch; k < TAPS; k++, j += channels) {
+        acc += coefs[k] * history[j];
+      }
+      out[off + ch] = acc;
+    }
+  }
+
+  private static float[] buildFilter() {
+    float[] filter = new float[(PHASES + 1) * TAPS];
+    for (int p = 0; p <= PHASES; p++) {
+      double frac = (double) p / PHASES;
+      double sum = 0;
+      for (int k = 0; k < TAPS; k++) {
+        double x = k - TAPS / 2 + 1 - frac;
+        double w = x / (TAPS / 2);
+        double window = besselI0(KAISER_BETA * Math.sqrt(Math.max(0, 1 - w * w)));
+        double h = CUTOFF * sinc(CUTOFF * x) * window;
+        filter[p * TAPS + k] = (float) h;
+        sum += h;
+      }
+      // Unity gain at DC for every phase
+      for (int k = 0; k < TAPS; k++) {
+        filter[p * TAPS + k] /= (float) sum;
+      }
+    }
+
+    // The first and the extra last row fall on an input frame, take just that one
+    for (int p : new int[] {0, PHASES}) {
+      Arrays.fill(filter, p * TAPS, (p + 1) * TAPS, 0);
+      filter[p * TAPS + TAPS / 2 - 1 + p / PHASES] = 1;
+    }
+    return filter;
+  }
+
+  private static double sinc(double x) {
+    if (x == 0) {
+      return 1;
+    }
+    return Math.sin(Math.PI * x) / (Math.PI * x);
+  }
+
+  private static double besselI0(double x) {
+    double sum = 1;
+    double term = 1;
+    for (int k = 1; k < 32; k++) {
+      term *= (x / (2 * k)) * (x / (2 * k));
+      sum += term;
+    }
+    return sum;
+  }
+}
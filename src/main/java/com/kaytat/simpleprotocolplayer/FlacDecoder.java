@@ -0,0 +1,675 @@
+/*
+ * Copyright (C) 2014 kaytat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kaytat.simpleprotocolplayer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Decodes a FLAC stream into PCM for a PcmSink, at the bit depth of the stream.
+ *
+ * <p>Bytes are pushed in as they arrive. A frame is only decoded once all of it is there: if the
+ * bit reader runs past the received data it sets an underflow flag, the attempt is abandoned and
+ * tried again when more has arrived. A frame whose header or CRC doesn't check out is skipped by
+ * searching for the next sync code, so the decoder can join a stream at any point.
+ *
+ * <p>The optional "fLaC" marker and metadata blocks at the start of a stream are parsed for the
+ * STREAMINFO block and otherwise skipped. All buffers are sized up front or grown only when a
+ * larger block size shows up, so decoding a frame doesn't allocate.
+ *
+ * <p>Streams of up to 16 bits come out as S16 and deeper ones as S24, so the output is bit-exact.
+ * Depths in between are scaled up to fill the samples. The format, with the rate and channels, is
+ * passed to the sink before the first frame and whenever it changes. Only used from the network
+ * thread.
+ */
+final class FlacDecoder implements StreamDecoder {
+  static final int INPUT_BYTES = 512 * 1024;
+  static final int MAX_CHANNELS = 8;
+  static final int MAX_BITS_PER_SAMPLE = 24;
+
+  // Frame sync code, 14 bits followed by a reserved zero bit
+  static final int SYNC = 0xfff8;
+
+  private static final int[] CRC8 = buildCrcTable(0x07, 8);
+  private static final int[] CRC16 = buildCrcTable(0x8005, 16);
+
+  private final PcmSink sink;
+
+  // Received bytes not consumed yet, with room for the bit reader to look ahead
+  private final byte[] input = new byte[INPUT_BYTES + 8];
+  private int inputStart;
+  private int inputEnd;
+
+  // Bit reader over input, the limit is the end of the received data
+  private long bitPos;
+  private long limitBits;
+  private boolean underflow;
+
+  // Metadata at the start of the stream
+  private boolean streamStart = true;
+  private boolean inMetadata;
+  int streamSampleRate;
+  int streamChannels;
+  int streamBitsPerSample;
+
+  // Frame being decoded
+  int blockSize;
+  int sampleRate;
+  int channels;
+  int bitsPerSample;
+  private int channelAssignment;
+
+  private int[][] samples = new int[MAX_CHANNELS][0];
+  private final long[] lpcCoefs = new long[32];
+  private ByteBuffer output = ByteBuffer.allocateDirect(0);
+
+  // Format of the last frame handed on, a change is passed on to the sink
+  private int outputSampleRate;
+  private int outputChannels;
+  private PcmFormat outputEncoding;
+
+  // Bytes in the buffer before another decode is worth trying
+  private int wantBytes;
+
+  private long frames;
+  private long errors;
+  private long totalDecodeNanos;
+  private long maxDecodeNanos;
+
+  FlacDecoder(PcmSink sink) {
+    this.sink = sink;
+  }
+
+  /** Encoding that holds samples of bitsPerSample bits without rounding. */
+  static PcmFormat encoding(int bitsPerSample) {
+    return bitsPerSample <= 16 ? PcmFormat.S16 : PcmFormat.S24;
+  }
+
+  @Override
+  public void write(byte[] data, int off, int len) throws IOException, InterruptedException {
+    while (len > 0) {
+      if (inputEnd == INPUT_BYTES) {
+        compact();
+        if (inputEnd == INPUT_BYTES) {
+          // A whole buffer without a good frame, throw it away and search again
+          errors++;
+          inputStart = inputEnd = 0;
+        }
+      }
+      int n = Math.min(len, INPUT_BYTES - inputEnd);
+      System.arraycopy(data, off, input, inputEnd, n);
+      inputEnd += n;
+      off += n;
+      len -= n;
+      decodeAvailable();
+    }
+  }
+
+  @Override
+  public void writeFrame(byte[] data, int off, int len) throws IOException, InterruptedException {
+    // Frames are found by their sync code, packet boundaries don't matter
+    write(data, off, len);
+  }
+
+  @Override
+  public void reset() {
+    inputStart = inputEnd = 0;
+    streamStart = true;
+    inMetadata = false;
+    wantBytes = 0;
+    outputSampleRate = outputChannels = 0;
+    outputEncoding = null;
+  }
+
+  @Override
+  public String stats() {
+    String stats =
+        "flac frames:" + frames
+            + " errors:" + errors
+            + " avgDecodeUs:" + totalDecodeNanos / Math.max(1, frames) / 1000
+            + " maxDecodeUs:" + maxDecodeNanos / 1000;
+    maxDecodeNanos = 0;
+    return stats;
+  }
+
+  @Override
+  public void release() {}
+
+  long frames() {
+    return frames;
+  }
+
+  long errors() {
+    return errors;
+  }
+
+  private void compact() {
+    System.arraycopy(input, inputStart, input, 0, inputEnd - inputStart);
+    inputEnd -= inputStart;
+    inputStart = 0;
+  }
+
+  private void decodeAvailable() throws InterruptedException {
+    while (inputEnd - inputStart >= Math.max(wantBytes, 4)) {
+      if (streamStart) {
+        streamStart = false;
+        inMetadata = input[inputStart] == 'f' && input[inputStart + 1] == 'L'
+            && input[inputStart + 2] == 'a' && input[inputStart + 3] == 'C';
+        if (inMetadata) {
+          inputStart += 4;
+        }
+        continue;
+      }
+      if (inMetadata) {
+        if (!readMetadataBlock()) {
+          return;
+        }
+        continue;
+      }
+
+      // Line up on the next sync code
+      int end = inputEnd - 1;
+      while (inputStart < end
+          && ((input[inputStart] & 0xff) << 8 | (input[inputStart + 1] & 0xfe)) != SYNC) {
+        inputStart++;
+      }
+      if (inputStart >= end) {
+        return;
+      }
+
+      long start = System.nanoTime();
+      int frameBytes = decodeFrame();
+      if (frameBytes == 0) {
+        // Try again with at least one more read worth of data
+        wantBytes = inputEnd - inputStart + 1;
+        return;
+      }
+      wantBytes = 0;
+      if (frameBytes < 0) {
+        errors++;
+        inputStart++;
+        continue;
+      }
+
+      inputStart += frameBytes;
+      writeOutput();
+      long decodeNanos = System.nanoTime() - start;
+      frames++;
+      totalDecodeNanos += decodeNanos;
+      maxDecodeNanos = Math.max(maxDecodeNanos, decodeNanos);
+    }
+  }
+
+  /** Returns false if the whole block hasn't arrived yet. */
+  private boolean readMetadataBlock() {
+    int header = input[inputStart] & 0xff;
+    int length =
+        (input[inputStart + 1] & 0xff) << 16
+            | (input[inputStart + 2] & 0xff) << 8
+            | (input[inputStart + 3] & 0xff);
+    if (inputEnd - inputStart < 4 + length) {
+      wantBytes = 4 + length;
+      return false;
+    }
+    wantBytes = 0;
+
+    if ((header & 0x7f) == 0 && length >= 18) {
+      // STREAMINFO
+      startReading(inputStart + 4, inputStart + 4 + length);
+      readBits(16);
+      int maxBlockSize = readBits(16);
+      readBits(24);
+      readBits(24);
+      streamSampleRate = readBits(20);
+      streamChannels = readBits(3) + 1;
+      streamBitsPerSample = readBits(5) + 1;
+      ensureCapacity(maxBlockSize, streamChannels, streamBitsPerSample);
+    }
+    inMetadata = (header & 0x80) == 0;
+    inputStart += 4 + length;
+    return true;
+  }
+
+  private void ensureCapacity(int blockSize, int channels, int bitsPerSample) {
+    if (samples[0].length < blockSize) {
+      for (int ch = 0; ch < MAX_CHANNELS; ch++) {
+        samples[ch] = new int[blockSize];
+      }
+    }
+    int outputBytes = blockSize * channels * encoding(bitsPerSample).bytesPerSample;
+    if (output.capacity() < outputBytes) {
+      output = ByteBuffer.allocateDirect(outputBytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+  }
+
+  /**
+   * Decodes the frame at inputStart into samples. Returns its length in bytes, 0 if it hasn't
+   * completely arrived yet or -1 if it isn't valid.
+   */
+  private int decodeFrame() {
+    startReading(inputStart, inputEnd);
+    if (!readFrameHeader()) {
+      return underflow ? 0 : -1;
+    }
+    ensureCapacity(blockSize, channels, bitsPerSample);
+
+    for (int ch = 0; ch < channels; ch++) {
+      // The side channel needs one more bit
+      int bps = bitsPerSample;
+      if ((channelAssignment == 8 && ch == 1)
+          || (channelAssignment == 9 && ch == 0)
+          || (channelAssignment == 10 && ch == 1)) {
+        bps++;
+      }
+      if (!readSubframe(samples[ch], bps)) {
+        return underflow ? 0 : -1;
+      }
+    }
+
+    // Byte align then check the CRC-16 of the whole frame
+    bitPos = (bitPos + 7) & ~7L;
+    int crcEnd = (int) (bitPos >>> 3);
+    int crc = readBits(16);
+    if (underflow) {
+      return 0;
+    }
+    if (crc(CRC16, 16, inputStart, crcEnd) != crc) {
+      return -1;
+    }
+    decorrelate();
+    return crcEnd + 2 - inputStart;
+  }
+
+  private boolean readFrameHeader() {
+    int headerStart = inputStart;
+    readBits(15);
+    readBits(1);
+    int blockSizeCode = readBits(4);
+    int sampleRateCode = readBits(4);
+    channelAssignment = readBits(4);
+    int sampleSizeCode = readBits(3);
+    if (readBits(1) != 0 || underflow) {
+      return false;
+    }
+
+    // Frame or sample number, UTF-8 style coding of up to 36 bits
+    int first = readBits(8);
+    int extra = 0;
+    if ((first & 0x80) != 0) {
+      if ((first & 0xc0) == 0x80 || first == 0xff) {
+        return false;
+      }
+      while ((first << (extra + 1) & 0x80) != 0) {
+        extra++;
+      }
+    }
+    for (int i = 0; i < extra; i++) {
+      if ((readBits(8) & 0xc0) != 0x80) {
+        return false;
+      }
+    }
+
+    if (blockSizeCode == 0) {
+      return false;
+    } else if (blockSizeCode == 1) {
+      blockSize = 192;
+    } else if (blockSizeCode <= 5) {
+      blockSize = 576 << (blockSizeCode - 2);
+    } else if (blockSizeCode == 6) {
+      blockSize = readBits(8) + 1;
+    } else if (blockSizeCode == 7) {
+      blockSize = readBits(16) + 1;
+    } else {
+      blockSize = 256 << (blockSizeCode - 8);
+    }
+
+    switch (sampleRateCode) {
+      case 0:
+        sampleRate = streamSampleRate;
+        break;
+      case 12:
+        sampleRate = readBits(8) * 1000;
+        break;
+      case 13:
+        sampleRate = readBits(16);
+        break;
+      case 14:
+        sampleRate = readBits(16) * 10;
+        break;
+      case 15:
+        return false;
+      default:
+        sampleRate = SAMPLE_RATES[sampleRateCode];
+        break;
+    }
+
+    if (channelAssignment < 8) {
+      channels = channelAssignment + 1;
+    } else if (channelAssignment <= 10) {
+      channels = 2;
+    } else {
+      return false;
+    }
+
+    bitsPerSample = sampleSizeCode == 0 ? streamBitsPerSample : SAMPLE_SIZES[sampleSizeCode];
+    if (bitsPerSample <= 0 || bitsPerSample > MAX_BITS_PER_SAMPLE) {
+      return false;
+    }
+
+    int crc = readBits(8);
+    if (underflow) {
+      return false;
+    }
+    return crc(CRC8, 8, headerStart, (int) (bitPos >>> 3) - 1) == crc;
+  }
+
+  private boolean readSubframe(int[] out, int bps) {
+    if (readBits(1) != 0) {
+      return false;
+    }
+    int type = readBits(6);
+    int wasted = 0;
+    if (readBits(1) != 0) {
+      wasted = readUnary() + 1;
+      bps -= wasted;
+    }
+    if (underflow || bps <= 0) {
+      return false;
+    }
+
+    int n = blockSize;
+    if (type == 0) {
+      int v = readSigned(bps);
+      for (int i = 0; i < n; i++) {
+        out[i] = v;
+      }
+    } else if (type == 1) {
+      for (int i = 0; i < n; i++) {
+        out[i] = readSigned(bps);
+      }
+    } else if (type >= 8 && type <= 12) {
+      int order = type - 8;
+      if (order > n) {
+        return false;
+      }
+      for (int i = 0; i < order; i++) {
+        out[i] = readSigned(bps);
+      }
+      if (!readResidual(out, order)) {
+        return false;
+      }
+      restoreFixed(out, order);
+    } else if (type >= 32) {
+      int order = type - 31;
+      if (order > n) {
+        return false;
+      }
+      for (int i = 0; i < order; i++) {
+        out[i] = readSigned(bps);
+      }
+      int precision = readBits(4) + 1;
+      int shift = readSigned(5);
+      if (precision == 16 || shift < 0) {
+        return false;
+      }
+      for (int i = 0; i < order; i++) {
+        lpcCoefs[i] = readSigned(precision);
+      }
+      if (!readResidual(out, order)) {
+        return false;
+      }
+      restoreLpc(out, order, shift);
+    } else {
+      return false;
+    }
+    if (underflow) {
+      return false;
+    }
+
+    if (wasted > 0) {
+      for (int i = 0; i < n; i++) {
+        out[i] <<= wasted;
+      }
+    }
+    return true;
+  }
+
+  /** Reads the Rice coded residual into out after the warm-up samples. */
+  private boolean readResidual(int[] out, int order) {
+    int method = readBits(2);
+    if (method > 1) {
+      return false;
+    }
+    int paramBits = method == 0 ? 4 : 5;
+    int escape = method == 0 ? 15 : 31;
+    int partitionOrder = readBits(4);
+    int partitions = 1 << partitionOrder;
+    int partitionSamples = blockSize >> partitionOrder;
+    if (partitionSamples << partitionOrder != blockSize || partitionSamples < order) {
+      return false;
+    }
+
+    int i = order;
+    for (int p = 0; p < partitions && !underflow; p++) {
+      int end = (p + 1) * partitionSamples;
+      int param = readBits(paramBits);
+      if (param == escape) {
+        int bits = readBits(5);
+        for (; i < end; i++) {
+          out[i] = readSigned(bits);
+        }
+      } else {
+        for (; i < end; i++) {
+          int q = readUnary();
+          int v = (q << param) | readBits(param);
+          out[i] = (v >>> 1) ^ -(v & 1);
+        }
+      }
+    }
+    return !underflow;
+  }
+
+  private void restoreFixed(int[] s, int order) {
+    int n = blockSize;
+    switch (order) {
+      case 1:
+        for (int i = 1; i < n; i++) {
+          s[i] += s[i - 1];
+        }
+        break;
+      case 2:
+        for (int i = 2; i < n; i++) {
+          s[i] += 2 * s[i - 1] - s[i - 2];
+        }
+        break;
+      case 3:
+        for (int i = 3; i < n; i++) {
+          s[i] += 3 * s[i - 1] - 3 * s[i - 2] + s[i - 3];
+        }
+        break;
+      case 4:
+        for (int i = 4; i < n; i++) {
+          s[i] += 4 * s[i - 1] - 6 * s[i - 2] + 4 * s[i - 3] - s[i - 4];
+        }
+        break;
+      default:
+        break;
+    }
+  }
+
+  private void restoreLpc(int[] s, int order, int shift) {
+    long[] c = lpcCoefs;
+    for (int i = order; i < blockSize; i++) {
+      long sum = 0;
+      for (int j = 0; j < order; j++) {
+        sum += c[j] * s[i - 1 - j];
+      }
+      s[i] += (int) (sum >> shift);
+    }
+  }
+
+  private void decorrelate() {
+    int[] a = samples[0];
+    int[] b = samples[1];
+    int n = blockSize;
+    switch (channelAssignment) {
+      case 8:
+        // left, side
+        for (int i = 0; i < n; i++) {
+          b[i] = a[i] - b[i];
+        }
+        break;
+      case 9:
+        // side, right
+        for (int i = 0; i < n; i++) {
+          a[i] += b[i];
+        }
+        break;
+      case 10:
+        // mid, side
+        for (int i = 0; i < n; i++) {
+          int side = b[i];
+          int mid = (a[i] << 1) | (side & 1);
+          a[i] = (mid + side) >> 1;
+          b[i] = (mid - side) >> 1;
+        }
+        break;
+      default:
+        break;
+    }
+  }
+
+  private void writeOutput() throws InterruptedException {
+    // Without STREAMINFO a frame may not say its rate, then it is taken to be unchanged
+    PcmFormat encoding = encoding(bitsPerSample);
+    if (sampleRate > 0
+        && (sampleRate != outputSampleRate
+            || channels != outputChannels
+            || encoding != outputEncoding)) {
+      outputSampleRate = sampleRate;
+      outputChannels = channels;
+      outputEncoding = encoding;
+      sink.formatChanged(new StreamFormat(sampleRate, channels, encoding));
+    }
+
+    ByteBuffer out = output;
+    out.clear();
+    if (encoding == PcmFormat.S16) {
+      int up = 16 - bitsPerSample;
+      for (int i = 0; i < blockSize; i++) {
+        for (int ch = 0; ch < channels; ch++) {
+          out.putShort((short) (samples[ch][i] << up));
+        }
+      }
+    } else {
+      int up = 24 - bitsPerSample;
+      for (int i = 0; i < blockSize; i++) {
+        for (int ch = 0; ch < channels; ch++) {
+          int v = samples[ch][i] << up;
+          out.put((byte) v).put((byte) (v >> 8)).put((byte) (v >> 16));
+        }
+      }
+    }
+    out.flip();
+    sink.offer(out);
+  }
+
+  private void startReading(int start, int end) {
+    bitPos = (long) start << 3;
+    limitBits = (long) end << 3;
+    underflow = false;
+  }
+
+  /** Reads n bits, 0 to 32, as an unsigned value. */
+  private int readBits(int n) {
+    if (n == 0) {
+      return 0;
+    }
+    if (bitPos + n > limitBits) {
+      underflow = true;
+      bitPos = limitBits;
+      return 0;
+    }
+    int i = (int) (bitPos >>> 3);
+    long window =
+        (input[i] & 0xffL) << 56
+            | (input[i + 1] & 0xffL) << 48
+            | (input[i + 2] & 0xffL) << 40
+            | (input[i + 3] & 0xffL) << 32
+            | (input[i + 4] & 0xffL) << 24;
+    int value = (int) ((window << (bitPos & 7)) >>> (64 - n));
+    bitPos += n;
+    return value;
+  }
+
+  private int readSigned(int n) {
+    if (n == 0) {
+      return 0;
+    }
+    return readBits(n) << (32 - n) >> (32 - n);
+  }
+
+  /** Counts zero bits up to and including the next one bit. */
+  private int readUnary() {
+    int count = 0;
+    while (true) {
+      if (bitPos >= limitBits) {
+        underflow = true;
+        return count;
+      }
+      int bit = (int) (bitPos & 7);
+      int b = (input[(int) (bitPos >>> 3)] << bit) & 0xff;
+      if (b != 0) {
+        int zeros = Integer.numberOfLeadingZeros(b) - 24;
+        bitPos += zeros + 1;
+        return count + zeros;
+      }
+      count += 8 - bit;
+      bitPos += 8 - bit;
+    }
+  }
+
+  private int crc(int[] table, int width, int start, int end) {
+    int crc = 0;
+    int mask = (1 << width) - 1;
+    for (int i = start; i < end; i++) {
+      crc = ((crc << 8) ^ table[(crc >>> (width - 8)) ^ (input[i] & 0xff)]) & mask;
+    }
+    return crc;
+  }
+
+  private static int[] buildCrcTable(int polynomial, int width) {
+    int[] table = new int[256];
+    int top = 1 << (width - 1);
+    int mask = (1 << width) - 1;
+    for (int i = 0; i < 256; i++) {
+      int crc = i << (width - 8);
+      for (int bit = 0; bit < 8; bit++) {
+        crc = (crc & top) != 0 ? (crc << 1) ^ polynomial : crc << 1;
+      }
+      table[i] = crc & mask;
+    }
+    return table;
+  }
+
+  private static final int[] SAMPLE_RATES = {
+    0, 88200, 176400, 192000, 8000, 16000, 22050, 24000, 32000, 44100, 48000, 96000
+  };
+
+  private static final int[] SAMPLE_SIZES = {0, 8, 12, 0, 16, 20, 24, 32};
+}
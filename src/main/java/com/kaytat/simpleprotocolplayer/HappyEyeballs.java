@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2014 kaytat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kaytat.simpleprotocolplayer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Races TCP connections to a list of servers as in RFC 8305 (happy eyeballs). Attempts start
+ * ATTEMPT_DELAY_NANOS apart, or straight away once the one before has failed, and the first
+ * connection with data to read wins. The others are closed.
+ *
+ * <p>Candidates are tried server by server in the order given, each with its IPv6 and IPv4
+ * addresses taking turns. Earlier servers get a head start, but there is no preference beyond
+ * that: whichever connection has data first wins, even if it is to a later server.
+ *
+ * <p>Single use. Either connect() blocks on a selector of its own, or a selector shared with other
+ * work drives the race through poll() and ready(). close() may be called from any thread to give
+ * up.
+ */
+final class HappyEyeballs implements Closeable {
+  // The connection attempt delay RFC 8305 recommends
+  static final long ATTEMPT_DELAY_NANOS = 250_000_000L;
+
+  private final List<InetSocketAddress> candidates;
+  private final Selector selector;
+  private final boolean ownSelector;
+  private final long deadline;
+  private final List<SocketChannel> attempts = new ArrayList<>();
+  private int next;
+  private long nextStartNanos;
+  private IOException error;
+  private SocketChannel winner;
+  private volatile boolean closed;
+
+  /** Races on a selector of its own, see connect(). */
+  HappyEyeballs(List<InetSocketAddress> candidates, int timeoutMs) throws IOException {
+    this(candidates, timeoutMs, Selector.open(), true);
+  }
+
+  /**
+   * Races on a shared selector. The keys of the attempts have this as their attachment and go to
+   * ready() when selected.
+   */
+  HappyEyeballs(List<InetSocketAddress> candidates, int timeoutMs, Selector selector) {
+    this(candidates, timeoutMs, selector, false);
+  }
+
+  private HappyEyeballs(
+      List<InetSocketAddress> candidates, int timeoutMs, Selector selector, boolean ownSelector) {
+    this.candidates = candidates;
+    this.selector = selector;
+    this.ownSelector = ownSelector;
+    nextStartNanos = System.nanoTime();
+    deadline = nextStartNanos + timeoutMs * 1_000_000L;
+  }
+
+  /**
+   * Addresses to try for the given servers, see above. Servers that can't be resolved are left out
+   * unless none can.
+   */
+  static List<InetSocketAddress> candidates(List<String> hosts, int port)
+      throws UnknownHostException {
+    List<InetSocketAddress> candidates = new ArrayList<>();
+    UnknownHostException error = null;
+    for (String host : hosts) {
+      InetAddress[] addresses;
+      try {
+        addresses = StreamWarmup.resolve(host);
+      } catch (UnknownHostException e) {
+        error = e;
+        continue;
+      }
+      List<InetAddress> v6 = new ArrayList<>();
+      List<InetAddress> v4 = new ArrayList<>();
+      for (InetAddress address : addresses) {
+        (address instanceof Inet6Address ? v6 : v4).add(address);
+      }
+      for (int i = 0; i < Math.max(v6.size(), v4.size()); i++) {
+        if (i < v6.size()) {
+          candidates.add(new InetSocketAddress(v6.get(i), port));
+        }
+        if (i < v4.size()) {
+          candidates.add(new InetSocketAddress(v4.get(i), port));
+        }
+      }
+    }
+    if (candidates.isEmpty() && error != null) {
+      throw error;
+    }
+    return candidates;
+  }
+
+  /**
+   * Blocks until a connection wins, on the selector of its own. Returns the winning channel in
+   * non-blocking mode and no longer registered with anything.
+   */
+  SocketChannel connect() throws IOException {
+    try {
+      SocketChannel channel;
+      while ((channel = poll(System.nanoTime())) == null) {
+        if (Thread.interrupted()) {
+          throw new InterruptedIOException();
+        }
+        selector.select(Math.max(1, (wakeupNanos() - System.nanoTime()) / 1_000_000));
+        long now = System.nanoTime();
+        for (SelectionKey key : selector.selectedKeys()) {
+          ready(key, now);
+        }
+        selector.selectedKeys().clear();
+      }
+      return channel;
+    } catch (IOException e) {
+      closeAttempts(null);
+      throw e;
+    } finally {
+      // Also takes the winner off the selector so it can be used in any mode
+      selector.close();
+    }
+  }
+
+  /**
+   * Starts the attempts that are due. Returns the winning channel once there is one, still
+   * registered for OP_READ, and null while the race goes on. Throws SocketTimeoutException if
+   * nothing had data in time, the last connect error if every attempt failed and
+   * AsynchronousCloseException after close(). Either way everything else is closed.
+   */
+  SocketChannel poll(long now) throws IOException {
+    try {
+      if (closed) {
+        throw new AsynchronousCloseException();
+      }
+      if (winner != null) {
+        closeAttempts(winner);
+        return winner;
+      }
+      while (next < candidates.size() && now >= nextStartNanos) {
+        start(candidates.get(next++), now);
+      }
+      if (next >= candidates.size() && !racing()) {
+        throw error != null ? error : new ConnectException("no addresses");
+      }
+      if (now >= deadline) {
+        throw new SocketTimeoutException();
+      }
+      return null;
+    } catch (IOException e) {
+      closeAttempts(null);
+      throw e;
+    }
+  }
+
+  /** When poll() has to be called again at the latest. */
+  long wakeupNanos() {
+    return next < candidates.size() ? Math.min(nextStartNanos, deadline) : deadline;
+  }
+
+  /** Handles a selected key of one of the attempts. */
+  void ready(SelectionKey key, long now) {
+    SocketChannel channel = (SocketChannel) key.channel();
+    if (key.isConnectable()) {
+      try {
+        if (channel.finishConnect()) {
+          key.interestOps(SelectionKey.OP_READ);
+        }
+      } catch (IOException e) {
+        // Refused or unreachable, no need to wait for the next attempt
+        error = e;
+        key.cancel();
+        closeQuietly(channel);
+        nextStartNanos = now;
+      }
+    } else if (key.isReadable() && winner == null) {
+      winner = channel;
+    }
+  }
+
+  private void start(InetSocketAddress address, long now) throws IOException {
+    SocketChannel channel = SocketChannel.open();
+    attempts.add(channel);
+    try {
+      channel.configureBlocking(false);
+      boolean connected = channel.connect(address);
+      channel.register(
+          selector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+      nextStartNanos = now + ATTEMPT_DELAY_NANOS;
+    } catch (IOException e) {
+      error = e;
+      channel.close();
+    }
+  }
+
+  private boolean racing() {
+    for (SocketChannel channel : attempts) {
+      if (channel.isOpen()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void closeAttempts(SocketChannel keep) {
+    for (SocketChannel channel : attempts) {
+      if (channel != keep) {
+        closeQuietly(channel);
+      }
+    }
+  }
+
+  private static void closeQuietly(SocketChannel channel) {
+    try {
+      channel.close();
+    } catch (IOException e) {
+      // Nothing more to do with it
+    }
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    if (ownSelector) {
+      selector.wakeup();
+    }
+  }
+}
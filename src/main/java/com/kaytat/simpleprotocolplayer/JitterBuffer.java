@@ -0,0 +1,433 @@
+/*
+ * Copyright (C) 2014 kaytat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kaytat.simpleprotocolplayer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Adaptive jitter buffer between NetworkReadThread and BufferToAudioTrackThread.
+ *
+ * <p>The network side streams in whatever it has received and the audio side takes out bursts of
+ * its own size, so the two don't have to agree on a packet size. The target fill is kept in bytes.
+ * It never drops below what the measured arrival jitter needs and is raised by one burst whenever
+ * underruns happen more often than the configured rate. When a whole window passes without an
+ * underrun and the buffer never ran dry, the target is lowered again so latency stays as low as the
+ * network allows.
+ *
+ * <p>The target is what the buffer really holds. Playback only starts once it is filled up to the
+ * target, and after an underrun it fills up again before playing on. If the fill sinks to half the
+ * target while playing, because the target was raised or the network fell behind, the audio side
+ * is slowed down by REFILL_SPEED until it is back.
+ *
+ * <p>The network side never throws audio away. If the sender gets ahead, the audio side applies the
+ * OverflowPolicy before each burst, so the ring keeps a single writer and a single reader and the
+ * buffered latency never goes past the configured maximum for more than a burst.
+ *
+ * <p>The stream format can change on the fly. The network thread announces the new format and waits
+ * while the audio thread plays out what is left in the old one, then switches the buffer over. The
+ * ring is only ever replaced while its writer waits.
+ *
+ * <p>The network thread is the only writer and the audio thread the only reader.
+ */
+final class JitterBuffer implements PcmSink {
+  static final int MAX_TARGET_MS = 1000;
+
+  // How much faster CATCH_UP plays while over the limit
+  static final double CATCH_UP_SPEED = 1.01;
+
+  // How much slower playback runs while the fill is well below the target
+  static final double REFILL_SPEED = 0.99;
+
+  // How long the buffer has to run without an underrun before the target is lowered
+  static final long WINDOW_NANOS = 10_000_000_000L;
+
+  private final double underrunsPerNano;
+  private final OverflowPolicy overflowPolicy;
+  private final int maxLatencyMs;
+
+  // Depend on the format. Only changed in configure(), before the threads start or while the
+  // network thread waits in formatChanged().
+  private StreamFormat format;
+  private AudioRingBuffer ring;
+  private int bytesPerFrame;
+  private int bytesPerSecond;
+  private int burstBytes;
+  private long burstNanos;
+  private int maxTargetBytes;
+  private int maxLatencyBytes;
+  private LatencyProbe latencyProbe;
+
+  // Set by the network thread while it waits for the audio thread to switch formats
+  private volatile StreamFormat pendingFormat;
+
+  // Written by the network thread, read by the audio thread
+  private volatile long jitterNanos;
+  private long lastArrivalNanos;
+
+  // Written by the audio thread, read by the network thread
+  private volatile int targetBytes;
+
+  // Audio thread only
+  private boolean started;
+  // Set from an underrun until the next burst is taken, so a gap is only counted once
+  private boolean underrun;
+  // Filling up to the target before playing, at the start and after an underrun
+  private boolean buffering;
+  private boolean refilling;
+  private long lastTakeNanos;
+  private long windowStartNanos;
+  private int windowUnderruns;
+  private int windowMinFill;
+  // Underruns still allowed before the configured rate is exceeded
+  private double underrunBudget;
+  private boolean catchingUp;
+  // Read by other threads for statistics
+  private volatile long overflowBytes;
+
+  /**
+   * @param format format of the stream, the ring only ever holds whole frames
+   * @param burstBytes how much the audio thread takes out at a time
+   * @param initialTargetBytes fill to start with
+   * @param underrunsPerMinute underrun rate that is tolerated before the target is raised
+   * @param overflowPolicy what to do when the sender gets ahead
+   * @param maxLatencyMs the most audio that may be buffered
+   */
+  JitterBuffer(
+      StreamFormat format,
+      int burstBytes,
+      int initialTargetBytes,
+      float underrunsPerMinute,
+      OverflowPolicy overflowPolicy,
+      int maxLatencyMs) {
+    this.underrunsPerNano = underrunsPerMinute / 60_000_000_000.0;
+    this.overflowPolicy = overflowPolicy;
+    this.maxLatencyMs = maxLatencyMs;
+    configure(format, burstBytes, initialTargetBytes);
+  }
+
+  private void configure(StreamFormat format, int burstBytes, int initialTargetBytes) {
+    this.format = format;
+    this.bytesPerFrame = format.bytesPerFrame();
+    this.bytesPerSecond = format.bytesPerSecond();
+    this.burstBytes = burstBytes;
+    this.burstNanos = Math.max(1, bytesToNanos(burstBytes));
+    this.maxLatencyBytes =
+        Math.max(2 * burstBytes, alignToFrame((long) bytesPerSecond * maxLatencyMs / 1000));
+    // Leave room between the target and the maximum to absorb bursts of traffic
+    this.maxTargetBytes =
+        Math.min(
+            maxLatencyBytes / 2,
+            Math.max(burstBytes, alignToFrame((long) bytesPerSecond * MAX_TARGET_MS / 1000)));
+
+    // The maximum is only enforced once per burst, allow a second of slack on top
+    this.ring = new AudioRingBuffer(maxLatencyBytes + bytesPerSecond, bytesPerFrame);
+    this.latencyProbe = new LatencyProbe(bytesPerSecond);
+    jitterNanos = 0;
+    lastArrivalNanos = 0;
+    started = false;
+    underrun = false;
+    buffering = true;
+    refilling = false;
+    catchingUp = false;
+    setTarget(initialTargetBytes);
+  }
+
+  /**
+   * Network thread. Called before the first data in a new format, waits until the audio thread
+   * has played out the old one and switched over with applyFormat().
+   */
+  @Override
+  public void formatChanged(StreamFormat format) throws InterruptedException {
+    // The audio thread reads the old ring to the end, then wakes the writer from applyFormat()
+    AudioRingBuffer old = ring;
+    if (!announceFormat(format)) {
+      return;
+    }
+    Thread writer = Thread.currentThread();
+    Runnable unpark = () -> LockSupport.unpark(writer);
+    try {
+      while (true) {
+        old.setWriterListener(unpark);
+        if (pendingFormat == null) {
+          return;
+        }
+        LockSupport.park(this);
+        if (Thread.interrupted()) {
+          throw new InterruptedException();
+        }
+      }
+    } finally {
+      old.clearWriterListener(unpark);
+    }
+  }
+
+  /**
+   * Network thread. Like formatChanged() but doesn't wait, for a reader that can't block. Data in
+   * the new format may only be offered once pendingFormat() is null again. Returns false if the
+   * format is the current one.
+   */
+  boolean announceFormat(StreamFormat format) {
+    if (format.equals(this.format)) {
+      return false;
+    }
+    pendingFormat = format;
+    return true;
+  }
+
+  /**
+   * Audio thread. The format the network thread is waiting to switch to, or null. Everything in the
+   * ring is still in the current format.
+   */
+  StreamFormat pendingFormat() {
+    return pendingFormat;
+  }
+
+  /**
+   * Audio thread. Switches to pendingFormat() and lets the network thread carry on. What is left in
+   * the ring is less than a burst and dropped.
+   */
+  void applyFormat(int burstBytes, int initialTargetBytes) {
+    AudioRingBuffer old = ring;
+    configure(pendingFormat, burstBytes, initialTargetBytes);
+    pendingFormat = null;
+    old.wakeWriter();
+  }
+
+  StreamFormat format() {
+    return format;
+  }
+
+  /**
+   * Called by the network thread for every read. Only blocks if the audio thread has fallen so far
+   * behind that the ring is full, until it has read a frame.
+   */
+  void offer(byte[] data, int off, int len) throws InterruptedException {
+    arrived(len);
+    while (true) {
+      int n = ring.write(data, off, len);
+      off += n;
+      len -= n;
+      if (len == 0) {
+        return;
+      }
+      ring.awaitWritable(bytesPerFrame);
+    }
+  }
+
+  /** Same as offer() above, for data from position to limit of a ByteBuffer. */
+  @Override
+  public void offer(ByteBuffer data) throws InterruptedException {
+    arrived(data.remaining());
+    while (data.hasRemaining()) {
+      if (ring.write(data) == 0) {
+        ring.awaitWritable(bytesPerFrame);
+      }
+    }
+  }
+
+  /**
+   * Network thread. Like offer() but never waits, for a reader that can't block. Takes as much of
+   * data as fits in the ring and leaves the rest. Returns true if it took all of it.
+   */
+  boolean offerNow(ByteBuffer data) {
+    int n = Math.min(data.remaining(), ring.writable());
+    if (n > 0) {
+      arrived(n);
+      int limit = data.limit();
+      data.limit(data.position() + n);
+      ring.write(data);
+      data.limit(limit);
+    }
+    return !data.hasRemaining();
+  }
+
+  /**
+   * Network thread. Records the arrival of len bytes for the jitter estimate and the latency probe.
+   * The jitter is the interarrival jitter of RFC 3550 section 6.4.1, with the media time of the
+   * data standing in for the sender timestamps.
+   */
+  void arrived(int len) {
+    long now = System.nanoTime();
+    if (lastArrivalNanos != 0) {
+      long d = Math.abs((now - lastArrivalNanos) - bytesToNanos(len));
+      jitterNanos += (d - jitterNanos) / 16;
+    }
+    lastArrivalNanos = now;
+    latencyProbe.arrived(ring.writePosition() + len, now);
+  }
+
+  /**
+   * Network thread. The sender is connected again after a gap. The end of the old connection may
+   * have been part of a frame, and the gap says nothing about the jitter of the new one.
+   */
+  void reconnected() {
+    ring.dropPartialFrame();
+    lastArrivalNanos = 0;
+  }
+
+  AudioRingBuffer ring() {
+    return ring;
+  }
+
+  /** Replaced along with the ring when the format changes. */
+  LatencyProbe latencyProbe() {
+    return latencyProbe;
+  }
+
+  /** Size of the bursts the audio thread takes out. */
+  int burstBytes() {
+    return burstBytes;
+  }
+
+  /**
+   * Called by the audio thread. Waits at most timeoutNanos for a burst and returns true if it is
+   * available in ring(). At the start and after an underrun that is only once the ring has filled
+   * up to the target, unless a format change waits for the rest of the old format to be played.
+   */
+  boolean await(long timeoutNanos) throws InterruptedException {
+    applyOverflowPolicy();
+    int fill = ring.available();
+    if (started) {
+      long now = System.nanoTime();
+      underrunBudget = Math.min(1.0, underrunBudget + (now - lastTakeNanos) * underrunsPerNano);
+      lastTakeNanos = now;
+      windowMinFill = Math.min(windowMinFill, fill);
+      if (fill < burstBytes && !underrun) {
+        underrun = true;
+        buffering = true;
+        windowUnderruns++;
+        underrunBudget -= 1.0;
+        if (underrunBudget < 0) {
+          underrunBudget = 0;
+          setTarget(targetBytes + burstBytes);
+          resetWindow(now);
+        }
+      } else if (fill >= burstBytes && now - windowStartNanos >= WINDOW_NANOS) {
+        // Also re-applies the jitter floor in case the network got worse
+        boolean calm = windowUnderruns == 0 && windowMinFill >= burstBytes;
+        setTarget(calm ? targetBytes - burstBytes : targetBytes);
+        resetWindow(now);
+      }
+    }
+
+    int needed = burstBytes;
+    if (buffering && pendingFormat == null) {
+      needed = Math.max(burstBytes, targetBytes);
+    }
+    if (!ring.awaitAvailable(needed, Math.max(0, timeoutNanos))) {
+      return false;
+    }
+    underrun = false;
+    buffering = false;
+
+    if (!started) {
+      started = true;
+      lastTakeNanos = System.nanoTime();
+      resetWindow(lastTakeNanos);
+    }
+    return true;
+  }
+
+  private void applyOverflowPolicy() {
+    int fill = ring.available();
+    if (fill > maxLatencyBytes) {
+      int keep = overflowPolicy == OverflowPolicy.DROP_OLDEST ? maxLatencyBytes : targetBytes;
+      int dropped = ring.skip(alignToFrame(fill - keep));
+      overflowBytes += dropped;
+      fill -= dropped;
+    }
+    if (fill > limitBytes()) {
+      catchingUp = overflowPolicy == OverflowPolicy.CATCH_UP;
+    } else if (fill <= targetBytes) {
+      catchingUp = false;
+    }
+    if (fill < targetBytes / 2) {
+      refilling = true;
+    } else if (fill >= targetBytes) {
+      refilling = false;
+    }
+  }
+
+  /**
+   * Audio thread. Speed factor to apply on top of the drift correction for the next burst, above 1
+   * while CATCH_UP is working its way back to the target and below 1 while refilling up to it.
+   */
+  double speed() {
+    if (catchingUp) {
+      return CATCH_UP_SPEED;
+    }
+    return refilling ? REFILL_SPEED : 1.0;
+  }
+
+  /**
+   * Audio thread. While catching up a burst of silence can be skipped instead of played. Returns
+   * true if it was.
+   */
+  boolean skipBurst() {
+    if (!catchingUp) {
+      return false;
+    }
+    int n = ring.skip(burstBytes);
+    overflowBytes += n;
+    return true;
+  }
+
+  /** Total number of bytes thrown away by the overflow policy. */
+  long overflowBytes() {
+    return overflowBytes;
+  }
+
+  private void resetWindow(long now) {
+    windowStartNanos = now;
+    windowUnderruns = 0;
+    windowMinFill = Integer.MAX_VALUE;
+  }
+
+  private void setTarget(int bytes) {
+    // Enough to cover twice the jitter, plus the burst being played
+    int jitterFloor = nanosToBytes(2 * jitterNanos) + burstBytes;
+    bytes = Math.max(bytes, Math.max(burstBytes, jitterFloor));
+    targetBytes = Math.min(alignToFrame(bytes), maxTargetBytes);
+  }
+
+  /** Fill level the buffer aims for. */
+  int targetBytes() {
+    return targetBytes;
+  }
+
+  /** Fill level above which CATCH_UP starts working its way back to the target. */
+  int limitBytes() {
+    return Math.min(2 * targetBytes, maxLatencyBytes);
+  }
+
+  long jitterNanos() {
+    return jitterNanos;
+  }
+
+  long bytesToNanos(long bytes) {
+    return bytes * 1_000_000_000L / bytesPerSecond;
+  }
+
+  int nanosToBytes(long nanos) {
+    return alignToFrame(nanos * bytesPerSecond / 1_000_000_000L);
+  }
+
+  private int alignToFrame(long bytes) {
+    return (int) (bytes / bytesPerFrame * bytesPerFrame);
+  }
+}
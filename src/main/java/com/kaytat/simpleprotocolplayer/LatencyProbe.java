@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2014 kaytat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kaytat.simpleprotocolplayer;
+
+/**
+ * Measures how far behind the sender the output is.
+ *
+ * <p>The network side tells the probe when data arrives and what the sender's media time of it is,
+ * from RTP timestamps when the stream has them and from the position in the stream otherwise.
+ * Arrival time less media time is smallest for the data that got through the network the fastest,
+ * and that minimum stands in for the moment the sender captured it. The audio side works out when
+ * a frame will be heard from the sink's timestamps, so the latency is everything from the sender's
+ * socket to the speaker, including the device's own output latency. Only the sender's own
+ * buffering and the fastest trip through the network are left out.
+ *
+ * <p>The minimum is kept over a sliding window so it follows a sender whose clock drifts.
+ *
+ * <p>Positions are bytes in the JitterBuffer ring, counted like AudioRingBuffer.writePosition().
+ */
+final class LatencyProbe {
+  // The minimum is taken over at least this long and at most twice as long
+  static final long WINDOW_NANOS = 10_000_000_000L;
+
+  private final double nanosPerByte;
+
+  // Network thread
+  private double mediaMinusPositionNanos;
+  private long windowStartNanos;
+  private double windowMin;
+  private double previousMin;
+  private boolean rtp;
+  private long firstRtpTimestamp;
+  private long lastRtpTimestamp;
+  private long rtpWraps;
+
+  // Time the data at position 0 could have arrived at the earliest, NaN until known
+  private volatile double baseNanos = Double.NaN;
+
+  LatencyProbe(int bytesPerSecond) {
+    nanosPerByte = 1e9 / bytesPerSecond;
+    reset();
+  }
+
+  /** Network thread. The sender started over, forget what it has been doing so far. */
+  void reset() {
+    mediaMinusPositionNanos = 0;
+    windowStartNanos = 0;
+    windowMin = Double.MAX_VALUE;
+    previousMin = Double.MAX_VALUE;
+    rtp = false;
+    baseNanos = Double.NaN;
+  }
+
+  /**
+   * Network thread. The data about to be written at position starts at the given 32 bit RTP
+   * timestamp, which runs at sampleRate. Without this the position in the stream is its media time.
+   */
+  void rtpTimestamp(long position, long timestamp, int sampleRate) {
+    if (!rtp) {
+      rtp = true;
+      firstRtpTimestamp = timestamp;
+      lastRtpTimestamp = timestamp;
+      rtpWraps = 0;
+    }
+    // The timestamp starts anywhere and wraps around
+    if (timestamp < lastRtpTimestamp && lastRtpTimestamp - timestamp > 0x80000000L) {
+      rtpWraps++;
+    } else if (timestamp > lastRtpTimestamp && timestamp - lastRtpTimestamp > 0x80000000L) {
+      // A late packet from before the wrap
+      return;
+    }
+    lastRtpTimestamp = timestamp;
+    long samples = (rtpWraps << 32) + timestamp - firstRtpTimestamp;
+    mediaMinusPositionNanos = samples * 1e9 / sampleRate - position * nanosPerByte;
+  }
+
+  /** Network thread. Data up to position has arrived at now. */
+  void arrived(long position, long now) {
+    double offset = now - (position * nanosPerByte + mediaMinusPositionNanos);
+    if (now - windowStartNanos >= WINDOW_NANOS) {
+      previousMin = windowMin;
+      windowMin = Double.MAX_VALUE;
+      windowStartNanos = now;
+    }
+    windowMin = Math.min(windowMin, offset);
+    baseNanos = Math.min(windowMin, previousMin) + mediaMinusPositionNanos;
+  }
+
+  /**
+   * Audio thread. Latency of the data at position if it is heard at heardNanos, -1 if nothing has
+   * arrived yet.
+   */
+  long latencyNanos(long position, long heardNanos) {
+    double base = baseNanos;
+    if (Double.isNaN(base)) {
+      return -1;
+    }
+    return Math.max(0, Math.round(heardNanos - (position * nanosPerByte + base)));
+  }
+}
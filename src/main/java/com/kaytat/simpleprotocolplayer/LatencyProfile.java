@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2014 kaytat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kaytat.simpleprotocolplayer;
+
+import android.content.Context;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.os.Process;
+import android.util.Log;
+import java.util.Locale;
+
+/**
+ * The low latency profile, applied in one place instead of through separate settings. It asks for
+ * a fast AudioTrack fed in whole native bursts with a buffer of two of them, urgent audio priority
+ * for the threads that move the audio and a low latency Wi-Fi lock. Without it nothing changes and
+ * the performance mode and minimum buffer settings apply on their own.
+ *
+ * <p>Android may turn any of these down. What was granted is checked, logged and reported in the
+ * stream metrics, see toString().
+ */
+final class LatencyProfile {
+  // A fast track plays from a buffer this many native bursts long
+  static final int BURSTS_PER_BUFFER = 2;
+
+  static final String AUDIO_THREAD = "audio";
+  static final String NETWORK_THREAD = "net";
+
+  final boolean lowLatency;
+  // Output burst and rate of the device, 0 if it doesn't say
+  final int framesPerBurst;
+  final int nativeSampleRate;
+
+  // Null for the mixer, which only logs
+  private final StreamMetrics metrics;
+  private final String tag;
+
+  // What was granted, set from the threads concerned
+  private volatile String track = "-";
+  private volatile int bufferFrames;
+  private volatile int burstFrames;
+  private volatile Integer audioPriority;
+  private volatile Integer networkPriority;
+  private volatile String wifiLock = "-";
+
+  LatencyProfile(Context context, boolean lowLatency, StreamMetrics metrics, String tag) {
+    this.lowLatency = lowLatency;
+    this.metrics = metrics;
+    this.tag = tag;
+    AudioManager audioManager =
+        (AudioManager) context.getApplicationContext().getSystemService(Context.AUDIO_SERVICE);
+    framesPerBurst = property(audioManager, AudioManager.PROPERTY_OUTPUT_FRAMES_PER_BUFFER);
+    nativeSampleRate = property(audioManager, AudioManager.PROPERTY_OUTPUT_SAMPLE_RATE);
+    if (lowLatency) {
+      Log.d(tag, "framesPerBurst:" + framesPerBurst + " nativeSampleRate:" + nativeSampleRate);
+    }
+    report();
+  }
+
+  private static int property(AudioManager audioManager, String key) {
+    String value = audioManager != null ? audioManager.getProperty(key) : null;
+    try {
+      return value != null ? Integer.parseInt(value) : 0;
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  /**
+   * Frames to write to the track at a time, one native burst at the stream's rate. 0 without the
+   * profile or if the device doesn't say, then the usual sizes apply.
+   */
+  int burstFrames(int sampleRate) {
+    if (!lowLatency || framesPerBurst <= 0) {
+      return 0;
+    }
+    if (nativeSampleRate <= 0 || nativeSampleRate == sampleRate) {
+      return framesPerBurst;
+    }
+    return Math.max(1, (int) ((long) framesPerBurst * sampleRate / nativeSampleRate));
+  }
+
+  /**
+   * Checks whether the track came out fast and if so trims its buffer to BURSTS_PER_BUFFER bursts.
+   * A track that isn't fast keeps the buffer it was built with, it would underrun otherwise.
+   */
+  void trackBuilt(AudioTrack audioTrack, int burstFrames) {
+    boolean fast = audioTrack.getPerformanceMode() == AudioTrack.PERFORMANCE_MODE_LOW_LATENCY;
+    if (lowLatency && fast && burstFrames > 0) {
+      audioTrack.setBufferSizeInFrames(BURSTS_PER_BUFFER * burstFrames);
+    }
+    if (lowLatency && !fast) {
+      Log.w(tag, "no fast track, rate:" + audioTrack.getSampleRate()
+          + " native:" + nativeSampleRate);
+    }
+    track = fast ? "fast" : "normal";
+    this.burstFrames = burstFrames;
+    bufferFrames = audioTrack.getBufferSizeInFrames();
+    report();
+  }
+
+  /** Called by the thread itself as it starts. Raises its priority with the profile. */
+  void threadStarted(String role) {
+    if (lowLatency) {
+      try {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+      } catch (IllegalArgumentException | SecurityException e) {
+        Log.w(tag, "unable to raise " + role + " thread priority:" + e);
+      }
+    }
+    int priority = Process.getThreadPriority(Process.myTid());
+    if (AUDIO_THREAD.equals(role)) {
+      audioPriority = priority;
+    } else {
+      networkPriority = priority;
+    }
+    report();
+  }
+
+  /** The Wi-Fi lock held while playing, from WifiLockManager.heldMode(). */
+  void wifiLock(String mode) {
+    wifiLock = mode != null ? mode : "none";
+    report();
+  }
+
+  private void report() {
+    String description = toString();
+    if (metrics != null) {
+      metrics.profile(description);
+    }
+    if (lowLatency) {
+      Log.i(tag, "profile:" + description);
+    }
+  }
+
+  /** What is in effect, e.g. "low track:fast burst:96 buffer:192 prio:-19/-19 wifi:low_latency". */
+  @Override
+  public String toString() {
+    return String.format(
+        Locale.US,
+        "%s track:%s burst:%d buffer:%d prio:%s/%s wifi:%s",
+        lowLatency ? "low" : "default",
+        track,
+        burstFrames,
+        bufferFrames,
+        audioPriority != null ? audioPriority : "-",
+        networkPriority != null ? networkPriority : "-",
+        wifiLock);
+  }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2014 kaytat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kaytat.simpleprotocolplayer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Hides short gaps in the stream instead of letting AudioTrack run dry.
+ *
+ * <p>The last few milliseconds of real audio are kept. When a burst doesn't arrive in time they are
+ * played back and forth, ping-pong style so there is no jump where the loop turns around, while the
+ * level fades out. After the fade only silence is produced. When real audio comes back it is
+ * crossfaded in from wherever the concealment got to, so neither the start nor the end of a gap
+ * clicks.
+ *
+ * <p>Works on interleaved float samples, after the resampler. Audio played straight from the ring
+ * is kept as PCM and only converted when a gap starts. Only used from the audio thread, except for
+ * concealedFrames().
+ */
+final class LossConcealer {
+  static final int SOURCE_MS = 10;
+  static final int FADE_MS = 40;
+  static final int CROSSFADE_MS = 5;
+
+  private final int channels;
+  private final int fadeFrames;
+  private final int crossfadeFrames;
+
+  // The most recent frames of real audio, interleaved
+  private final float[] source;
+  private int sourceFrames;
+
+  // Instead of source, the most recent audio as PCM in sourceFormat if that was played last
+  private final ByteBuffer sourcePcm;
+  private PcmFormat sourceFormat;
+
+  // Position in the current gap
+  private boolean active;
+  private int readFrame;
+  private int step;
+  private int gapFrames;
+
+  private volatile long concealedFrames;
+
+  LossConcealer(int sampleRate, int channels) {
+    this.channels = channels;
+    fadeFrames = Math.max(1, sampleRate * FADE_MS / 1000);
+    crossfadeFrames = Math.max(1, sampleRate * CROSSFADE_MS / 1000);
+    source = new float[Math.max(2, sampleRate * SOURCE_MS / 1000) * channels];
+    sourcePcm = ByteBuffer.allocate(source.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  /** Puts frames frames of concealment at the start of out. Returns the number of samples. */
+  int conceal(float[] out, int frames) {
+    if (!active) {
+      active = true;
+      if (sourceFormat != null) {
+        sourcePcm.flip();
+        sourceFrames = sourceFormat.toFloat(sourcePcm, source, 0) / channels;
+        sourcePcm.clear();
+        sourceFormat = null;
+      }
+      readFrame = sourceFrames - 1;
+      step = -1;
+      gapFrames = 0;
+    }
+    int i = 0;
+    for (int f = 0; f < frames; f++) {
+      float gain = gain();
+      for (int ch = 0; ch < channels; ch++) {
+        out[i++] = sample(ch) * gain;
+      }
+      advance();
+    }
+    concealedFrames += frames;
+    return i;
+  }
+
+  /**
+   * Called with every burst of real audio, the first samples samples of out, before it is played.
+   * Crossfades it in if a gap was being concealed and keeps its tail for the next gap.
+   */
+  void played(float[] out, int samples) {
+    int frames = samples / channels;
+
+    if (active) {
+      active = false;
+      int n = Math.min(crossfadeFrames, frames);
+      for (int f = 0; f < n; f++) {
+        float w = (f + 1) / (float) (n + 1);
+        float gain = gain();
+        for (int ch = 0; ch < channels; ch++) {
+          int index = f * channels + ch;
+          out[index] = out[index] * w + sample(ch) * gain * (1 - w);
+        }
+        advance();
+      }
+    }
+
+    int keep = Math.min(frames, source.length / channels);
+    System.arraycopy(out, (frames - keep) * channels, source, 0, keep * channels);
+    sourceFrames = keep;
+    sourcePcm.clear();
+    sourceFormat = null;
+  }
+
+  /**
+   * Called instead of played() with real audio from position to limit of pcm that goes to the
+   * sink as it is, never while a gap is concealed. Keeps the tail of it, unconverted.
+   */
+  void played(ByteBuffer pcm, PcmFormat format) {
+    if (sourceFormat != format) {
+      sourceFormat = format;
+      sourcePcm.clear();
+    }
+    int capacity = source.length * format.bytesPerSample;
+    int n = Math.min(pcm.remaining(), capacity);
+    int keep = Math.min(sourcePcm.position(), capacity - n);
+    if (keep < sourcePcm.position()) {
+      // Move the newest bytes still wanted to the front
+      sourcePcm.flip().position(sourcePcm.limit() - keep);
+      sourcePcm.compact();
+    }
+    int p = pcm.position();
+    pcm.position(pcm.limit() - n);
+    sourcePcm.put(pcm);
+    pcm.position(p);
+  }
+
+  /** Whether the last burst was concealment. */
+  boolean isActive() {
+    return active;
+  }
+
+  /** Total number of frames that were made up. */
+  long concealedFrames() {
+    return concealedFrames;
+  }
+
+  private float gain() {
+    return gapFrames >= fadeFrames ? 0 : 1 - (float) gapFrames / fadeFrames;
+  }
+
+  private float sample(int ch) {
+    return sourceFrames == 0 ? 0 : source[readFrame * channels + ch];
+  }
+
+  private void advance() {
+    if (gapFrames < fadeFrames) {
+      gapFrames++;
+    }
+    if (sourceFrames < 2) {
+      return;
+    }
+    readFrame += step;
+    if (readFrame < 0) {
+      readFrame = 1;
+      step = 1;
+    } else if (readFrame >= sourceFrames) {
+      readFrame = sourceFrames - 2;
+      step = -1;
+    }
+  }
+}
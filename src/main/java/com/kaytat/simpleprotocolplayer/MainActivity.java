@@ -31,6 +31,8 @@ import android.net.ConnectivityManager;
 import android.net.NetworkCapabilities;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -46,6 +48,7 @@ import android.widget.CheckBox;
 import android.widget.EditText;
 import android.widget.Filter;
 import android.widget.Spinner;
+import android.widget.TextView;
 import android.widget.Toast;
 import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
@@ -82,15 +85,36 @@ public class MainActivity extends AppCompatActivity implements OnClickListener {
   ArrayAdapter<String> audioPortAdapter;
 
   int sampleRate;
-  boolean stereo;
+  int channels;
+  PcmFormat sampleFormat;
   int bufferMs;
   boolean retry;
+  boolean preconnect;
+  boolean failover;
+  boolean lowLatency;
   boolean usePerformanceMode;
   boolean useMinBuffer;
+  Transport transport;
+  OverflowPolicy overflowPolicy;
+  int maxLatencyMs;
+  int stallMs;
+  Codec codec;
 
   Button playButton;
   Button stopButton;
 
+  // Refreshes the stream metrics overlay while the activity is in front
+  static final long METRICS_REFRESH_MS = 1000;
+  private final Handler metricsHandler = new Handler(Looper.getMainLooper());
+  private final Runnable metricsUpdater =
+      new Runnable() {
+        @Override
+        public void run() {
+          updateMetrics();
+          metricsHandler.postDelayed(this, METRICS_REFRESH_MS);
+        }
+      };
+
   private enum NetworkConnection {
     NOT_CONNECTED,
     WIFI_CONNECTED,
@@ -149,6 +173,27 @@ public class MainActivity extends AppCompatActivity implements OnClickListener {
     MediaController.releaseFuture(controllerFuture);
   }
 
+  @Override
+  public void onPause() {
+    super.onPause();
+    metricsHandler.removeCallbacks(metricsUpdater);
+    StreamWarmup.cancel();
+  }
+
+  /** Shows the live metrics of every stream that is playing, hidden when there are none. */
+  private void updateMetrics() {
+    StringBuilder text = new StringBuilder();
+    for (StreamMetrics metrics : StreamMetrics.active()) {
+      if (text.length() > 0) {
+        text.append('\n');
+      }
+      text.append(metrics.summary());
+    }
+    TextView metricsView = findViewById(R.id.textMetrics);
+    metricsView.setText(text);
+    metricsView.setVisibility(text.length() > 0 ? View.VISIBLE : View.GONE);
+  }
+
   /**
    * The two different approaches here is an attempt to support both an old preferences and new
    * preferences. The newer version saved to JSON while the old version just saved one string.
@@ -161,11 +206,22 @@ public class MainActivity extends AppCompatActivity implements OnClickListener {
   static final String PORT_JSON_PREF = "PORT_JSON_PREF";
 
   static final String RATE_PREF = "RATE";
+  // Only read, from before more than two channels were supported
   static final String STEREO_PREF = "STEREO";
+  static final String CHANNELS_PREF = "CHANNELS";
+  static final String SAMPLE_FORMAT_PREF = "SAMPLE_FORMAT";
   static final String BUFFER_MS_PREF = "BUFFER_MS";
   static final String RETRY_PREF = "RETRY";
+  static final String PRECONNECT_PREF = "PRECONNECT";
+  static final String FAILOVER_PREF = "FAILOVER";
+  static final String LOW_LATENCY_PREF = "LOW_LATENCY";
   static final String USE_PERFORMANCE_MODE_PREF = "USE_PERFORMANCE_MODE";
   static final String USE_MIN_BUFFER_PREF = "USE_MIN_BUFFER";
+  static final String TRANSPORT_PREF = "TRANSPORT";
+  static final String OVERFLOW_POLICY_PREF = "OVERFLOW_POLICY";
+  static final String MAX_LATENCY_MS_PREF = "MAX_LATENCY_MS";
+  static final String STALL_MS_PREF = "STALL_MS";
+  static final String CODEC_PREF = "CODEC";
 
   ArrayList<String> getListFromPrefs(SharedPreferences prefs, String keyJson, String keySingle) {
     // Retrieve the values from the shared preferences
@@ -238,12 +294,21 @@ public class MainActivity extends AppCompatActivity implements OnClickListener {
     prefsEditor.putString(IP_JSON_PREF, getJson(ipAddrList).toString());
     prefsEditor.putString(PORT_JSON_PREF, getJson(audioPortList).toString());
 
-    prefsEditor.putBoolean(STEREO_PREF, stereo);
+    prefsEditor.putInt(CHANNELS_PREF, channels);
+    prefsEditor.putString(SAMPLE_FORMAT_PREF, sampleFormat.name());
     prefsEditor.putInt(RATE_PREF, sampleRate);
     prefsEditor.putInt(BUFFER_MS_PREF, bufferMs);
     prefsEditor.putBoolean(RETRY_PREF, retry);
+    prefsEditor.putBoolean(PRECONNECT_PREF, preconnect);
+    prefsEditor.putBoolean(FAILOVER_PREF, failover);
+    prefsEditor.putBoolean(LOW_LATENCY_PREF, lowLatency);
     prefsEditor.putBoolean(USE_PERFORMANCE_MODE_PREF, usePerformanceMode);
     prefsEditor.putBoolean(USE_MIN_BUFFER_PREF, useMinBuffer);
+    prefsEditor.putString(TRANSPORT_PREF, transport.name());
+    prefsEditor.putString(OVERFLOW_POLICY_PREF, overflowPolicy.name());
+    prefsEditor.putInt(MAX_LATENCY_MS_PREF, maxLatencyMs);
+    prefsEditor.putInt(STALL_MS_PREF, stallMs);
+    prefsEditor.putString(CODEC_PREF, codec.name());
     prefsEditor.apply();
 
     // Update adapters
@@ -291,6 +356,7 @@ public class MainActivity extends AppCompatActivity implements OnClickListener {
   @Override
   public void onResume() {
     super.onResume();
+    metricsHandler.post(metricsUpdater);
     SharedPreferences myPrefs = getSharedPreferences("myPrefs", MODE_PRIVATE);
 
     ipAddrList = getListFromPrefs(myPrefs, IP_JSON_PREF, IP_PREF);
@@ -329,16 +395,27 @@ public class MainActivity extends AppCompatActivity implements OnClickListener {
       }
     }
 
-    stereo = myPrefs.getBoolean(STEREO_PREF, MusicService.DEFAULT_STEREO);
-    String[] stereoStrings = res.getStringArray(R.array.stereo);
-    Spinner stereoSpinner = findViewById(R.id.stereo);
-    String stereoKey = getResources().getString(R.string.stereoKey);
-    if (stereoStrings[0].contains(stereoKey) == stereo) {
-      stereoSpinner.setSelection(0);
-    } else {
-      stereoSpinner.setSelection(1);
+    channels =
+        myPrefs.getInt(
+            CHANNELS_PREF,
+            myPrefs.getBoolean(STEREO_PREF, MusicService.DEFAULT_STEREO) ? 2 : 1);
+    int[] channelCounts = res.getIntArray(R.array.channelCounts);
+    for (int i = 0; i < channelCounts.length; i++) {
+      if (channelCounts[i] == channels) {
+        Spinner stereoSpinner = findViewById(R.id.stereo);
+        stereoSpinner.setSelection(i);
+        break;
+      }
     }
 
+    sampleFormat =
+        StreamConfig.fromName(
+            PcmFormat.class,
+            myPrefs.getString(SAMPLE_FORMAT_PREF, null),
+            MusicService.DEFAULT_SAMPLE_FORMAT);
+    ((Spinner) findViewById(R.id.spinnerSampleFormat)).setSelection(sampleFormat.ordinal());
+    Log.d(TAG, "sampleFormat:" + sampleFormat);
+
     bufferMs = myPrefs.getInt(BUFFER_MS_PREF, MusicService.DEFAULT_BUFFER_MS);
     Log.d(TAG, "bufferMs:" + bufferMs);
     EditText e = findViewById(R.id.editTextBufferSize);
@@ -348,6 +425,18 @@ public class MainActivity extends AppCompatActivity implements OnClickListener {
     ((CheckBox) findViewById(R.id.checkBoxRetry)).setChecked(retry);
     Log.d(TAG, "retry:" + retry);
 
+    preconnect = myPrefs.getBoolean(PRECONNECT_PREF, MusicService.DEFAULT_PRECONNECT);
+    ((CheckBox) findViewById(R.id.checkBoxPreconnect)).setChecked(preconnect);
+    Log.d(TAG, "preconnect:" + preconnect);
+
+    failover = myPrefs.getBoolean(FAILOVER_PREF, MusicService.DEFAULT_FAILOVER);
+    ((CheckBox) findViewById(R.id.checkBoxFailover)).setChecked(failover);
+    Log.d(TAG, "failover:" + failover);
+
+    lowLatency = myPrefs.getBoolean(LOW_LATENCY_PREF, MusicService.DEFAULT_LOW_LATENCY);
+    ((CheckBox) findViewById(R.id.checkBoxLowLatency)).setChecked(lowLatency);
+    Log.d(TAG, "lowLatency:" + lowLatency);
+
     usePerformanceMode =
         myPrefs.getBoolean(USE_PERFORMANCE_MODE_PREF, MusicService.DEFAULT_USE_PERFORMANCE_MODE);
     ((CheckBox) findViewById(R.id.checkBoxUsePerformanceMode)).setChecked(usePerformanceMode);
@@ -356,6 +445,62 @@ public class MainActivity extends AppCompatActivity implements OnClickListener {
     useMinBuffer = myPrefs.getBoolean(USE_MIN_BUFFER_PREF, MusicService.DEFAULT_USE_MIN_BUFFER);
     ((CheckBox) findViewById(R.id.checkBoxUseMinBuffer)).setChecked(useMinBuffer);
     Log.d(TAG, "useMinBuffer:" + useMinBuffer);
+
+    transport =
+        StreamConfig.fromName(
+            Transport.class,
+            myPrefs.getString(TRANSPORT_PREF, null),
+            MusicService.DEFAULT_TRANSPORT);
+    ((Spinner) findViewById(R.id.spinnerTransport)).setSelection(transport.ordinal());
+    Log.d(TAG, "transport:" + transport);
+
+    codec =
+        StreamConfig.fromName(
+            Codec.class, myPrefs.getString(CODEC_PREF, null), MusicService.DEFAULT_CODEC);
+    ((Spinner) findViewById(R.id.spinnerCodec)).setSelection(codec.ordinal());
+    Log.d(TAG, "codec:" + codec);
+
+    overflowPolicy =
+        StreamConfig.fromName(
+            OverflowPolicy.class,
+            myPrefs.getString(OVERFLOW_POLICY_PREF, null),
+            MusicService.DEFAULT_OVERFLOW_POLICY);
+    ((Spinner) findViewById(R.id.spinnerOverflowPolicy)).setSelection(overflowPolicy.ordinal());
+    Log.d(TAG, "overflowPolicy:" + overflowPolicy);
+
+    maxLatencyMs = myPrefs.getInt(MAX_LATENCY_MS_PREF, MusicService.DEFAULT_MAX_LATENCY_MS);
+    ((EditText) findViewById(R.id.editTextMaxLatency))
+        .setText(String.format(Locale.getDefault(), "%d", maxLatencyMs));
+    Log.d(TAG, "maxLatencyMs:" + maxLatencyMs);
+
+    stallMs = myPrefs.getInt(STALL_MS_PREF, MusicService.DEFAULT_STALL_MS);
+    ((EditText) findViewById(R.id.editTextStallTimeout))
+        .setText(String.format(Locale.getDefault(), "%d", stallMs));
+    Log.d(TAG, "stallMs:" + stallMs);
+
+    warmUp();
+  }
+
+  /** Gets ready to play from the last server used, so Play doesn't have to wait for it. */
+  private void warmUp() {
+    if (ipAddrList.isEmpty() || audioPortList.isEmpty()) {
+      return;
+    }
+    Bundle bundle = new Bundle();
+    bundle.putString(MusicService.DATA_IP_ADDRESS, ipAddrList.get(0));
+    try {
+      bundle.putInt(MusicService.DATA_AUDIO_PORT, Integer.parseInt(audioPortList.get(0)));
+    } catch (NumberFormatException nfe) {
+      return;
+    }
+    bundle.putInt(MusicService.DATA_SAMPLE_RATE, sampleRate);
+    bundle.putInt(MusicService.DATA_CHANNELS, channels);
+    bundle.putString(MusicService.DATA_SAMPLE_FORMAT, sampleFormat.name());
+    bundle.putBoolean(MusicService.DATA_LOW_LATENCY, lowLatency);
+    bundle.putBoolean(MusicService.DATA_USE_PERFORMANCE_MODE, usePerformanceMode);
+    bundle.putString(MusicService.DATA_TRANSPORT, transport.name());
+    bundle.putString(MusicService.DATA_CODEC, codec.name());
+    StreamWarmup.prepare(new StreamConfig(bundle), preconnect);
   }
 
   @Override
@@ -440,13 +585,19 @@ public class MainActivity extends AppCompatActivity implements OnClickListener {
         return;
       }
 
-      // Extract stereo/mono setting
+      // Extract the channel layout, the spinner entries match the channelCounts array
       Spinner stereoSpinner = findViewById(R.id.stereo);
-      String stereoSettingString = String.valueOf(stereoSpinner.getSelectedItem());
-      String stereoKey = getResources().getString(R.string.stereoKey);
-      stereo = stereoSettingString.contains(stereoKey);
-      bundle.putBoolean(MusicService.DATA_STEREO, stereo);
-      Log.i(TAG, "stereo:" + stereo);
+      channels =
+          getResources().getIntArray(R.array.channelCounts)[
+              stereoSpinner.getSelectedItemPosition()];
+      bundle.putInt(MusicService.DATA_CHANNELS, channels);
+      Log.i(TAG, "channels:" + channels);
+
+      // Get the sample format, the spinner entries are in enum order
+      Spinner sampleFormatSpinner = findViewById(R.id.spinnerSampleFormat);
+      sampleFormat = PcmFormat.values()[sampleFormatSpinner.getSelectedItemPosition()];
+      Log.i(TAG, "sampleFormat:" + sampleFormat);
+      bundle.putString(MusicService.DATA_SAMPLE_FORMAT, sampleFormat.name());
 
       // Get the latest buffer entry
       EditText e = findViewById(R.id.editTextBufferSize);
@@ -466,6 +617,19 @@ public class MainActivity extends AppCompatActivity implements OnClickListener {
       Log.d(TAG, "retry:" + retry);
       bundle.putBoolean(MusicService.DATA_RETRY, retry);
 
+      // Only used by the warm up, which already ran with the saved setting
+      preconnect = ((CheckBox) findViewById(R.id.checkBoxPreconnect)).isChecked();
+      Log.d(TAG, "preconnect:" + preconnect);
+
+      // The servers to fail over to are filled in once the history is updated below
+      failover = ((CheckBox) findViewById(R.id.checkBoxFailover)).isChecked();
+      Log.d(TAG, "failover:" + failover);
+
+      // Get the lowLatency checkbox, it implies the two below
+      lowLatency = ((CheckBox) findViewById(R.id.checkBoxLowLatency)).isChecked();
+      Log.d(TAG, "lowLatency:" + lowLatency);
+      bundle.putBoolean(MusicService.DATA_LOW_LATENCY, lowLatency);
+
       // Get the usePerformanceMode checkbox
       usePerformanceMode = ((CheckBox) findViewById(R.id.checkBoxUsePerformanceMode)).isChecked();
       Log.d(TAG, "usePerformanceMode:" + usePerformanceMode);
@@ -476,8 +640,60 @@ public class MainActivity extends AppCompatActivity implements OnClickListener {
       Log.d(TAG, "useMinBuffer:" + useMinBuffer);
       bundle.putBoolean(MusicService.DATA_USE_MIN_BUFFER, useMinBuffer);
 
+      // Get the transport, the spinner entries are in enum order
+      Spinner transportSpinner = findViewById(R.id.spinnerTransport);
+      transport = Transport.values()[transportSpinner.getSelectedItemPosition()];
+      Log.d(TAG, "transport:" + transport);
+      bundle.putString(MusicService.DATA_TRANSPORT, transport.name());
+
+      // Get the codec, the spinner entries are in enum order
+      Spinner codecSpinner = findViewById(R.id.spinnerCodec);
+      codec = Codec.values()[codecSpinner.getSelectedItemPosition()];
+      Log.d(TAG, "codec:" + codec);
+      bundle.putString(MusicService.DATA_CODEC, codec.name());
+
+      // Get the overflow policy, the spinner entries are in enum order
+      Spinner overflowPolicySpinner = findViewById(R.id.spinnerOverflowPolicy);
+      overflowPolicy = OverflowPolicy.values()[overflowPolicySpinner.getSelectedItemPosition()];
+      Log.d(TAG, "overflowPolicy:" + overflowPolicy);
+      bundle.putString(MusicService.DATA_OVERFLOW_POLICY, overflowPolicy.name());
+
+      // Get the max latency entry
+      String maxLatencyString =
+          ((EditText) findViewById(R.id.editTextMaxLatency)).getText().toString();
+      try {
+        maxLatencyMs = Integer.parseInt(maxLatencyString);
+        Log.d(TAG, "max latency ms:" + maxLatencyMs);
+        bundle.putInt(MusicService.DATA_MAX_LATENCY_MS, maxLatencyMs);
+      } catch (NumberFormatException nfe) {
+        Log.e(TAG, "Invalid max latency ms:" + nfe);
+        Toast.makeText(getApplicationContext(), "Invalid max latency ms", Toast.LENGTH_SHORT)
+            .show();
+        return;
+      }
+
+      // Get the stall timeout entry
+      String stallString =
+          ((EditText) findViewById(R.id.editTextStallTimeout)).getText().toString();
+      try {
+        stallMs = Integer.parseInt(stallString);
+        Log.d(TAG, "stall ms:" + stallMs);
+        bundle.putInt(MusicService.DATA_STALL_MS, stallMs);
+      } catch (NumberFormatException nfe) {
+        Log.e(TAG, "Invalid stall ms:" + nfe);
+        Toast.makeText(getApplicationContext(), "Invalid stall ms", Toast.LENGTH_SHORT).show();
+        return;
+      }
+
       // Save current settings
       savePrefs();
+
+      // The other saved servers, most recently used first
+      if (failover && transport != Transport.RTP) {
+        ArrayList<String> failoverAddrs = new ArrayList<>(ipAddrList.subList(1, ipAddrList.size()));
+        Log.d(TAG, "failoverAddrs:" + failoverAddrs);
+        bundle.putStringArrayList(MusicService.DATA_FAILOVER_ADDRESSES, failoverAddrs);
+      }
       startMusicService(useMedia3, bundle);
     } else if (target == stopButton) {
       hideKb();
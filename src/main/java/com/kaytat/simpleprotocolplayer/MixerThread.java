@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2014 kaytat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kaytat.simpleprotocolplayer;
+
+import android.content.Context;
+import android.media.AudioFormat;
+import android.media.AudioTrack;
+import android.util.Log;
+
+/**
+ * The single audio thread of a mix. Owns the AudioTrack that StreamMixer plays every stream
+ * through, the streams themselves are added by their WorkerThreadPair.
+ */
+class MixerThread extends ThreadStoppable {
+  private static final String TAG = "mixer";
+
+  final StreamMixer mixer;
+  private final AudioSink sink;
+  // Only logged, the streams report their own
+  private final LatencyProfile latencyProfile;
+
+  /** Builds the AudioTrack in the rate and channel layout the streams start in. */
+  MixerThread(Context context, StreamConfig config) {
+    setName(TAG);
+    latencyProfile = new LatencyProfile(context, config.lowLatency, null, TAG);
+    StreamFormat format = WorkerThreadPair.initialFormat(config);
+    int channelMask = WorkerThreadPair.channelMask(format.channels);
+    int encoding = AudioFormat.ENCODING_PCM_FLOAT;
+    int audioTrackMinBuffer = AudioTrack.getMinBufferSize(format.sampleRate, channelMask, encoding);
+    AudioTrack audioTrack =
+        WorkerThreadPair.buildAudioTrack(
+            format.sampleRate,
+            channelMask,
+            encoding,
+            audioTrackMinBuffer,
+            config.usePerformanceMode);
+
+    // One native burst with the low latency profile, otherwise half the AudioTrack buffer at a
+    // time, like the bursts of a single stream
+    int bytesPerFrame = format.channels * PcmFormat.FLOAT.bytesPerSample;
+    int framesPerBurst = latencyProfile.burstFrames(format.sampleRate);
+    latencyProfile.trackBuilt(audioTrack, framesPerBurst);
+    if (framesPerBurst <= 0) {
+      framesPerBurst = Math.max(1, audioTrackMinBuffer / bytesPerFrame / 2);
+    }
+    sink = new AudioTrackSink(audioTrack);
+    mixer = new StreamMixer(sink, format.sampleRate, format.channels, framesPerBurst);
+    Log.d(TAG, "format:" + format + " framesPerBurst:" + framesPerBurst);
+  }
+
+  @Override
+  public void run() {
+    Log.i(TAG, "start");
+    latencyProfile.threadStarted(LatencyProfile.AUDIO_THREAD);
+    try {
+      sink.play();
+      while (running) {
+        mixer.step();
+      }
+    } catch (Exception e) {
+      Log.e(TAG, "exception:" + e);
+    }
+    sink.release();
+    Log.i(TAG, "done");
+  }
+}
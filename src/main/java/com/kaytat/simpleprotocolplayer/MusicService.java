@@ -23,6 +23,7 @@ import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Intent;
+import android.os.Bundle;
 import android.os.IBinder;
 import android.util.Log;
 import androidx.core.app.NotificationCompat;
@@ -41,10 +42,25 @@ public class MusicService extends Service
   static final int DEFAULT_AUDIO_PORT = 12345;
   static final int DEFAULT_SAMPLE_RATE = 44100;
   static final boolean DEFAULT_STEREO = true;
+  static final int DEFAULT_CHANNELS = 2;
+  static final PcmFormat DEFAULT_SAMPLE_FORMAT = PcmFormat.S16;
   static final int DEFAULT_BUFFER_MS = 50;
   static final boolean DEFAULT_RETRY = false;
+  static final boolean DEFAULT_PRECONNECT = false;
+  static final boolean DEFAULT_FAILOVER = false;
+  static final boolean DEFAULT_LOW_LATENCY = false;
   static final boolean DEFAULT_USE_PERFORMANCE_MODE = false;
   static final boolean DEFAULT_USE_MIN_BUFFER = false;
+  static final Transport DEFAULT_TRANSPORT = Transport.TCP;
+  static final OverflowPolicy DEFAULT_OVERFLOW_POLICY = OverflowPolicy.DROP_OLDEST;
+  static final int DEFAULT_MAX_LATENCY_MS = 500;
+  // How long a stream may stop moving before StallWatchdog steps in, 0 turns it off. The network
+  // is only watched with retry on, as a reconnect without it ends the stream.
+  static final int DEFAULT_STALL_MS = 500;
+  static final Codec DEFAULT_CODEC = Codec.PCM;
+
+  // Underrun rate the jitter buffer tries to hold while keeping latency low
+  static final float DEFAULT_UNDERRUNS_PER_MINUTE = 1.0f;
 
   // These are the Intent actions that we are prepared to handle. Notice
   // that the fact these constants exist in our class is a mere
@@ -58,10 +74,20 @@ public class MusicService extends Service
   public static final String DATA_AUDIO_PORT = "audio_port";
   public static final String DATA_SAMPLE_RATE = "sample_rate";
   public static final String DATA_STEREO = "stereo";
+  public static final String DATA_CHANNELS = "channels";
+  public static final String DATA_SAMPLE_FORMAT = "sample_format";
   public static final String DATA_BUFFER_MS = "buffer_ms";
   public static final String DATA_RETRY = "retry";
+  public static final String DATA_LOW_LATENCY = "low_latency";
   public static final String DATA_USE_PERFORMANCE_MODE = "use_performance_mode";
   public static final String DATA_USE_MIN_BUFFER = "use_min_buffer";
+  public static final String DATA_TRANSPORT = "transport";
+  public static final String DATA_OVERFLOW_POLICY = "overflow_policy";
+  public static final String DATA_MAX_LATENCY_MS = "max_latency_ms";
+  public static final String DATA_STALL_MS = "stall_ms";
+  public static final String DATA_CODEC = "codec";
+  public static final String DATA_FAILOVER_ADDRESSES = "failover_addresses";
+  public static final String DATA_MIX_ADDRESSES = "mix_addresses";
 
   // The volume we set the media player to when we lose audio focus, but
   // are allowed to reduce the volume instead of stopping playback.
@@ -69,6 +95,9 @@ public class MusicService extends Service
 
   private final ArrayList<WorkerThreadPair> workers = new ArrayList<>();
 
+  // Plays all workers through one AudioTrack when more than one stream was asked for
+  private MixerThread mixerThread;
+
   // AudioFocusHelper object
   AudioFocusHelper mAudioFocusHelper = null;
 
@@ -142,15 +171,8 @@ public class MusicService extends Service
       stopWorkers();
     }
 
-    playStream(
-        i.getStringExtra(DATA_IP_ADDRESS),
-        i.getIntExtra(DATA_AUDIO_PORT, DEFAULT_AUDIO_PORT),
-        i.getIntExtra(DATA_SAMPLE_RATE, DEFAULT_SAMPLE_RATE),
-        i.getBooleanExtra(DATA_STEREO, DEFAULT_STEREO),
-        i.getIntExtra(DATA_BUFFER_MS, DEFAULT_BUFFER_MS),
-        i.getBooleanExtra(DATA_RETRY, DEFAULT_RETRY),
-        i.getBooleanExtra(DATA_USE_PERFORMANCE_MODE, DEFAULT_USE_PERFORMANCE_MODE),
-        i.getBooleanExtra(DATA_USE_MIN_BUFFER, DEFAULT_USE_MIN_BUFFER));
+    Bundle extras = i.getExtras();
+    playStream(new StreamConfig(extras != null ? extras : new Bundle()));
   }
 
   void processStopRequest() {
@@ -183,10 +205,20 @@ public class MusicService extends Service
 
   void stopWorkers() {
     for (WorkerThreadPair worker : workers) {
+      Log.i(TAG, worker.metrics.summary());
+      for (String event : worker.metrics.stallEvents()) {
+        Log.i(TAG, "stall:" + event);
+      }
       worker.stopAndInterrupt();
     }
 
     workers.clear();
+
+    if (mixerThread != null) {
+      mixerThread.customStop();
+      mixerThread.interrupt();
+      mixerThread = null;
+    }
   }
 
   void tryToGetAudioFocus() {
@@ -221,48 +253,44 @@ public class MusicService extends Service
 
     for (WorkerThreadPair it : workers) {
       if (mAudioFocus == AudioFocus.NoFocusCanDuck) {
-        it.audioTrack.setVolume(DUCK_VOLUME); // we'll be
+        it.setVolume(DUCK_VOLUME); // we'll be
         // relatively
         // quiet
       } else {
-        it.audioTrack.setVolume(1.0f); // we can be loud
+        it.setVolume(1.0f); // we can be loud
       }
     }
   }
 
   /** Play the stream using the given IP address and port */
-  void playStream(
-      String serverAddr,
-      int serverPort,
-      int sample_rate,
-      boolean stereo,
-      int buffer_ms,
-      boolean retry,
-      boolean usePerformanceMode,
-      boolean useMinBuffer) {
+  void playStream(StreamConfig config) {
 
     mState = State.Stopped;
     relaxResources();
 
-    workers.add(
-        new WorkerThreadPair(
-            this,
-            this,
-            serverAddr,
-            serverPort,
-            sample_rate,
-            stereo,
-            buffer_ms,
-            retry,
-            usePerformanceMode,
-            useMinBuffer));
+    if (config.mixAddrs.isEmpty()) {
+      workers.add(new WorkerThreadPair(this, this, config));
+    } else {
+      // One AudioTrack and one audio thread for all of them
+      mixerThread = new MixerThread(this, config);
+      workers.add(new WorkerThreadPair(this, this, config, mixerThread.mixer));
+      for (String addr : config.mixAddrs) {
+        workers.add(
+            new WorkerThreadPair(this, this, config.forMixedServer(addr), mixerThread.mixer));
+      }
+      mixerThread.start();
+    }
 
+    wifiLockManager.setLowLatency(config.lowLatency);
     wifiLockManager.setStayAwake(true);
+    for (WorkerThreadPair worker : workers) {
+      worker.latencyProfile.wifiLock(wifiLockManager.heldMode());
+    }
 
     mState = State.Playing;
     configVolume();
 
-    setUpAsForeground("Streaming from " + serverAddr);
+    setUpAsForeground("Streaming from " + config.serverAddr);
   }
 
   /**
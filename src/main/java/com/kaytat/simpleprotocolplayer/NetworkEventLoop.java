@@ -0,0 +1,737 @@
+/*
+ * Copyright (C) 2014 kaytat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kaytat.simpleprotocolplayer;
+
+import android.content.Context;
+import android.net.Network;
+import android.util.Log;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * One thread that reads every TCP_NIO stream, so the number of threads stays the same however
+ * many streams play. Each stream is a small state machine that connects, reads into its jitter
+ * buffer and waits to retry, all driven by a single Selector. Reconnects and give-ups follow the
+ * same rules as NetworkReadThread.
+ *
+ * <p>Streams with data are served round robin, one read each per pass and starting with a
+ * different one every time, so a busy stream can't hold up the others. The loop never waits on a
+ * stream. A full ring or a format change in progress takes the stream out of the selector, and
+ * decoded PCM that doesn't fit is held back in order. The audio thread wakes the loop through a
+ * writer listener on the ring once it has made room or switched over, and the stream is read
+ * again. How long each stream's socket was readable before it was read goes into its metrics, and
+ * how evenly the streams kept up is logged every STATS_LOG_INTERVAL_NANOS.
+ *
+ * <p>Streams are added and removed from any thread. Everything else happens on the loop thread,
+ * which stops with the last stream. The one exception is looking up the servers' addresses, which
+ * can block for seconds. It runs on a helper thread that posts the result back to the loop.
+ */
+final class NetworkEventLoop extends ThreadStoppable {
+  static final String TAG = "NetworkEventLoop";
+
+  // The selector is woken up at least this often
+  static final long MAX_SELECT_NANOS = 1_000_000_000L;
+
+  // How evenly the streams are served is logged this often
+  static final long STATS_LOG_INTERVAL_NANOS = StreamReceiver.STATS_LOG_INTERVAL_NANOS;
+
+  private enum State {
+    RESOLVING,
+    CONNECTING,
+    READING,
+    WAITING,
+    DONE
+  }
+
+  // Looks up server addresses, threads only live while there are lookups to do
+  private static final ExecutorService resolver =
+      Executors.newCachedThreadPool(
+          r -> {
+            Thread t = new Thread(r, "net:resolve");
+            t.setDaemon(true);
+            return t;
+          });
+
+  // The running loop, guarded by the class
+  private static NetworkEventLoop instance;
+  private int streamCount;
+
+  private final Selector selector;
+  private final NetworkMonitor networkMonitor;
+  private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+  // Loop thread only
+  private final List<Stream> streams = new ArrayList<>();
+  private int nextFirst;
+  private int networkChanges;
+  private long lastStatsLogNanos = System.nanoTime();
+
+  private NetworkEventLoop(Context context) throws IOException {
+    setName("net:loop");
+    selector = Selector.open();
+    networkMonitor = new NetworkMonitor(context, network -> selector.wakeup());
+  }
+
+  /**
+   * Starts reading a stream, and the loop if it isn't running. Takes the same settings as
+   * NetworkReadThread.
+   */
+  static synchronized Stream add(
+      WorkerThreadPair syncObject,
+      String ipAddr,
+      int port,
+      List<String> failoverAddrs,
+      boolean attemptConnectionRetry,
+      Codec codec,
+      String debugTag)
+      throws IOException {
+    if (instance == null) {
+      instance = new NetworkEventLoop(syncObject.context);
+      instance.start();
+    }
+    NetworkEventLoop loop = instance;
+    Stream stream =
+        loop.new Stream(
+            syncObject, ipAddr, port, failoverAddrs, attemptConnectionRetry, codec, debugTag);
+    loop.streamCount++;
+    loop.execute(() -> loop.open(stream));
+    return stream;
+  }
+
+  private static synchronized void remove(Stream stream) {
+    NetworkEventLoop loop = stream.loop();
+    if (stream.removed) {
+      return;
+    }
+    stream.removed = true;
+    loop.execute(() -> loop.close(stream));
+    if (--loop.streamCount == 0) {
+      loop.customStop();
+      loop.selector.wakeup();
+      if (instance == loop) {
+        instance = null;
+      }
+    }
+  }
+
+  private void execute(Runnable task) {
+    tasks.add(task);
+    selector.wakeup();
+  }
+
+  @Override
+  public void run() {
+    Log.i(TAG, "start");
+    networkMonitor.start();
+    try {
+      while (running) {
+        runTasks();
+
+        long now = System.nanoTime();
+        int changes = networkMonitor.changes();
+        Network network = networkMonitor.network();
+        if (changes != networkChanges) {
+          networkChanges = changes;
+          if (network != null) {
+            for (int i = 0; i < streams.size(); i++) {
+              streams.get(i).networkAvailable(network, now);
+            }
+          }
+        }
+
+        long wakeupNanos = now + MAX_SELECT_NANOS;
+        for (int i = 0; i < streams.size(); i++) {
+          wakeupNanos = Math.min(wakeupNanos, streams.get(i).tick(now));
+        }
+        long timeoutMs = (wakeupNanos - now + 999_999) / 1_000_000;
+        if (timeoutMs <= 0) {
+          selector.selectNow();
+        } else {
+          selector.select(timeoutMs);
+        }
+
+        long selectedNanos = System.nanoTime();
+        for (SelectionKey key : selector.selectedKeys()) {
+          Object attachment = key.attachment();
+          if (!key.isValid()) {
+            continue;
+          } else if (attachment instanceof HappyEyeballs) {
+            ((HappyEyeballs) attachment).ready(key, selectedNanos);
+          } else if (key.isReadable()) {
+            ((Stream) attachment).readable(selectedNanos);
+          }
+        }
+        selector.selectedKeys().clear();
+        serve();
+
+        if (selectedNanos - lastStatsLogNanos > STATS_LOG_INTERVAL_NANOS) {
+          logStats(selectedNanos);
+        }
+      }
+    } catch (IOException e) {
+      Log.e(TAG, "exception:" + e);
+      for (Stream stream : streams) {
+        stream.giveUp();
+      }
+    }
+
+    runTasks();
+    for (Stream stream : new ArrayList<>(streams)) {
+      close(stream);
+    }
+    networkMonitor.stop();
+    try {
+      selector.close();
+    } catch (IOException e) {
+      Log.i(TAG, "exception while closing selector:" + e);
+    }
+    Log.i(TAG, "done");
+  }
+
+  private void runTasks() {
+    Runnable task;
+    while ((task = tasks.poll()) != null) {
+      task.run();
+    }
+  }
+
+  /** One read for every stream with data, starting with a different one each pass. */
+  private void serve() {
+    int n = streams.size();
+    if (n == 0) {
+      return;
+    }
+    int first = nextFirst % n;
+    nextFirst = first + 1;
+    for (int i = 0; i < n; i++) {
+      Stream stream = streams.get((first + i) % n);
+      if (stream.ready) {
+        stream.read(System.nanoTime());
+      }
+    }
+  }
+
+  private void open(Stream stream) {
+    if (stream.removed) {
+      return;
+    }
+    streams.add(stream);
+    // Raised for good by the first stream with the low latency profile
+    stream.syncObject.latencyProfile.threadStarted(LatencyProfile.NETWORK_THREAD);
+    if (!stream.receiver.createDecoder()) {
+      stream.giveUp();
+      return;
+    }
+    stream.connect(System.nanoTime());
+  }
+
+  private void close(Stream stream) {
+    streams.remove(stream);
+    stream.closeConnection();
+    stream.receiver.release();
+    stream.state = State.DONE;
+  }
+
+  /**
+   * Logs for every stream how much audio it received compared to real time and its dispatch delay,
+   * and Jain's fairness index over the streams that were playing.
+   */
+  private void logStats(long now) {
+    long intervalNanos = now - lastStatsLogNanos;
+    lastStatsLogNanos = now;
+    double sum = 0;
+    double sumSquares = 0;
+    int count = 0;
+    for (Stream stream : streams) {
+      double share = stream.takeShare(intervalNanos);
+      if (share < 0) {
+        continue;
+      }
+      sum += share;
+      sumSquares += share * share;
+      count++;
+      StreamMetrics metrics = stream.syncObject.metrics;
+      Log.i(stream.tag, String.format(Locale.US, "share:%.3f dispatchUs:%d(max %d)", share,
+          metrics.dispatchNanos() / 1000, metrics.maxDispatchNanos() / 1000));
+    }
+    double fairness = sumSquares > 0 ? sum * sum / (count * sumSquares) : 1.0;
+    Log.i(TAG, String.format(Locale.US, "streams:%d fairness:%.3f", streams.size(), fairness));
+  }
+
+  /** One stream read by the loop. Only add() and remove() may be used from other threads. */
+  final class Stream implements PcmSink {
+    final String tag;
+    final WorkerThreadPair syncObject;
+    private final int port;
+    // ipAddr followed by the servers to fail over to
+    private final List<String> servers;
+    private final long readTimeoutNanos;
+    private final boolean attemptConnectionRetry;
+    final StreamReceiver receiver;
+
+    // Data that has to go through the receiver is read into this first
+    private final byte[] dataBuffer;
+    private final ByteBuffer heapBuffer;
+
+    // Decoded PCM and format changes that wait for room in the ring or for the audio side to
+    // switch over, in the order they came
+    private final ArrayDeque<Object> held = new ArrayDeque<>();
+
+    // Set once by remove()
+    volatile boolean removed;
+
+    // Set by the audio thread through resumeListener once a paused stream may carry on
+    private volatile boolean resumable;
+    private final Runnable resumeListener =
+        () -> {
+          resumable = true;
+          selector.wakeup();
+        };
+
+    // Loop thread only
+    private State state = State.WAITING;
+    private final ReconnectBackoff backoff = new ReconnectBackoff(new Random());
+    // Counts lookups, so one that finishes after its attempt was given up is ignored
+    private int attempt;
+    private HappyEyeballs connector;
+    private SocketChannel channel;
+    private SelectionKey key;
+    private Network connectionNetwork;
+    private boolean warmConnection;
+    private boolean connectionMade;
+    private long retryNanos;
+    private long lastReadNanos;
+    // Out of the selector until the audio side wakes it through resumeListener on pausedRing
+    private boolean paused;
+    private AudioRingBuffer pausedRing;
+    private boolean ready;
+    private long readyNanos;
+    // Ring and position at the last statistics
+    private AudioRingBuffer statsRing;
+    private long statsPosition;
+
+    private Stream(
+        WorkerThreadPair syncObject,
+        String ipAddr,
+        int port,
+        List<String> failoverAddrs,
+        boolean attemptConnectionRetry,
+        Codec codec,
+        String debugTag) {
+      this.tag = debugTag;
+      this.syncObject = syncObject;
+      this.port = port;
+      servers = NetworkReadThread.servers(ipAddr, failoverAddrs);
+      readTimeoutNanos = NetworkReadThread.readTimeoutMs(servers) * 1_000_000L;
+      this.attemptConnectionRetry = attemptConnectionRetry;
+      receiver = new StreamReceiver(syncObject, codec, this, debugTag);
+      dataBuffer = new byte[syncObject.bytesPerAudioPacket];
+      heapBuffer = ByteBuffer.wrap(dataBuffer);
+    }
+
+    private NetworkEventLoop loop() {
+      return NetworkEventLoop.this;
+    }
+
+    /** Stops reading the stream. */
+    void remove() {
+      NetworkEventLoop.remove(this);
+    }
+
+    /** Starts a new connection, the same way NetworkReadThread.runImpl() does. */
+    private void connect(long now) {
+      receiver.reset();
+      syncObject.metrics.connected();
+      syncObject.jitterBuffer.reconnected();
+      syncObject.jitterBuffer.latencyProbe().reset();
+      connectionMade = false;
+      connectionNetwork = networkMonitor.network();
+      SocketChannel warm = StreamWarmup.takeConnection(servers.get(0), port);
+      warmConnection = warm != null;
+      try {
+        if (warm != null) {
+          warm.configureBlocking(false);
+          warm.register(selector, SelectionKey.OP_READ);
+          streaming(warm, now);
+        } else {
+          int current = ++attempt;
+          state = State.RESOLVING;
+          resolver.execute(() -> resolve(current));
+        }
+      } catch (IOException e) {
+        if (warm != null) {
+          closeQuietly(warm);
+        }
+        failed(e, now);
+      }
+    }
+
+    /** Resolver thread. Looks up the servers, which may go to DNS, and posts the result. */
+    private void resolve(int current) {
+      try {
+        List<InetSocketAddress> candidates = HappyEyeballs.candidates(servers, port);
+        loop().execute(() -> resolved(current, candidates, null));
+      } catch (UnknownHostException e) {
+        loop().execute(() -> resolved(current, null, e));
+      }
+    }
+
+    /** The addresses for an attempt are known, starts racing connections to them. */
+    private void resolved(
+        int current, List<InetSocketAddress> candidates, UnknownHostException error) {
+      if (current != attempt || state != State.RESOLVING) {
+        return;
+      }
+      long now = System.nanoTime();
+      if (error != null) {
+        failed(error, now);
+        return;
+      }
+      connector = new HappyEyeballs(candidates, NetworkReadThread.SOCKET_TIMEOUT, selector);
+      state = State.CONNECTING;
+    }
+
+    private void streaming(SocketChannel channel, long now) throws IOException {
+      this.channel = channel;
+      key = channel.keyFor(selector);
+      key.attach(this);
+      state = State.READING;
+      lastReadNanos = now;
+      channel.socket().setTcpNoDelay(true);
+      Log.i(tag, "connected:" + channel.socket().getRemoteSocketAddress());
+    }
+
+    /**
+     * Moves the stream on with the time, from connecting to reading and from waiting to the next
+     * attempt. Returns when it wants to be called again at the latest.
+     */
+    long tick(long now) {
+      if (state == State.WAITING && now >= retryNanos) {
+        connect(now);
+      }
+      if (state == State.CONNECTING) {
+        try {
+          SocketChannel winner = connector.poll(now);
+          if (winner == null) {
+            return connector.wakeupNanos();
+          }
+          connector = null;
+          streaming(winner, now);
+        } catch (IOException e) {
+          connector = null;
+          failed(e, now);
+        }
+      }
+      switch (state) {
+        case READING:
+          if (paused && resumable) {
+            resume(now);
+          }
+          if (paused) {
+            // Waiting on the audio side is not the sender's fault, so no read timeout
+            return resumable ? now : now + MAX_SELECT_NANOS;
+          }
+          if (now - lastReadNanos >= readTimeoutNanos) {
+            failed(new SocketTimeoutException(), now);
+            return now;
+          }
+          return lastReadNanos + readTimeoutNanos;
+        case WAITING:
+          return retryNanos;
+        case CONNECTING:
+          // A connect that failed straight away and a new one started
+          return now;
+        case RESOLVING:
+          // Woken up by the lookup
+          return now + MAX_SELECT_NANOS;
+        default:
+          return now + MAX_SELECT_NANOS;
+      }
+    }
+
+    void readable(long now) {
+      if (!ready) {
+        ready = true;
+        readyNanos = now;
+      }
+    }
+
+    /** Reads once what has arrived and passes it on. */
+    void read(long now) {
+      ready = false;
+      if (state != State.READING) {
+        return;
+      }
+      syncObject.metrics.dispatched(now - readyNanos);
+      JitterBuffer jitterBuffer = syncObject.jitterBuffer;
+      try {
+        if (!drain()) {
+          pause();
+          return;
+        }
+
+        // Receive whatever has arrived straight into the ring. It is replaced on a format change.
+        boolean direct = receiver.direct();
+        AudioRingBuffer ring = jitterBuffer.ring();
+        ByteBuffer dst;
+        if (direct) {
+          dst = ring.writableRegion(syncObject.bytesPerAudioPacket);
+        } else {
+          heapBuffer.clear();
+          dst = heapBuffer;
+        }
+        if (!dst.hasRemaining()) {
+          // The audio side is behind, let TCP flow control hold off the sender
+          pause();
+          return;
+        }
+
+        int n = channel.read(dst);
+        if (n < 0) {
+          throw new EOFException();
+        } else if (n == 0) {
+          return;
+        }
+        connectionMade = true;
+        lastReadNanos = now;
+        syncObject.metrics.received(n);
+        if (direct) {
+          jitterBuffer.arrived(n);
+          ring.commitWrite(n);
+        } else {
+          receiver.write(dataBuffer, 0, n);
+          if (!held.isEmpty()) {
+            pause();
+          }
+        }
+      } catch (IOException e) {
+        failed(e, now);
+      } catch (InterruptedException e) {
+        // Not thrown, this sink never waits
+        failed(new SocketException("interrupted"), now);
+      }
+    }
+
+    /**
+     * Passes on what was held back, in order. Returns false if the stream has to wait for room in
+     * the ring or for the audio side to switch formats.
+     */
+    private boolean drain() {
+      JitterBuffer jitterBuffer = syncObject.jitterBuffer;
+      Object next;
+      while ((next = held.peek()) != null) {
+        if (jitterBuffer.pendingFormat() != null) {
+          return false;
+        }
+        if (next instanceof StreamFormat) {
+          jitterBuffer.announceFormat((StreamFormat) next);
+        } else if (!jitterBuffer.offerNow((ByteBuffer) next)) {
+          return false;
+        }
+        held.poll();
+      }
+      return jitterBuffer.pendingFormat() == null;
+    }
+
+    /** Stops reading until the audio side has read from the ring or switched to a new one. */
+    private void pause() {
+      if (!paused) {
+        paused = true;
+        key.interestOps(0);
+      }
+      resumable = false;
+      pausedRing = syncObject.jitterBuffer.ring();
+      pausedRing.setWriterListener(resumeListener);
+      // In case the audio side got there before the listener was set
+      if (syncObject.jitterBuffer.pendingFormat() == null && pausedRing.writable() > 0) {
+        resumable = true;
+      }
+    }
+
+    private void resume(long now) {
+      paused = false;
+      pausedRing.clearWriterListener(resumeListener);
+      pausedRing = null;
+      if (!drain()) {
+        pause();
+        return;
+      }
+      lastReadNanos = now;
+      key.interestOps(SelectionKey.OP_READ);
+    }
+
+    /** Decoded PCM. Held back while earlier PCM or a format change is still waiting. */
+    @Override
+    public void offer(ByteBuffer pcm) {
+      if (held.isEmpty()
+          && syncObject.jitterBuffer.pendingFormat() == null
+          && syncObject.jitterBuffer.offerNow(pcm)) {
+        return;
+      }
+      // The receiver reuses its buffers
+      ByteBuffer copy = ByteBuffer.allocate(pcm.remaining());
+      copy.put(pcm);
+      copy.flip();
+      held.add(copy);
+    }
+
+    /** Hands the switch to the audio side without waiting for it, see read(). */
+    @Override
+    public void formatChanged(StreamFormat format) {
+      if (held.isEmpty() && syncObject.jitterBuffer.pendingFormat() == null) {
+        syncObject.jitterBuffer.announceFormat(format);
+      } else {
+        held.add(format);
+      }
+    }
+
+    /** The default network changed, same as NetworkReadThread.networkAvailable(). */
+    void networkAvailable(Network network, long now) {
+      if ((state == State.RESOLVING || state == State.CONNECTING || state == State.READING)
+          && connectionNetwork != null
+          && !network.equals(connectionNetwork)) {
+        Log.i(tag, "network changed");
+        failed(new SocketException("network changed"), now);
+      }
+      if (state == State.WAITING) {
+        Log.i(tag, "network available");
+        backoff.reset();
+        connect(now);
+      }
+    }
+
+    /**
+     * Called by StallWatchdog from its own thread when nothing arrived for a while, same as
+     * NetworkReadThread.reconnect().
+     */
+    void reconnect() {
+      loop().execute(
+          () -> {
+            if (state == State.READING) {
+              Log.i(tag, "stalled, reconnecting");
+              failed(new SocketTimeoutException("stalled"), System.nanoTime());
+            }
+          });
+    }
+
+    /** The connection or the attempt to make one failed, decides what to do next. */
+    private void failed(IOException e, long now) {
+      Log.i(tag, "exception:" + e);
+      closeConnection();
+      // With retries on the session and its AudioTrack stay up while a dropped connection is made
+      // again
+      if (connectionMade && attemptConnectionRetry) {
+        backoff.reset();
+        connect(now);
+        return;
+      }
+      if (warmConnection && !connectionMade) {
+        // The connection opened ahead of time had gone stale, make a fresh one straight away
+        Log.i(tag, "warm connection failed");
+        connect(now);
+        return;
+      }
+      if (!attemptConnectionRetry) {
+        Log.i(tag, "no retries");
+        giveUp();
+        return;
+      }
+      if (backoff.failingNanos(now) >= NetworkReadThread.RETRY_GIVE_UP_NANOS) {
+        Log.i(tag, "retry limit reached");
+        giveUp();
+        return;
+      }
+      long delayNanos = backoff.nextDelayNanos(now);
+      Log.d(tag, "retry:" + backoff.attempts() + " delayMs:" + delayNanos / 1_000_000);
+      retryNanos = now + delayNanos;
+      state = State.WAITING;
+    }
+
+    private void giveUp() {
+      closeConnection();
+      state = State.DONE;
+      if (!removed) {
+        syncObject.brokenShutdown();
+      }
+    }
+
+    private void closeConnection() {
+      if (connector != null) {
+        connector.close();
+        try {
+          connector.poll(System.nanoTime());
+        } catch (IOException e) {
+          // Closes the attempts
+        }
+        connector = null;
+      }
+      if (channel != null) {
+        closeQuietly(channel);
+        channel = null;
+        key = null;
+      }
+      if (pausedRing != null) {
+        pausedRing.clearWriterListener(resumeListener);
+        pausedRing = null;
+      }
+      paused = false;
+      held.clear();
+      ready = false;
+    }
+
+    private void closeQuietly(SocketChannel channel) {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        Log.i(tag, "exception while closing channel:" + e);
+      }
+    }
+
+    /**
+     * Audio that arrived since the last call compared to real time, 1.0 for a stream that kept
+     * up. Negative if the stream wasn't playing the whole time.
+     */
+    double takeShare(long intervalNanos) {
+      JitterBuffer jitterBuffer = syncObject.jitterBuffer;
+      AudioRingBuffer ring = jitterBuffer.ring();
+      long position = ring.writePosition();
+      boolean valid = ring == statsRing && state == State.READING;
+      double share =
+          valid ? (double) jitterBuffer.bytesToNanos(position - statsPosition) / intervalNanos : -1;
+      statsRing = ring;
+      statsPosition = position;
+      return share;
+    }
+  }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2014 kaytat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kaytat.simpleprotocolplayer;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Follows the default network so a stream can reconnect as soon as the network is back, rather
+ * than when its next retry comes up.
+ */
+final class NetworkMonitor extends ConnectivityManager.NetworkCallback {
+  interface Listener {
+    /** Called on a ConnectivityManager thread when a network becomes the default. */
+    void networkAvailable(Network network);
+  }
+
+  private final ConnectivityManager connectivityManager;
+  private final Listener listener;
+
+  // Guarded by this
+  private Network network;
+  private int changes;
+
+  NetworkMonitor(Context context, Listener listener) {
+    this.connectivityManager =
+        (ConnectivityManager)
+            context.getApplicationContext().getSystemService(Context.CONNECTIVITY_SERVICE);
+    this.listener = listener;
+  }
+
+  void start() {
+    if (connectivityManager != null) {
+      connectivityManager.registerDefaultNetworkCallback(this);
+    }
+  }
+
+  void stop() {
+    if (connectivityManager != null) {
+      try {
+        connectivityManager.unregisterNetworkCallback(this);
+      } catch (IllegalArgumentException e) {
+        // Never registered
+      }
+    }
+  }
+
+  @Override
+  public void onAvailable(Network network) {
+    synchronized (this) {
+      this.network = network;
+      changes++;
+      notifyAll();
+    }
+    listener.networkAvailable(network);
+  }
+
+  @Override
+  public void onLost(Network network) {
+    synchronized (this) {
+      if (network.equals(this.network)) {
+        this.network = null;
+        changes++;
+        notifyAll();
+      }
+    }
+  }
+
+  /** The default network, null if there is none or it isn't known yet. */
+  synchronized Network network() {
+    return network;
+  }
+
+  /** Goes up by one with every change of the default network. */
+  synchronized int changes() {
+    return changes;
+  }
+
+  /**
+   * Waits at most timeoutNanos for a default network to become available after changes() returned
+   * since. Returns true if one did.
+   */
+  synchronized boolean awaitAvailable(int since, long timeoutNanos) throws InterruptedException {
+    long deadline = System.nanoTime() + timeoutNanos;
+    while (changes == since || network == null) {
+      long remaining = deadline - System.nanoTime();
+      if (remaining <= 0) {
+        return false;
+      }
+      TimeUnit.NANOSECONDS.timedWait(this, remaining);
+    }
+    return true;
+  }
+}
@@ -17,97 +17,193 @@
 
 package com.kaytat.simpleprotocolplayer;
 
+import android.content.Context;
+import android.net.Network;
+import android.net.wifi.WifiManager;
 import android.util.Log;
+import java.io.Closeable;
 import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
 
 /**
- * Worker thread reads data from the network
+ * Worker thread reads data from the network. TCP_NIO streams are read by the NetworkEventLoop
+ * instead.
  */
 class NetworkReadThread extends ThreadStoppable {
   final String TAG;
 
-  static final int[][] RETRY_PARAMS = new int[][]{{5, 12}, {20, 6}, {60, 2}};
+  // How long to keep trying to connect with retries on, as long as the old fixed schedule did
+  static final long RETRY_GIVE_UP_NANOS = 300_000_000_000L;
+
+  // Reconnects are timed by ReconnectBackoff and cut short when the network comes back
+  final NetworkMonitor networkMonitor;
+
+  // The socket of the current attempt and the network it was made on. It is closed from the
+  // network callback if the default network changes under it.
+  private volatile Closeable connection;
+  private volatile Network connectionNetwork;
+
+  // Set by runImpl() when it used the connection StreamWarmup opened ahead of time
+  private boolean warmConnection;
 
   final WorkerThreadPair syncObject;
   final String ipAddr;
   final int port;
+  // ipAddr followed by the servers to fail over to, TCP only
+  final List<String> servers;
+  // How long a TCP connection may go without data before the next server is tried
+  final int readTimeoutMs;
   final boolean attemptConnectionRetry;
-  final byte[][] dataBuffer;
-  final int numBuffers;
-  int bufferIndex;
+  final Transport transport;
+  final Codec codec;
+
+  // Decoding and format detection
+  final StreamReceiver receiver;
+
+  // The jitter buffer copies the data so a single read buffer is enough
+  byte[] dataBuffer;
 
   // socket timeout at 5 seconds
   static final int SOCKET_TIMEOUT = 5 * 1000;
 
+  // With servers to fail over to a dead one is given up on sooner
+  static final int FAILOVER_TIMEOUT = 1000;
+
+  // RTP statistics are logged this often
+  static final long STATS_LOG_INTERVAL_NANOS = StreamReceiver.STATS_LOG_INTERVAL_NANOS;
+  long lastStatsLogNanos = System.nanoTime();
+
+  // RTP packets are held this long at most waiting for a missing one
+  static final int RTP_REORDER_PACKETS = 4;
+  static final int RTP_FLUSH_MS = 20;
+  static final int RTP_MAX_PAYLOAD = 8192;
+  static final int RTP_RECEIVE_BUFFER = 256 * 1024;
+
+  // Another sender's stream is only taken over once the current one has been quiet this long
+  static final long RTP_SSRC_HOLD_NANOS = 2_000_000_000L;
+
+  // RTP loss counts of earlier connections
+  long rtpLostBase;
+  long rtpLateBase;
+
+  // The format the stream was configured with, what a dynamic RTP payload type is taken to be
+  final StreamFormat configuredFormat;
+  // Format of the RTP payload being received
+  private StreamFormat rtpPayloadFormat;
+
+  // Static payload types of RFC 3551 that say what the format is
+  static final int RTP_PT_L16_STEREO = 10;
+  static final int RTP_PT_L16_MONO = 11;
+
   public NetworkReadThread(WorkerThreadPair syncObject, String ipAddr, int port,
-      boolean attemptConnectionRetry, String debugTag) {
+      List<String> failoverAddrs, boolean attemptConnectionRetry, Transport transport, Codec codec,
+      String debugTag) {
     this.TAG = debugTag;
     this.setName(debugTag);
     this.syncObject = syncObject;
     this.ipAddr = ipAddr;
     this.port = port;
+    servers = servers(ipAddr, failoverAddrs);
+    configuredFormat = syncObject.jitterBuffer.format();
+    rtpPayloadFormat = configuredFormat;
+    readTimeoutMs = readTimeoutMs(servers);
     this.attemptConnectionRetry = attemptConnectionRetry;
+    this.transport = transport;
+    this.codec = codec;
+    if (transport == Transport.RTP) {
+      // Large enough for any UDP datagram
+      dataBuffer = new byte[65536];
+    } else {
+      dataBuffer = new byte[syncObject.bytesPerAudioPacket];
+    }
+    receiver = new StreamReceiver(syncObject, codec, syncObject.jitterBuffer, debugTag);
+    networkMonitor = new NetworkMonitor(syncObject.context, this::networkAvailable);
+  }
 
-    // since we use BlockingQueue to pass data
-    // so at most we will use NUM_PACKETS (in queue) + 1 (taken by
-    // audioThread) +1 (read socket)
-    // buffers .
-    numBuffers = WorkerThreadPair.NUM_PACKETS + 2;
-    bufferIndex = 0;
-    dataBuffer = new byte[numBuffers][];
-    for (int i = 0; i < numBuffers; i++) {
-      dataBuffer[i] = new byte[syncObject.bytesPerAudioPacket];
+  /** The server followed by the ones to fail over to, without duplicates. */
+  static List<String> servers(String ipAddr, List<String> failoverAddrs) {
+    List<String> servers = new ArrayList<>();
+    servers.add(ipAddr);
+    for (String addr : failoverAddrs) {
+      if (!servers.contains(addr)) {
+        servers.add(addr);
+      }
     }
+    return servers;
+  }
+
+  /** How long a TCP connection to one of the servers may go without data. */
+  static int readTimeoutMs(List<String> servers) {
+    return servers.size() > 1 ? FAILOVER_TIMEOUT : SOCKET_TIMEOUT;
   }
 
   @Override
   public void run() {
     Log.i(TAG, "start");
-    boolean connectionMade;
-    int retryCount = 0;
-    int retryParamIndex = 0;
-
+    syncObject.latencyProfile.threadStarted(LatencyProfile.NETWORK_THREAD);
+    if (!receiver.createDecoder()) {
+      syncObject.brokenShutdown();
+      return;
+    }
+    networkMonitor.start();
+    ReconnectBackoff backoff = new ReconnectBackoff(new Random());
     while (running) {
-      connectionMade = runImpl();
+      int networkChanges = networkMonitor.changes();
+      boolean connectionMade = runImpl();
 
       if (!running) {
         Log.i(TAG, "not running");
         break;
       }
+      // With retries on the session and its AudioTrack stay up while a dropped connection is
+      // made again
+      if (connectionMade && attemptConnectionRetry) {
+        backoff.reset();
+        continue;
+      }
+      if (warmConnection && !connectionMade) {
+        // The connection opened ahead of time had gone stale, make a fresh one straight away
+        Log.i(TAG, "warm connection failed");
+        continue;
+      }
       if (!attemptConnectionRetry) {
         Log.i(TAG, "no retries");
         break;
       }
 
-      if (connectionMade) {
-        retryCount = retryParamIndex = 0;
-        continue;
-      }
-
-      // There was connection made.  Increment the counters.
-      if (retryCount >= RETRY_PARAMS[retryParamIndex][1]) {
-        retryCount = 0;
-        retryParamIndex++;
-        if (retryParamIndex >= RETRY_PARAMS.length) {
-          // Hit the limit.  Exit.
-          Log.i(TAG, "retry limit reached");
-          break;
-        }
+      long now = System.nanoTime();
+      if (backoff.failingNanos(now) >= RETRY_GIVE_UP_NANOS) {
+        Log.i(TAG, "retry limit reached");
+        break;
       }
+      long delayNanos = backoff.nextDelayNanos(now);
+      Log.d(TAG, "retry:" + backoff.attempts() + " delayMs:" + delayNanos / 1_000_000);
 
-      Log.d(TAG,
-          "retryCount:" + retryCount + " retryParamIndex:" + retryParamIndex);
-
+      // Try again straight away if the network comes back in the meantime
       try {
-        //noinspection BusyWait
-        Thread.sleep((long) RETRY_PARAMS[retryParamIndex][0] * 1000);
-      } catch (Exception e) {
-        // Ignore.
+        if (networkMonitor.awaitAvailable(networkChanges, delayNanos)) {
+          Log.i(TAG, "network available");
+          backoff.reset();
+        }
+      } catch (InterruptedException e) {
+        // Stopping, checked at the top of the loop
       }
-      retryCount++;
     }
+    networkMonitor.stop();
+
+    receiver.release();
 
     // Determine if cleanup is necessary
     if (running) {
@@ -117,35 +213,105 @@ class NetworkReadThread extends ThreadStoppable {
   }
 
   public boolean runImpl() {
+    receiver.reset();
+    syncObject.metrics.connected();
+    // A new connection starts a new timeline. The audio thread and AudioTrack carry on, playing
+    // concealment and then silence until the first data arrives.
+    syncObject.jitterBuffer.reconnected();
+    syncObject.jitterBuffer.latencyProbe().reset();
+    connectionNetwork = networkMonitor.network();
+    warmConnection = false;
+    try {
+      if (transport == Transport.RTP) {
+        return runRtpImpl();
+      }
+      return runStreamImpl();
+    } finally {
+      connection = null;
+    }
+  }
+
+  /**
+   * A network became the default. A connection made over another one can't carry on, so it is
+   * closed and the retry loop reconnects now rather than after the socket timeout.
+   */
+  private void networkAvailable(Network network) {
+    Closeable connection = this.connection;
+    Network connectionNetwork = this.connectionNetwork;
+    if (connection == null || connectionNetwork == null || network.equals(connectionNetwork)) {
+      return;
+    }
+    Log.i(TAG, "network changed");
+    close(connection);
+  }
+
+  /**
+   * Called by StallWatchdog when nothing arrived for a while. The connection is closed and the
+   * retry loop connects again, to whichever server answers first, rather than waiting for the
+   * socket timeout.
+   */
+  void reconnect() {
+    Closeable connection = this.connection;
+    if (connection != null) {
+      Log.i(TAG, "stalled, reconnecting");
+      close(connection);
+    }
+  }
+
+  private void close(Closeable connection) {
+    try {
+      connection.close();
+    } catch (IOException e) {
+      Log.i(TAG, "exception while closing connection:" + e);
+    }
+  }
+
+  /**
+   * Returns a TCP connection to the server, or to a failover server if the ones before it didn't
+   * answer in time. The connection StreamWarmup opened ahead of time is used if there is one.
+   */
+  private SocketChannel connectTcp() throws IOException {
+    SocketChannel channel = StreamWarmup.takeConnection(ipAddr, port);
+    warmConnection = channel != null;
+    if (channel == null) {
+      // Registered before connecting so a network change can cut the connect short too
+      try (HappyEyeballs connector =
+          new HappyEyeballs(HappyEyeballs.candidates(servers, port), SOCKET_TIMEOUT)) {
+        connection = connector;
+        channel = connector.connect();
+      }
+    }
+    connection = channel;
+    Log.i(TAG, "connected:" + channel.socket().getRemoteSocketAddress());
+    return channel;
+  }
+
+  boolean runStreamImpl() {
     Socket socket = null;
     boolean connectionMade = false;
 
     try {
-      // Create the TCP socket and setup some parameters
-      socket = new Socket(ipAddr, port);
+      // Connect and setup some parameters. The channel is only used for its socket.
+      SocketChannel channel = connectTcp();
+      channel.configureBlocking(true);
+      socket = channel.socket();
       DataInputStream is = new DataInputStream(socket.getInputStream());
-      socket.setSoTimeout(SOCKET_TIMEOUT);
+      socket.setSoTimeout(readTimeoutMs);
       socket.setTcpNoDelay(true);
 
       Log.i(TAG, "running");
 
       while (running) {
-        // Get a buffer of audio data
-        is.readFully(dataBuffer[bufferIndex]);
+        // Take whatever has arrived, the jitter buffer only passes on whole frames
+        int n = is.read(dataBuffer);
+        if (n < 0) {
+          throw new EOFException();
+        }
         connectionMade = true;
+        syncObject.metrics.received(n);
 
-        boolean dataPassed =
-            syncObject.dataQueue.offer(dataBuffer[bufferIndex]);
-
-        if (!dataPassed) {
-          // if current buffer not used to queue,
-          // will be used as next read buffer, should not update
-          // Filled up. Throw away everything that's in the network
-          // queue.
-          Log.w(TAG, "drop " + syncObject.bytesPerAudioPacket + " bytes");
-          continue;
-        }
-        bufferIndex = (bufferIndex + 1) % numBuffers;
+        // The overflow policy is applied on the audio side
+        receiver.write(dataBuffer, 0, n);
       }
     } catch (Exception e) {
       Log.i(TAG, "runImpl:exception:" + e);
@@ -162,4 +328,162 @@ class NetworkReadThread extends ThreadStoppable {
 
     return connectionMade;
   }
+
+  boolean runRtpImpl() {
+    DatagramSocket socket = null;
+    WifiManager.MulticastLock multicastLock = null;
+    boolean connectionMade = false;
+    JitterBuffer jitterBuffer = syncObject.jitterBuffer;
+    StreamDecoder decoder = receiver.decoder();
+
+    // Linear PCM is big endian on the wire. Compressed payloads are one frame each.
+    RtpReorderBuffer reorder =
+        new RtpReorderBuffer(
+            (timestamp, data, off, len) -> {
+              if (decoder != null) {
+                decoder.writeFrame(data, off, len);
+              } else {
+                swapBytes(data, off, len, rtpPayloadFormat.encoding.bytesPerSample);
+                jitterBuffer
+                    .latencyProbe()
+                    .rtpTimestamp(
+                        jitterBuffer.ring().writePosition(),
+                        timestamp,
+                        rtpPayloadFormat.sampleRate);
+                jitterBuffer.offer(data, off, len);
+              }
+            },
+            RTP_REORDER_PACKETS,
+            RTP_MAX_PAYLOAD);
+    RtpPacket rtp = new RtpPacket();
+    DatagramPacket packet = new DatagramPacket(dataBuffer, dataBuffer.length);
+
+    try {
+      InetAddress address = StreamWarmup.resolve(ipAddr)[0];
+      boolean multicast = address.isMulticastAddress();
+      if (multicast) {
+        // Many receivers share one stream. Address reuse lets several players on this device
+        // join the same group too.
+        socket = new MulticastSocket(null);
+      } else {
+        socket = new DatagramSocket(null);
+      }
+      socket.setReuseAddress(true);
+      socket.setReceiveBufferSize(RTP_RECEIVE_BUFFER);
+      socket.bind(new InetSocketAddress(port));
+      connection = socket;
+
+      if (multicast) {
+        // Without the lock most Wi-Fi drivers filter out multicast to save power
+        WifiManager wifiManager =
+            (WifiManager)
+                syncObject.context.getApplicationContext().getSystemService(Context.WIFI_SERVICE);
+        if (wifiManager != null) {
+          multicastLock = wifiManager.createMulticastLock(TAG);
+          multicastLock.setReferenceCounted(false);
+          multicastLock.acquire();
+        }
+        ((MulticastSocket) socket).joinGroup(new InetSocketAddress(address, port), null);
+        Log.i(TAG, "joined " + address.getHostAddress());
+      }
+
+      // A short timeout so packets held for reordering don't wait on the next one
+      socket.setSoTimeout(RTP_FLUSH_MS);
+
+      Log.i(TAG, "running rtp");
+
+      int ssrc = 0;
+      int payloadType = -1;
+      long lastPacketNanos = System.nanoTime();
+      while (running) {
+        long now = System.nanoTime();
+        try {
+          packet.setLength(dataBuffer.length);
+          socket.receive(packet);
+        } catch (SocketTimeoutException e) {
+          reorder.flush();
+          if (now - lastPacketNanos > SOCKET_TIMEOUT * 1_000_000L) {
+            throw e;
+          }
+          continue;
+        }
+
+        // Only take the stream from the configured sender. A group can have several senders, stick
+        // to one of them.
+        if (!multicast && !address.equals(packet.getAddress())
+            || !rtp.parse(dataBuffer, packet.getLength())) {
+          continue;
+        }
+        if (connectionMade
+            && rtp.ssrc != ssrc
+            && now - lastPacketNanos < RTP_SSRC_HOLD_NANOS) {
+          continue;
+        }
+        if (!connectionMade || rtp.ssrc != ssrc || rtp.payloadType != payloadType) {
+          Log.i(TAG, "rtp ssrc:" + Integer.toHexString(rtp.ssrc) + " pt:" + rtp.payloadType);
+          ssrc = rtp.ssrc;
+          payloadType = rtp.payloadType;
+          reorder.reset();
+          jitterBuffer.latencyProbe().reset();
+          if (decoder == null) {
+            // A static payload type says what the format is, whatever the settings are
+            StreamFormat format = rtpFormat(payloadType);
+            rtpPayloadFormat = format != null ? format : configuredFormat;
+            receiver.pcmSink.formatChanged(rtpPayloadFormat);
+          }
+        }
+        connectionMade = true;
+        lastPacketNanos = now;
+
+        reorder.push(rtp.sequence, rtp.timestamp, dataBuffer, rtp.payloadOffset, rtp.payloadLength);
+        syncObject.metrics.received(packet.getLength());
+        syncObject.metrics.rtpLoss(rtpLostBase + reorder.lost(), rtpLateBase + reorder.late());
+
+        if (now - lastStatsLogNanos > STATS_LOG_INTERVAL_NANOS) {
+          lastStatsLogNanos = now;
+          Log.i(TAG, "rtp lost:" + reorder.lost() + " late:" + reorder.late()
+              + " duplicates:" + reorder.duplicates());
+          if (decoder != null) {
+            Log.i(TAG, decoder.stats());
+          }
+        }
+      }
+    } catch (Exception e) {
+      Log.i(TAG, "runRtpImpl:exception:" + e);
+    }
+
+    rtpLostBase += reorder.lost();
+    rtpLateBase += reorder.late();
+
+    // Closing a multicast socket also leaves the group
+    if (socket != null) {
+      socket.close();
+    }
+    if (multicastLock != null) {
+      multicastLock.release();
+    }
+
+    return connectionMade;
+  }
+
+  /** Format given by a static RTP payload type, null for a dynamic one. */
+  static StreamFormat rtpFormat(int payloadType) {
+    if (payloadType == RTP_PT_L16_STEREO) {
+      return new StreamFormat(44100, 2, PcmFormat.S16);
+    } else if (payloadType == RTP_PT_L16_MONO) {
+      return new StreamFormat(44100, 1, PcmFormat.S16);
+    }
+    return null;
+  }
+
+  /** Reverses the bytes of every sample, between big and little endian. */
+  static void swapBytes(byte[] data, int off, int len, int bytesPerSample) {
+    for (int i = off, end = off + len - len % bytesPerSample; i < end; i += bytesPerSample) {
+      for (int a = i, b = i + bytesPerSample - 1; a < b; a++, b--) {
+        byte t = data[a];
+        data[a] = data[b];
+        data[b] = t;
+      }
+    }
+  }
 }
@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2014 kaytat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kaytat.simpleprotocolplayer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Decodes Opus frames with the platform MediaCodec and offers the 16 bit PCM to a PcmSink.
+ *
+ * <p>The codec is fed and drained synchronously from the network thread. Decode time is measured
+ * from queueing a frame to getting its output back, matched up through the presentation time.
+ * A frame the codec can't take, because it is too large or the codec has no room in time, is
+ * dropped and counted in StreamMetrics rather than cut short or waited for without end.
+ */
+final class OpusDecoder implements StreamDecoder {
+  static final int SAMPLE_RATE = 48000;
+
+  // Largest Opus packet, 120 ms at 510 kbit/s is a little under this
+  static final int MAX_FRAME_BYTES = 8192;
+
+  static final long DEQUEUE_TIMEOUT_US = 10_000;
+  static final long SEEK_PRE_ROLL_NANOS = 80_000_000L;
+
+  // Waits for an input buffer before a frame is dropped. The network thread may be the event loop
+  // every stream depends on, so once the codec has stalled frames are dropped without waiting
+  // until it takes input again.
+  static final int INPUT_ATTEMPTS = 3;
+
+  // Most channels the mapping families written here cover
+  static final int MAX_CHANNELS = 8;
+
+  // Streams, coupled streams and the channel mapping of family 1 by channel count, as in libopus
+  private static final int[] SURROUND_STREAMS = {1, 1, 2, 2, 3, 4, 4, 5};
+  private static final int[] SURROUND_COUPLED = {0, 1, 1, 2, 2, 2, 3, 3};
+  private static final int[][] SURROUND_MAPPING = {
+    {0},
+    {0, 1},
+    {0, 2, 1},
+    {0, 1, 2, 3},
+    {0, 4, 1, 2, 3},
+    {0, 4, 1, 2, 3, 5},
+    {0, 4, 1, 2, 3, 5, 6},
+    {0, 6, 1, 2, 3, 4, 5, 7},
+  };
+
+  private final String tag;
+  private final PcmSink sink;
+  private final StreamMetrics metrics;
+  private final MediaCodec codec;
+  private final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+
+  // Length prefixed frame being put together from the byte stream
+  private final byte[] frame = new byte[MAX_FRAME_BYTES];
+  private final byte[] header = new byte[2];
+  private int headerBytes;
+  private int frameLength;
+  private int frameBytes;
+
+  // Queue time of recent frames, indexed by presentation time
+  private final long[] queuedNanos = new long[64];
+  private long frameIndex;
+
+  // An input buffer taken from the codec but not queued yet, -1 if none
+  private int heldInput = -1;
+  private boolean codecStalled;
+
+  private long decodedFrames;
+  private long droppedFrames;
+  private long totalDecodeNanos;
+  private long maxDecodeNanos;
+
+  OpusDecoder(int channels, PcmSink sink, StreamMetrics metrics, String tag) throws IOException {
+    if (channels > MAX_CHANNELS) {
+      throw new IOException("opus channels:" + channels);
+    }
+    this.tag = tag;
+    this.sink = sink;
+    this.metrics = metrics;
+
+    MediaFormat format =
+        MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_OPUS, SAMPLE_RATE, channels);
+    format.setByteBuffer("csd-0", opusHead(channels));
+    // No pre-skip, the stream is joined somewhere in the middle anyway
+    format.setByteBuffer("csd-1", nanosBuffer(0));
+    format.setByteBuffer("csd-2", nanosBuffer(SEEK_PRE_ROLL_NANOS));
+
+    codec = MediaCodec.createDecoderByType(MediaFormat.MIMETYPE_AUDIO_OPUS);
+    codec.configure(format, null, null, 0);
+    codec.start();
+    Log.i(tag, "opus decoder:" + codec.getName());
+  }
+
+  @Override
+  public void write(byte[] data, int off, int len) throws IOException, InterruptedException {
+    int end = off + len;
+    while (off < end) {
+      if (headerBytes < 2) {
+        header[headerBytes++] = data[off++];
+        if (headerBytes == 2) {
+          frameLength = (header[0] & 0xff) << 8 | (header[1] & 0xff);
+          frameBytes = 0;
+          if (frameLength > MAX_FRAME_BYTES) {
+            throw new IOException("opus frame too large:" + frameLength);
+          }
+        }
+        continue;
+      }
+
+      int n = Math.min(end - off, frameLength - frameBytes);
+      System.arraycopy(data, off, frame, frameBytes, n);
+      frameBytes += n;
+      off += n;
+      if (frameBytes == frameLength) {
+        headerBytes = 0;
+        writeFrame(frame, 0, frameLength);
+      }
+    }
+  }
+
+  @Override
+  public void writeFrame(byte[] data, int off, int len) throws InterruptedException {
+    int index = heldInput >= 0 ? heldInput : dequeueInput();
+    heldInput = -1;
+    if (index < 0) {
+      dropFrame("codec takes no input");
+      return;
+    }
+    ByteBuffer input = codec.getInputBuffer(index);
+    input.clear();
+    if (len > input.remaining()) {
+      // Keep the buffer for the next frame rather than queue a cut off one
+      heldInput = index;
+      dropFrame("frame of " + len + " bytes");
+      return;
+    }
+    input.put(data, off, len);
+
+    // The presentation time only serves to match output to input
+    queuedNanos[(int) (frameIndex % queuedNanos.length)] = System.nanoTime();
+    codec.queueInputBuffer(index, 0, input.position(), frameIndex++, 0);
+    drain();
+  }
+
+  /** Takes an input buffer from the codec, or returns -1 if it has no room in time. */
+  private int dequeueInput() throws InterruptedException {
+    int attempts = codecStalled ? 1 : INPUT_ATTEMPTS;
+    long timeoutUs = codecStalled ? 0 : DEQUEUE_TIMEOUT_US;
+    for (int i = 0; i < attempts; i++) {
+      int index = codec.dequeueInputBuffer(timeoutUs);
+      if (index >= 0) {
+        codecStalled = false;
+        return index;
+      }
+      drain();
+    }
+    codecStalled = true;
+    return -1;
+  }
+
+  private void dropFrame(String reason) {
+    if (droppedFrames++ == 0) {
+      Log.w(tag, "dropping opus frames, " + reason);
+    }
+    metrics.frameDropped();
+  }
+
+  private void drain() throws InterruptedException {
+    int index;
+    while ((index = codec.dequeueOutputBuffer(info, 0)) != MediaCodec.INFO_TRY_AGAIN_LATER) {
+      if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+        Log.i(tag, "opus output:" + codec.getOutputFormat());
+        continue;
+      } else if (index < 0) {
+        continue;
+      }
+
+      long now = System.nanoTime();
+      if (frameIndex - info.presentationTimeUs <= queuedNanos.length) {
+        long decodeNanos =
+            now - queuedNanos[(int) (info.presentationTimeUs % queuedNanos.length)];
+        decodedFrames++;
+        totalDecodeNanos += decodeNanos;
+        maxDecodeNanos = Math.max(maxDecodeNanos, decodeNanos);
+      }
+
+      ByteBuffer output = codec.getOutputBuffer(index);
+      if (output != null && info.size > 0) {
+        output.limit(info.offset + info.size);
+        output.position(info.offset);
+        sink.offer(output);
+      }
+      codec.releaseOutputBuffer(index, false);
+    }
+  }
+
+  @Override
+  public void reset() {
+    headerBytes = 0;
+    // Flushing hands every input buffer back to the codec
+    heldInput = -1;
+    codecStalled = false;
+    codec.flush();
+  }
+
+  @Override
+  public String stats() {
+    String stats =
+        "opus frames:" + decodedFrames
+            + " dropped:" + droppedFrames
+            + " avgDecodeUs:" + totalDecodeNanos / Math.max(1, decodedFrames) / 1000
+            + " maxDecodeUs:" + maxDecodeNanos / 1000;
+    maxDecodeNanos = 0;
+    return stats;
+  }
+
+  @Override
+  public void release() {
+    codec.stop();
+    codec.release();
+  }
+
+  /**
+   * Identification header from RFC 7845 section 5.1. Mono and stereo use channel mapping family 0,
+   * more channels family 1 with the Vorbis channel order and the stream layout libopus uses for it.
+   */
+  static ByteBuffer opusHead(int channels) {
+    boolean surround = channels > 2;
+    ByteBuffer head =
+        ByteBuffer.allocate(surround ? 21 + channels : 19).order(ByteOrder.LITTLE_ENDIAN);
+    head.put(new byte[] {'O', 'p', 'u', 's', 'H', 'e', 'a', 'd'});
+    head.put((byte) 1);
+    head.put((byte) channels);
+    head.putShort((short) 0);
+    head.putInt(SAMPLE_RATE);
+    head.putShort((short) 0);
+    head.put((byte) (surround ? 1 : 0));
+    if (surround) {
+      head.put((byte) SURROUND_STREAMS[channels - 1]);
+      head.put((byte) SURROUND_COUPLED[channels - 1]);
+      for (int i = 0; i < channels; i++) {
+        head.put((byte) SURROUND_MAPPING[channels - 1][i]);
+      }
+    }
+    head.flip();
+    return head;
+  }
+
+  private static ByteBuffer nanosBuffer(long nanos) {
+    ByteBuffer buffer = ByteBuffer.allocate(8).order(ByteOrder.nativeOrder());
+    buffer.putLong(nanos);
+    buffer.flip();
+    return buffer;
+  }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2014 kaytat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kaytat.simpleprotocolplayer;
+
+/**
+ * What the jitter buffer does when more audio has queued up than it wants to hold. Every policy
+ * keeps the newest audio and never lets the buffer grow past the configured maximum latency. The
+ * order matches the overflowPolicies array in strings.xml.
+ */
+enum OverflowPolicy {
+  // Throw away just enough of the oldest audio to stay at the maximum latency
+  DROP_OLDEST,
+  // Once past the maximum latency, jump straight back to the target fill
+  SKIP_TO_LIVE,
+  // Past twice the target, skip silent bursts and play slightly faster until back at the target.
+  // Past the maximum latency it skips like SKIP_TO_LIVE.
+  CATCH_UP;
+}
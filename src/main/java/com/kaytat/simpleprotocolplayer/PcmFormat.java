@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2014 kaytat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kaytat.simpleprotocolplayer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Sample format of the PCM on the wire. The order matches the sampleFormats array in strings.xml.
+ *
+ * <p>Everything between the ring and AudioTrack works on floats scaled to -1..1. The conversions
+ * below pick their loop once per block, so there is no per sample branch on the format. All of
+ * them are little endian and work on whole samples.
+ */
+enum PcmFormat {
+  S16(2),
+  // 24 bit in 3 bytes
+  S24(3),
+  S32(4),
+  FLOAT(4);
+
+  private static final float S16_SCALE = 1f / 0x8000;
+  private static final float S24_SCALE = 1f / 0x800000;
+  private static final float S32_SCALE = 1f / 0x80000000L;
+
+  final int bytesPerSample;
+
+  PcmFormat(int bytesPerSample) {
+    this.bytesPerSample = bytesPerSample;
+  }
+
+  /**
+   * Converts all of in, from position to limit, into floats starting at out[off]. Returns the
+   * number of samples. The position of in is moved to its limit.
+   */
+  int toFloat(ByteBuffer in, float[] out, int off) {
+    int p = in.position();
+    int end = in.limit();
+    int n = (end - p) / bytesPerSample;
+    switch (this) {
+      case S16:
+        for (int i = off; p < end; p += 2) {
+          out[i++] = in.getShort(p) * S16_SCALE;
+        }
+        break;
+      case S24:
+        for (int i = off; p < end; p += 3) {
+          int v = (in.get(p) & 0xff) | (in.get(p + 1) & 0xff) << 8 | in.get(p + 2) << 16;
+          out[i++] = v * S24_SCALE;
+        }
+        break;
+      case S32:
+        for (int i = off; p < end; p += 4) {
+          out[i++] = in.getInt(p) * S32_SCALE;
+        }
+        break;
+      case FLOAT:
+        for (int i = off; p < end; p += 4) {
+          out[i++] = in.getFloat(p);
+        }
+        break;
+    }
+    in.position(end);
+    return n;
+  }
+
+  /** Puts n samples from in[off] into out at its position, clipping to the range of the format. */
+  void fromFloat(float[] in, int off, int n, ByteBuffer out) {
+    int p = out.position();
+    int end = off + n;
+    switch (this) {
+      case S16:
+        for (int i = off; i < end; i++, p += 2) {
+          int v = Math.round(in[i] * 0x8000);
+          out.putShort(p, (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, v)));
+        }
+        break;
+      case S24:
+        for (int i = off; i < end; i++, p += 3) {
+          int v = Math.max(-0x800000, Math.min(0x7fffff, Math.round(in[i] * 0x800000)));
+          out.put(p, (byte) v);
+          out.put(p + 1, (byte) (v >> 8));
+          out.put(p + 2, (byte) (v >> 16));
+        }
+        break;
+      case S32:
+        for (int i = off; i < end; i++, p += 4) {
+          long v = Math.round(in[i] * (double) 0x80000000L);
+          out.putInt(p, (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, v)));
+        }
+        break;
+      case FLOAT:
+        for (int i = off; i < end; i++, p += 4) {
+          out.putFloat(p, in[i]);
+        }
+        break;
+    }
+    out.position(p);
+  }
+
+  /** Largest absolute sample value from position to limit of in, on the -1..1 scale. */
+  float peak(ByteBuffer in) {
+    int p = in.position();
+    int end = in.limit();
+    float peak = 0;
+    switch (this) {
+      case S16:
+        int max16 = 0;
+        for (; p < end; p += 2) {
+          max16 = Math.max(max16, Math.abs((int) in.getShort(p)));
+        }
+        peak = max16 * S16_SCALE;
+        break;
+      case S24:
+        int max24 = 0;
+        for (; p < end; p += 3) {
+          int v = (in.get(p) & 0xff) | (in.get(p + 1) & 0xff) << 8 | in.get(p + 2) << 16;
+          max24 = Math.max(max24, Math.abs(v));
+        }
+        peak = max24 * S24_SCALE;
+        break;
+      case S32:
+        long max32 = 0;
+        for (; p < end; p += 4) {
+          max32 = Math.max(max32, Math.abs((long) in.getInt(p)));
+        }
+        peak = max32 * S32_SCALE;
+        break;
+      case FLOAT:
+        for (; p < end; p += 4) {
+          peak = Math.max(peak, Math.abs(in.getFloat(p)));
+        }
+        break;
+    }
+    return peak;
+  }
+}
@@ -0,0 +1,28 @@
+/*
+ * Copyright (C) 2014 kaytat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kaytat.simpleprotocolplayer;
+
+import java.nio.ByteBuffer;
+
+/** Where a StreamDecoder puts the PCM it produced. */
+interface PcmSink {
+  /** Takes the PCM from position to limit of pcm. */
+  void offer(ByteBuffer pcm) throws InterruptedException;
+
+  /** Called before the first PCM in a new format. Does nothing unless the sink cares. */
+  default void formatChanged(StreamFormat format) throws InterruptedException {}
+}
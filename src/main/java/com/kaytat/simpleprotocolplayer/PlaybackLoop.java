@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2014 kaytat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kaytat.simpleprotocolplayer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The audio side of a stream in one format: takes bursts out of the jitter buffer, corrects the
+ * clock drift, conceals gaps and writes the result to an AudioSink. BufferToAudioTrackThread runs
+ * it on a device. It doesn't depend on Android so it can also run against other sinks.
+ */
+final class PlaybackLoop {
+  // Peak level treated as silence, about -60 dBFS
+  static final float SILENCE_THRESHOLD = 0.001f;
+
+  // How often to ask the sink when its frames are heard, in between the last answer is used
+  static final long TIMESTAMP_INTERVAL_NANOS = 500_000_000L;
+
+  private final JitterBuffer jitterBuffer;
+  private final AudioSink sink;
+  private final StreamMetrics metrics;
+  private final AudioRingBuffer ring;
+  private final int sampleRate;
+  private final int channels;
+  private final PcmFormat format;
+  private final PcmFormat outputFormat;
+  private final int bytesPerFrame;
+  private final int burstBytes;
+  private final int framesPerBurst;
+  private final int sinkFrames;
+  private final long burstNanos;
+
+  // A burst the resampler would only copy, in the sink encoding already, goes from the ring region
+  // straight to the sink. Otherwise the audio is copied three times on the way: the resampler
+  // converts what it reads from the ring region into its float history, filters or copies that into
+  // block, and block is converted to the sink encoding in outBuffer, which the sink takes as it is.
+  private final DriftEstimator drift;
+  private final DriftResampler resampler;
+  private final LossConcealer concealer;
+  private final float[] block;
+  private final ByteBuffer outBuffer;
+
+  // Totals from sinks and concealers of earlier formats
+  private final long underrunBase;
+  private final long concealedNanosBase;
+
+  // Frame counters after the resampler
+  private long writtenFrames;
+  private long playedFrames;
+  private int lastHead;
+  private double ratio = 1.0;
+  private boolean soundReported;
+
+  private final AudioSink.Timestamp timestamp = new AudioSink.Timestamp();
+  private boolean haveTimestamp;
+  private long lastTimestampNanos;
+
+  /**
+   * @param jitterBuffer where the network side puts the stream, already in format
+   * @param sink where to play, in outputFormat
+   * @param metrics updated after every burst
+   * @param underrunBase underruns of earlier sinks, added to what this one reports
+   * @param concealedNanosBase audio concealed in earlier formats
+   */
+  PlaybackLoop(
+      JitterBuffer jitterBuffer,
+      AudioSink sink,
+      PcmFormat outputFormat,
+      StreamMetrics metrics,
+      long underrunBase,
+      long concealedNanosBase) {
+    this.jitterBuffer = jitterBuffer;
+    this.sink = sink;
+    this.metrics = metrics;
+    this.underrunBase = underrunBase;
+    this.concealedNanosBase = concealedNanosBase;
+    StreamFormat streamFormat = jitterBuffer.format();
+    ring = jitterBuffer.ring();
+    sampleRate = streamFormat.sampleRate;
+    channels = streamFormat.channels;
+    format = streamFormat.encoding;
+    this.outputFormat = outputFormat;
+    bytesPerFrame = ring.bytesPerFrame();
+    burstBytes = jitterBuffer.burstBytes();
+    framesPerBurst = burstBytes / bytesPerFrame;
+    sinkFrames = sink.bufferSizeInFrames();
+    burstNanos = jitterBuffer.bytesToNanos(burstBytes);
+
+    drift = new DriftEstimator(sampleRate);
+    resampler = new DriftResampler(channels, format, framesPerBurst);
+    concealer = new LossConcealer(sampleRate, channels);
+    block = new float[DriftResampler.maxOutSamples(framesPerBurst, channels)];
+    outBuffer =
+        ByteBuffer.allocateDirect(outputFormat.bytesPerSample * block.length)
+            .order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  /**
+   * Plays one burst, conceals one if the network is late or returns after a short wait if there is
+   * nothing to do yet. Returns false once the jitter buffer has a new format pending and everything
+   * before it has been played.
+   */
+  boolean step() throws InterruptedException {
+    if (jitterBuffer.pendingFormat() != null && ring.available() < burstBytes) {
+      return false;
+    }
+
+    // The head position is an unsigned 32 bit frame count and wraps
+    int head = sink.playbackHeadPosition();
+    playedFrames += (head - lastHead) & 0xffffffffL;
+    lastHead = head;
+    metrics.sinkPosition(playedFrames, writtenFrames - playedFrames);
+
+    // Wait for the network only as long as the sink has something to play, with a burst to
+    // spare. After that a gap is concealed rather than letting the sink run dry.
+    if (writtenFrames == 0) {
+      // Nothing to conceal yet, just look for a format change now and then
+      if (!jitterBuffer.await(burstNanos)) {
+        return true;
+      }
+    } else {
+      long queuedNanos = (writtenFrames - playedFrames) * 1_000_000_000L / sampleRate;
+      if (!jitterBuffer.await(queuedNanos - burstNanos)) {
+        int samples = concealer.conceal(block, framesPerBurst);
+        writtenFrames += write(samples) / channels;
+        reportMetrics();
+        return true;
+      }
+    }
+
+    // While catching up, silence is the cheapest thing to leave out
+    if (jitterBuffer.speed() > 1.0
+        && isSilent(ring, format, burstBytes)
+        && jitterBuffer.skipBurst()) {
+      return true;
+    }
+
+    // The fill level is off after a gap, start measuring again but keep the drift estimate
+    if (concealer.isActive()) {
+      drift.reset();
+    }
+
+    ratio = drift.ratio();
+    double bufferedFrames =
+        ring.available() / bytesPerFrame + (writtenFrames - playedFrames) * ratio;
+    ratio =
+        drift.update(
+            System.nanoTime(),
+            bufferedFrames,
+            sinkFrames + jitterBuffer.targetBytes() / bytesPerFrame);
+    ratio *= jitterBuffer.speed();
+
+    if (!soundReported) {
+      // Heard once what is already in the sink has been played
+      soundReported = true;
+      metrics.firstSound(nextHeardNanos(System.nanoTime()));
+    }
+    if (format == outputFormat
+        && !concealer.isActive()
+        && resampler.passesThrough(framesPerBurst, ratio)) {
+      writtenFrames += playDirect();
+      reportMetrics();
+      return true;
+    }
+
+    // A burst can wrap around the end of the ring, then it takes two passes
+    int samples = 0;
+    int remaining = burstBytes;
+    while (remaining > 0) {
+      ByteBuffer region = ring.readableRegion(remaining);
+      int n = region.remaining();
+      samples += resampler.process(region, ratio, block, samples);
+      ring.commitRead(n);
+      remaining -= n;
+    }
+    concealer.played(block, samples);
+    writtenFrames += write(samples) / channels;
+    reportMetrics();
+    return true;
+  }
+
+  /** True from the first concealed burst of a gap until audio is played again. */
+  boolean concealing() {
+    return concealer.isActive();
+  }
+
+  long concealedFrames() {
+    return concealer.concealedFrames();
+  }
+
+  double driftPpm() {
+    return drift.driftPpm();
+  }
+
+  /** Resampling ratio of the last burst, including any catch up. */
+  double ratio() {
+    return ratio;
+  }
+
+  /** Updates the stream metrics after a burst. */
+  private void reportMetrics() {
+    metrics.sinkPosition(playedFrames, writtenFrames - playedFrames);
+    long now = System.nanoTime();
+    long heardNanos = nextHeardNanos(now);
+    long depthNanos = jitterBuffer.bytesToNanos(ring.available());
+    long latencyNanos = jitterBuffer.latencyProbe().latencyNanos(ring.readPosition(), heardNanos);
+    if (latencyNanos < 0) {
+      // Nothing to measure against yet, at least what is queued here is known
+      latencyNanos = depthNanos + heardNanos - now;
+    }
+    metrics.played(
+        depthNanos,
+        latencyNanos,
+        heardNanos - now,
+        underrunBase + sink.underrunCount(),
+        jitterBuffer.bytesToNanos(jitterBuffer.overflowBytes()),
+        concealedNanosBase + concealer.concealedFrames() * 1_000_000_000L / sampleRate);
+  }
+
+  /** System.nanoTime() at which the next frame written to the sink is heard. */
+  private long nextHeardNanos(long now) {
+    if (!haveTimestamp || now - lastTimestampNanos >= TIMESTAMP_INTERVAL_NANOS) {
+      lastTimestampNanos = now;
+      haveTimestamp = sink.timestamp(timestamp);
+    }
+    if (haveTimestamp) {
+      return timestamp.nanoTime
+          + (writtenFrames - timestamp.framePosition) * 1_000_000_000L / sampleRate;
+    }
+    // Without a timestamp the device latency after the sink is unknown
+    return now + (writtenFrames - playedFrames) * 1_000_000_000L / sampleRate;
+  }
+
+  /** Plays a burst from the ring as it is. Returns the number of frames written. */
+  private long playDirect() {
+    // First what the resampler holds back, so nothing is left out or played twice
+    long frames = 0;
+    int held = resampler.drain(block, 0);
+    if (held > 0) {
+      frames = write(held) / channels;
+    }
+    int remaining = burstBytes;
+    while (remaining > 0) {
+      ByteBuffer region = ring.readableRegion(remaining);
+      int n = region.remaining();
+      resampler.skip(region, ratio);
+      concealer.played(region, format);
+      sink.write(region, n);
+      ring.commitRead(n);
+      remaining -= n;
+      frames += n / bytesPerFrame;
+    }
+    return frames;
+  }
+
+  /** Converts samples samples of block to the sink encoding and plays them. */
+  private int write(int samples) {
+    outBuffer.clear();
+    outputFormat.fromFloat(block, 0, samples, outBuffer);
+    outBuffer.flip();
+    sink.write(outBuffer, outBuffer.remaining());
+    return samples;
+  }
+
+  /**
+   * Returns true if the next len bytes of PCM in the ring are all close to zero. Only the part
+   * before the end of the ring storage is looked at, a burst that wraps counts as not silent.
+   */
+  static boolean isSilent(AudioRingBuffer ring, PcmFormat format, int len) {
+    ByteBuffer region = ring.readableRegion(len);
+    if (region.remaining() < len) {
+      return false;
+    }
+    return format.peak(region) <= SILENCE_THRESHOLD;
+  }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2014 kaytat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kaytat.simpleprotocolplayer;
+
+import java.util.Random;
+
+/**
+ * Delays between connection attempts. They start well under a second and double with every
+ * failure up to MAX_NANOS. Half of each delay is random so players that lost the same server don't
+ * all come back at once.
+ */
+final class ReconnectBackoff {
+  static final long INITIAL_NANOS = 250_000_000L;
+  static final long MAX_NANOS = 30_000_000_000L;
+
+  private final Random random;
+  private int attempts;
+  private long firstFailureNanos;
+
+  ReconnectBackoff(Random random) {
+    this.random = random;
+  }
+
+  /** A connection was made or the network changed, the next failure starts over. */
+  void reset() {
+    attempts = 0;
+  }
+
+  /** Called after a failed attempt, returns how long to wait before the next one. */
+  long nextDelayNanos(long now) {
+    if (attempts == 0) {
+      firstFailureNanos = now;
+    }
+    long cap = Math.min(MAX_NANOS, INITIAL_NANOS << Math.min(attempts, 16));
+    attempts++;
+    return cap / 2 + (long) (random.nextDouble() * (cap / 2));
+  }
+
+  /** How long attempts have been failing, 0 since the last reset. */
+  long failingNanos(long now) {
+    return attempts > 0 ? now - firstFailureNanos : 0;
+  }
+
+  /** Failed attempts since the last reset. */
+  int attempts() {
+    return attempts;
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2014 kaytat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kaytat.simpleprotocolplayer;
+
+/**
+ * Header fields of one RTP packet as described in RFC 3550 section 5.1. The same instance is
+ * reused for every packet so receiving doesn't allocate.
+ */
+final class RtpPacket {
+  static final int HEADER_BYTES = 12;
+  static final int VERSION = 2;
+
+  int payloadType;
+  int sequence;
+  long timestamp;
+  int ssrc;
+  int payloadOffset;
+  int payloadLength;
+
+  /** Parses the first len bytes of buf. Returns false if it isn't a valid RTP packet. */
+  boolean parse(byte[] buf, int len) {
+    if (len < HEADER_BYTES || (buf[0] & 0xff) >> 6 != VERSION) {
+      return false;
+    }
+    boolean padding = (buf[0] & 0x20) != 0;
+    boolean extension = (buf[0] & 0x10) != 0;
+    int csrcCount = buf[0] & 0x0f;
+
+    payloadType = buf[1] & 0x7f;
+    sequence = readShort(buf, 2);
+    timestamp = readInt(buf, 4) & 0xffffffffL;
+    ssrc = readInt(buf, 8);
+
+    int offset = HEADER_BYTES + 4 * csrcCount;
+    if (extension) {
+      if (offset + 4 > len) {
+        return false;
+      }
+      offset += 4 + 4 * readShort(buf, offset + 2);
+    }
+    int end = len;
+    if (padding) {
+      end -= buf[len - 1] & 0xff;
+    }
+    if (offset > end) {
+      return false;
+    }
+    payloadOffset = offset;
+    payloadLength = end - offset;
+    return true;
+  }
+
+  private static int readShort(byte[] buf, int off) {
+    return (buf[off] & 0xff) << 8 | (buf[off + 1] & 0xff);
+  }
+
+  private static int readInt(byte[] buf, int off) {
+    return readShort(buf, off) << 16 | readShort(buf, off + 2);
+  }
+}
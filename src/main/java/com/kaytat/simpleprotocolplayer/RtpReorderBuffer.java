@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2014 kaytat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kaytat.simpleprotocolplayer;
+
+import java.io.IOException;
+
+/**
+ * Puts RTP payloads back in sequence number order.
+ *
+ * <p>A packet that arrives ahead of a missing one is held for at most window packets. Once that
+ * many later packets are waiting, or flush() is called, the missing one is given up on and counted
+ * as lost. A packet that turns up after its turn has passed is late and dropped rather than waited
+ * for. Copies of a packet that was already seen are dropped too, which matters with multicast where
+ * the same packet can arrive more than once. A jump in sequence numbers larger
+ * than the limits from RFC 3550 appendix A.1 is taken as the sender restarting.
+ *
+ * <p>Only used from the network thread.
+ */
+final class RtpReorderBuffer {
+  interface Sink {
+    /** Gets each payload in order along with its RTP timestamp. */
+    void write(long timestamp, byte[] data, int off, int len)
+        throws IOException, InterruptedException;
+  }
+
+  static final int MAX_DROPOUT = 3000;
+  static final int MAX_MISORDER = 100;
+
+  private final Sink sink;
+  private final int window;
+  private final int mask;
+  private final int maxPayloadBytes;
+
+  // Slot seq & mask holds a packet that arrived ahead of its turn
+  private final byte[][] slots;
+  private final int[] slotLengths;
+  private final int[] slotSequences;
+  private final long[] slotTimestamps;
+  private final boolean[] present;
+  private int held;
+
+  // Next sequence number to hand on, -1 until the first packet
+  private int expected = -1;
+
+  // Bit n is set if expected - 1 - n was handed on, tells duplicates from late packets
+  private long released;
+
+  private long lost;
+  private long late;
+  private long duplicates;
+
+  /** The window has to be a power of two so slots stay in order across sequence number wrap. */
+  RtpReorderBuffer(Sink sink, int window, int maxPayloadBytes) {
+    if (Integer.bitCount(window) != 1) {
+      throw new IllegalArgumentException("window:" + window);
+    }
+    this.sink = sink;
+    this.window = window;
+    this.mask = window - 1;
+    this.maxPayloadBytes = maxPayloadBytes;
+    slots = new byte[window][maxPayloadBytes];
+    slotLengths = new int[window];
+    slotSequences = new int[window];
+    slotTimestamps = new long[window];
+    present = new boolean[window];
+  }
+
+  /** Adds a payload with the given 16 bit sequence number and its RTP timestamp. */
+  void push(int sequence, long timestamp, byte[] data, int off, int len)
+      throws IOException, InterruptedException {
+    if (expected < 0) {
+      expected = sequence;
+    }
+
+    int delta = (short) (sequence - expected);
+    if (delta < -MAX_MISORDER || delta > MAX_DROPOUT) {
+      resync(sequence);
+      delta = 0;
+    }
+    if (delta < 0) {
+      if (-delta <= 64 && (released & 1L << (-delta - 1)) != 0) {
+        duplicates++;
+      } else {
+        late++;
+      }
+      return;
+    }
+
+    // Fast path, nothing is waiting and this is the next packet
+    if (delta == 0 && held == 0) {
+      sink.write(timestamp, data, off, len);
+      released = released << 1 | 1;
+      expected = (expected + 1) & 0xffff;
+      return;
+    }
+
+    // Make room by giving up on the oldest missing packets
+    while (delta >= window) {
+      releaseNext();
+      delta--;
+    }
+
+    int slot = sequence & mask;
+    if (present[slot]) {
+      duplicates++;
+      return;
+    }
+    if (len > maxPayloadBytes) {
+      // Too big to hold on to, only usable in order
+      late++;
+      return;
+    }
+    System.arraycopy(data, off, slots[slot], 0, len);
+    slotLengths[slot] = len;
+    slotSequences[slot] = sequence;
+    slotTimestamps[slot] = timestamp;
+    present[slot] = true;
+    held++;
+
+    while (present[expected & mask]) {
+      releaseNext();
+    }
+  }
+
+  /** Hands on everything that is waiting, skipping over missing packets. */
+  void flush() throws IOException, InterruptedException {
+    while (held > 0) {
+      releaseNext();
+    }
+  }
+
+  /** Hands on what is waiting and starts over with the next packet, for a new stream. */
+  void reset() throws IOException, InterruptedException {
+    flush();
+    expected = -1;
+    released = 0;
+  }
+
+  long lost() {
+    return lost;
+  }
+
+  long late() {
+    return late;
+  }
+
+  long duplicates() {
+    return duplicates;
+  }
+
+  private void releaseNext() throws IOException, InterruptedException {
+    int slot = expected & mask;
+    if (present[slot] && slotSequences[slot] == expected) {
+      present[slot] = false;
+      held--;
+      sink.write(slotTimestamps[slot], slots[slot], 0, slotLengths[slot]);
+      released = released << 1 | 1;
+    } else {
+      released <<= 1;
+      lost++;
+    }
+    expected = (expected + 1) & 0xffff;
+  }
+
+  private void resync(int sequence) throws IOException, InterruptedException {
+    flush();
+    expected = sequence;
+    released = 0;
+  }
+}
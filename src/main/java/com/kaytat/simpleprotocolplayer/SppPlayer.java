@@ -137,22 +137,12 @@ public class SppPlayer extends SimpleBasePlayer implements WorkerThreadPair.Stop
     }
     Bundle mediaItemExtra = state.getPlaylist().get(0).mediaItem.mediaMetadata.extras;
 
-    workers =
-        new WorkerThreadPair(
-            context,
-            this,
-            mediaItemExtra.getString(MusicService.DATA_IP_ADDRESS),
-            mediaItemExtra.getInt(MusicService.DATA_AUDIO_PORT, MusicService.DEFAULT_AUDIO_PORT),
-            mediaItemExtra.getInt(MusicService.DATA_SAMPLE_RATE, MusicService.DEFAULT_SAMPLE_RATE),
-            mediaItemExtra.getBoolean(MusicService.DATA_STEREO, MusicService.DEFAULT_STEREO),
-            mediaItemExtra.getInt(MusicService.DATA_BUFFER_MS, MusicService.DEFAULT_BUFFER_MS),
-            mediaItemExtra.getBoolean(MusicService.DATA_RETRY, MusicService.DEFAULT_RETRY),
-            mediaItemExtra.getBoolean(
-                MusicService.DATA_USE_PERFORMANCE_MODE, MusicService.DEFAULT_USE_PERFORMANCE_MODE),
-            mediaItemExtra.getBoolean(
-                MusicService.DATA_USE_MIN_BUFFER, MusicService.DEFAULT_USE_MIN_BUFFER));
+    StreamConfig config = new StreamConfig(mediaItemExtra);
+    workers = new WorkerThreadPair(context, this, config);
 
+    wifiLockManager.setLowLatency(config.lowLatency);
     wifiLockManager.setStayAwake(true);
+    workers.latencyProfile.wifiLock(wifiLockManager.heldMode());
   }
 
   private void stopStream() {
@@ -160,6 +150,10 @@ public class SppPlayer extends SimpleBasePlayer implements WorkerThreadPair.Stop
     wifiLockManager.setStayAwake(false);
 
     if (workers != null) {
+      Log.i(TAG, workers.metrics.summary());
+      for (String event : workers.metrics.stallEvents()) {
+        Log.i(TAG, "stall:" + event);
+      }
       workers.stopAndInterrupt();
       workers = null;
     }
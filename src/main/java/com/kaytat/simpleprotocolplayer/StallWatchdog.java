@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2014 kaytat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kaytat.simpleprotocolplayer;
+
+import android.util.Log;
+import androidx.annotation.Nullable;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Notices within a fraction of a second that a stream stopped moving, long before the socket
+ * timeout would. Every stream is looked at a few times per stall period on one shared thread.
+ *
+ * <p>The network side has stalled when no bytes were received for the stall period, the audio side
+ * when the sink head didn't move although audio was queued in it. Each side is only watched once
+ * it has made progress, and after a stall again once it moves, so connecting and a stream that
+ * hasn't started yet are left to the usual timeouts. An audio stall is looked at first, a network
+ * thread waiting for room in the ring of a stuck audio thread would look stalled too. A side
+ * without a callback isn't watched at all.
+ *
+ * <p>Stalls are recorded in StreamMetrics and handed to the callbacks, which only ask the threads
+ * to recover and return straight away.
+ */
+final class StallWatchdog {
+  private static final String TAG = StallWatchdog.class.getSimpleName();
+
+  // Shorter stalls are too close to the normal gaps between reads and between sink writes
+  static final int MIN_STALL_MS = 100;
+
+  // How often a stream is looked at per stall period
+  static final int CHECKS_PER_PERIOD = 4;
+
+  private static final ScheduledThreadPoolExecutor executor = createExecutor();
+
+  private static ScheduledThreadPoolExecutor createExecutor() {
+    ScheduledThreadPoolExecutor executor =
+        new ScheduledThreadPoolExecutor(
+            1,
+            r -> {
+              Thread t = new Thread(r, TAG);
+              t.setDaemon(true);
+              return t;
+            });
+    executor.setKeepAliveTime(10, TimeUnit.SECONDS);
+    executor.allowCoreThreadTimeOut(true);
+    executor.setRemoveOnCancelPolicy(true);
+    return executor;
+  }
+
+  private StallWatchdog() {}
+
+  /**
+   * Starts watching a stream until Watch.cancel().
+   *
+   * @param stallMs how long a side may go without progress, raised to MIN_STALL_MS
+   * @param onNetworkStall asks the network side to reconnect, null if it can't
+   * @param onAudioStall asks the audio side to restart its sink, null if it has none of its own
+   */
+  static Watch watch(
+      StreamMetrics metrics,
+      int stallMs,
+      @Nullable Runnable onNetworkStall,
+      @Nullable Runnable onAudioStall) {
+    Watch watch =
+        new Watch(
+            metrics,
+            Math.max(stallMs, MIN_STALL_MS) * 1_000_000L,
+            onNetworkStall,
+            onAudioStall);
+    long periodNanos = watch.stallNanos / CHECKS_PER_PERIOD;
+    watch.future =
+        executor.scheduleWithFixedDelay(
+            watch::check, periodNanos, periodNanos, TimeUnit.NANOSECONDS);
+    return watch;
+  }
+
+  /** One stream being watched. Only the watchdog thread runs check(). */
+  static final class Watch {
+    private final StreamMetrics metrics;
+    private final long stallNanos;
+    @Nullable private final Runnable onNetworkStall;
+    @Nullable private final Runnable onAudioStall;
+    private volatile ScheduledFuture<?> future;
+
+    // Last progress seen on each side and when it was seen
+    private long bytesReceived;
+    private long networkNanos;
+    private boolean networkArmed;
+    private long headFrames;
+    private long audioNanos;
+    private boolean audioArmed;
+
+    private Watch(
+        StreamMetrics metrics,
+        long stallNanos,
+        @Nullable Runnable onNetworkStall,
+        @Nullable Runnable onAudioStall) {
+      this.metrics = metrics;
+      this.stallNanos = stallNanos;
+      this.onNetworkStall = onNetworkStall;
+      this.onAudioStall = onAudioStall;
+      bytesReceived = metrics.bytesReceived();
+      headFrames = metrics.headFrames();
+      networkNanos = audioNanos = System.nanoTime();
+    }
+
+    private void check() {
+      long now = System.nanoTime();
+      try {
+        if (onAudioStall != null && checkAudio(now)) {
+          return;
+        }
+        if (onNetworkStall != null) {
+          checkNetwork(now);
+        }
+      } catch (RuntimeException e) {
+        // An exception would cancel the schedule for good
+        Log.e(TAG, metrics.name + " check:" + e);
+      }
+    }
+
+    /** Returns true if the audio side is stalled, recovering or not. */
+    private boolean checkAudio(long now) {
+      long head = metrics.headFrames();
+      if (head != headFrames || metrics.queuedFrames() <= 0) {
+        // Moving, or nothing to play so the head is meant to stand still
+        audioArmed |= head != headFrames;
+        headFrames = head;
+        audioNanos = now;
+        return false;
+      }
+      long stalled = now - audioNanos;
+      if (stalled < stallNanos) {
+        return false;
+      }
+      if (audioArmed) {
+        audioArmed = false;
+        Log.w(TAG, metrics.name + " audio stalled ms:" + stalled / 1_000_000);
+        metrics.audioStalled(stalled);
+        onAudioStall.run();
+      }
+      return true;
+    }
+
+    private void checkNetwork(long now) {
+      long bytes = metrics.bytesReceived();
+      if (bytes != bytesReceived) {
+        bytesReceived = bytes;
+        networkNanos = now;
+        networkArmed = true;
+        return;
+      }
+      long stalled = now - networkNanos;
+      if (networkArmed && stalled >= stallNanos) {
+        networkArmed = false;
+        Log.w(TAG, metrics.name + " network stalled ms:" + stalled / 1_000_000);
+        metrics.networkStalled(stalled);
+        onNetworkStall.run();
+      }
+    }
+
+    /** Stops watching. A check that is already running still finishes. */
+    void cancel() {
+      ScheduledFuture<?> future = this.future;
+      if (future != null) {
+        future.cancel(false);
+      }
+    }
+  }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2014 kaytat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kaytat.simpleprotocolplayer;
+
+import android.os.Bundle;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Settings for one stream. MainActivity puts these in a Bundle which arrives either as intent
+ * extras in MusicService or as media item extras in SppPlayer.
+ */
+final class StreamConfig {
+  final String serverAddr;
+  final int serverPort;
+  final int sampleRate;
+  final int channels;
+  final PcmFormat sampleFormat;
+  final int bufferMs;
+  final boolean retry;
+  // Implies usePerformanceMode and useMinBuffer, see LatencyProfile
+  final boolean lowLatency;
+  final boolean usePerformanceMode;
+  final boolean useMinBuffer;
+  final Transport transport;
+  final OverflowPolicy overflowPolicy;
+  final int maxLatencyMs;
+  // 0 if StallWatchdog is off
+  final int stallMs;
+  final Codec codec;
+  // Servers to fall back to, in order, on the same port
+  final List<String> failoverAddrs;
+  // More servers to play at the same time as serverAddr, mixed into one AudioTrack
+  final List<String> mixAddrs;
+
+  private final Bundle bundle;
+
+  StreamConfig(Bundle b) {
+    bundle = b;
+    serverAddr = b.getString(MusicService.DATA_IP_ADDRESS);
+    serverPort = b.getInt(MusicService.DATA_AUDIO_PORT, MusicService.DEFAULT_AUDIO_PORT);
+    sampleRate = b.getInt(MusicService.DATA_SAMPLE_RATE, MusicService.DEFAULT_SAMPLE_RATE);
+    // Older callers only say stereo or mono
+    channels =
+        b.getInt(
+            MusicService.DATA_CHANNELS,
+            b.getBoolean(MusicService.DATA_STEREO, MusicService.DEFAULT_STEREO) ? 2 : 1);
+    sampleFormat =
+        fromName(
+            PcmFormat.class,
+            b.getString(MusicService.DATA_SAMPLE_FORMAT),
+            MusicService.DEFAULT_SAMPLE_FORMAT);
+    bufferMs = b.getInt(MusicService.DATA_BUFFER_MS, MusicService.DEFAULT_BUFFER_MS);
+    retry = b.getBoolean(MusicService.DATA_RETRY, MusicService.DEFAULT_RETRY);
+    lowLatency = b.getBoolean(MusicService.DATA_LOW_LATENCY, MusicService.DEFAULT_LOW_LATENCY);
+    usePerformanceMode =
+        lowLatency
+            || b.getBoolean(
+                MusicService.DATA_USE_PERFORMANCE_MODE, MusicService.DEFAULT_USE_PERFORMANCE_MODE);
+    useMinBuffer =
+        lowLatency
+            || b.getBoolean(MusicService.DATA_USE_MIN_BUFFER, MusicService.DEFAULT_USE_MIN_BUFFER);
+    transport =
+        fromName(
+            Transport.class,
+            b.getString(MusicService.DATA_TRANSPORT),
+            MusicService.DEFAULT_TRANSPORT);
+    overflowPolicy =
+        fromName(
+            OverflowPolicy.class,
+            b.getString(MusicService.DATA_OVERFLOW_POLICY),
+            MusicService.DEFAULT_OVERFLOW_POLICY);
+    maxLatencyMs =
+        b.getInt(MusicService.DATA_MAX_LATENCY_MS, MusicService.DEFAULT_MAX_LATENCY_MS);
+    stallMs = Math.max(0, b.getInt(MusicService.DATA_STALL_MS, MusicService.DEFAULT_STALL_MS));
+    codec = fromName(Codec.class, b.getString(MusicService.DATA_CODEC), MusicService.DEFAULT_CODEC);
+    ArrayList<String> failover = b.getStringArrayList(MusicService.DATA_FAILOVER_ADDRESSES);
+    failoverAddrs = failover != null ? failover : new ArrayList<>();
+    ArrayList<String> mix = b.getStringArrayList(MusicService.DATA_MIX_ADDRESSES);
+    mixAddrs = mix != null ? mix : new ArrayList<>();
+  }
+
+  /** The same settings for one of the other servers of a mix. */
+  StreamConfig forMixedServer(String serverAddr) {
+    Bundle b = new Bundle(bundle);
+    b.putString(MusicService.DATA_IP_ADDRESS, serverAddr);
+    b.remove(MusicService.DATA_MIX_ADDRESSES);
+    return new StreamConfig(b);
+  }
+
+  /** The value of type with the given name, fallback if there is none. */
+  static <E extends Enum<E>> E fromName(Class<E> type, String name, E fallback) {
+    if (name != null) {
+      for (E e : type.getEnumConstants()) {
+        if (e.name().equals(name)) {
+          return e;
+        }
+      }
+    }
+    return fallback;
+  }
+}
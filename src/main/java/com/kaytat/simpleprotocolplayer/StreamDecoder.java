@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2014 kaytat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kaytat.simpleprotocolplayer;
+
+import java.io.IOException;
+
+/**
+ * Stage between NetworkReadThread and the jitter buffer that turns compressed audio into PCM. Raw
+ * PCM streams don't have one, the network thread then writes to the jitter buffer directly.
+ *
+ * <p>Only used from the network thread.
+ */
+interface StreamDecoder {
+  /** Takes the next len bytes of a byte stream, frames may be split across calls. */
+  void write(byte[] data, int off, int len) throws IOException, InterruptedException;
+
+  /** Takes exactly one compressed frame, for transports that keep packet boundaries. */
+  void writeFrame(byte[] data, int off, int len) throws IOException, InterruptedException;
+
+  /** Forgets any partial frame and decoder state, called for every new connection. */
+  void reset();
+
+  /** Decode statistics for the log. */
+  String stats();
+
+  void release();
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2014 kaytat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kaytat.simpleprotocolplayer;
+
+/** Sample rate, channel count and sample format of a PCM stream. */
+final class StreamFormat {
+  final int sampleRate;
+  final int channels;
+  final PcmFormat encoding;
+
+  StreamFormat(int sampleRate, int channels, PcmFormat encoding) {
+    this.sampleRate = sampleRate;
+    this.channels = channels;
+    this.encoding = encoding;
+  }
+
+  int bytesPerFrame() {
+    return channels * encoding.bytesPerSample;
+  }
+
+  int bytesPerSecond() {
+    return sampleRate * bytesPerFrame();
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof StreamFormat)) {
+      return false;
+    }
+    StreamFormat f = (StreamFormat) o;
+    return sampleRate == f.sampleRate && channels == f.channels && encoding == f.encoding;
+  }
+
+  @Override
+  public int hashCode() {
+    return (sampleRate * 31 + channels) * 31 + encoding.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return sampleRate + "Hz/" + channels + "ch/" + encoding;
+  }
+}
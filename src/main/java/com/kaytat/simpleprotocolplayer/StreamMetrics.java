@@ -0,0 +1,442 @@
+/*
+ * Copyright (C) 2014 kaytat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kaytat.simpleprotocolplayer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Live counters for one stream.
+ *
+ * <p>The network and audio threads each update their own counters as they go, without locks, and
+ * any thread can read them. Streams that are playing are listed in active() so the UI can show
+ * them without going through the service that owns them.
+ */
+final class StreamMetrics {
+  // Upper bounds of the queue depth histogram buckets, the last bucket holds everything above
+  static final int[] DEPTH_BUCKETS_MS = {5, 10, 20, 50, 100, 200, 500, 1000};
+
+  // A gap between two network reads longer than this counts as a stall
+  static final long STALL_NANOS = 100_000_000L;
+
+  private static final long RATE_WINDOW_NANOS = 1_000_000_000L;
+
+  // How many stall events are kept, older ones are dropped
+  static final int MAX_STALL_EVENTS = 32;
+
+  private static final List<StreamMetrics> active = new CopyOnWriteArrayList<>();
+
+  final String name;
+
+  // Network thread
+  private final AtomicLong bytesReceived = new AtomicLong();
+  private final AtomicLong receiveRate = new AtomicLong();
+  private final AtomicLong packetsLost = new AtomicLong();
+  private final AtomicLong packetsLate = new AtomicLong();
+  private final AtomicLong framesDropped = new AtomicLong();
+  private final AtomicLong readStalls = new AtomicLong();
+  private final AtomicLong maxReadStallNanos = new AtomicLong();
+  private final AtomicLong connectNanos = new AtomicLong();
+  private final AtomicLong reconnectNanos = new AtomicLong();
+  private final AtomicLong reconnects = new AtomicLong();
+  private final AtomicLong dispatchNanos = new AtomicLong();
+  private final AtomicLong maxDispatchNanos = new AtomicLong();
+  private long lastReadNanos;
+  private long attemptNanos;
+  // Last read before the connection was lost, 0 while connected
+  private long outageStartNanos;
+  private long rateWindowNanos;
+  private long rateWindowBytes;
+
+  // Audio thread
+  private final AtomicLong underruns = new AtomicLong();
+  private final AtomicLong droppedNanos = new AtomicLong();
+  private final AtomicLong concealedNanos = new AtomicLong();
+  private final AtomicLong latencyNanos = new AtomicLong();
+  private final AtomicLong outputNanos = new AtomicLong();
+  private final AtomicLongArray depthHistogram = new AtomicLongArray(DEPTH_BUCKETS_MS.length + 1);
+  private final AtomicLong firstSoundNanos = new AtomicLong();
+  // Sink frames played and still queued, watched by StallWatchdog
+  private final AtomicLong headFrames = new AtomicLong();
+  private final AtomicLong queuedFrames = new AtomicLong();
+
+  // StallWatchdog
+  private final AtomicLong networkStalls = new AtomicLong();
+  private final AtomicLong audioStalls = new AtomicLong();
+  private final ArrayDeque<String> stallEvents = new ArrayDeque<>();
+
+  // What the latency profile was granted
+  private volatile String profile = "-";
+
+  // When the stream was asked for
+  private final long startNanos = System.nanoTime();
+
+  StreamMetrics(String name) {
+    this.name = name;
+  }
+
+  /** Streams that are playing right now. */
+  static List<StreamMetrics> active() {
+    return active;
+  }
+
+  void register() {
+    active.add(this);
+  }
+
+  void unregister() {
+    active.remove(this);
+  }
+
+  /**
+   * Network thread. A new connection is about to be attempted, the time until its first read isn't
+   * a stall but counts as the connect time.
+   */
+  void connected() {
+    long now = System.nanoTime();
+    if (lastReadNanos != 0) {
+      outageStartNanos = lastReadNanos;
+    }
+    lastReadNanos = 0;
+    attemptNanos = now;
+  }
+
+  /** Network thread. Records a read of len bytes. */
+  void received(int len) {
+    long now = System.nanoTime();
+    if (lastReadNanos != 0) {
+      long gap = now - lastReadNanos;
+      if (gap > STALL_NANOS) {
+        readStalls.incrementAndGet();
+        if (gap > maxReadStallNanos.get()) {
+          maxReadStallNanos.set(gap);
+        }
+      }
+    } else {
+      connectNanos.set(now - attemptNanos);
+      if (outageStartNanos != 0) {
+        reconnectNanos.set(now - outageStartNanos);
+        reconnects.incrementAndGet();
+        outageStartNanos = 0;
+      }
+    }
+    lastReadNanos = now;
+
+    long total = bytesReceived.addAndGet(len);
+    if (now - rateWindowNanos >= RATE_WINDOW_NANOS) {
+      if (rateWindowNanos != 0) {
+        receiveRate.set((total - rateWindowBytes) * 1_000_000_000L / (now - rateWindowNanos));
+      }
+      rateWindowNanos = now;
+      rateWindowBytes = total;
+    }
+  }
+
+  /**
+   * Network event loop. The socket of the stream was readable for delayNanos before the loop got
+   * round to it.
+   */
+  void dispatched(long delayNanos) {
+    long smoothed = dispatchNanos.get();
+    dispatchNanos.lazySet(smoothed + (delayNanos - smoothed) / 16);
+    if (delayNanos > maxDispatchNanos.get()) {
+      maxDispatchNanos.lazySet(delayNanos);
+    }
+  }
+
+  /** Network thread. Totals of RTP packets given up on and arrived too late. */
+  void rtpLoss(long lost, long late) {
+    packetsLost.lazySet(lost);
+    packetsLate.lazySet(late);
+  }
+
+  /** Network thread. A compressed frame couldn't be decoded and was left out. */
+  void frameDropped() {
+    framesDropped.incrementAndGet();
+  }
+
+  /**
+   * Audio thread. Called with every burst.
+   *
+   * @param depthNanos audio waiting in the jitter buffer
+   * @param latencyNanos time from the sender to the speaker as measured by LatencyProbe
+   * @param outputNanos time from the sink to the speaker, its buffer and the device after it
+   * @param underruns total AudioTrack underruns
+   * @param droppedNanos total time thrown away by the overflow policy
+   * @param concealedNanos total time made up by loss concealment
+   */
+  void played(
+      long depthNanos,
+      long latencyNanos,
+      long outputNanos,
+      long underruns,
+      long droppedNanos,
+      long concealedNanos) {
+    long depthMs = depthNanos / 1_000_000;
+    int bucket = 0;
+    while (bucket < DEPTH_BUCKETS_MS.length && depthMs > DEPTH_BUCKETS_MS[bucket]) {
+      bucket++;
+    }
+    depthHistogram.incrementAndGet(bucket);
+    this.latencyNanos.lazySet(latencyNanos);
+    this.outputNanos.lazySet(outputNanos);
+    this.underruns.lazySet(underruns);
+    this.droppedNanos.lazySet(droppedNanos);
+    this.concealedNanos.lazySet(concealedNanos);
+  }
+
+  /**
+   * Audio thread. Where the sink is, called whenever its head position is read and after every
+   * write.
+   *
+   * @param headFrames frames played by the sink so far
+   * @param queuedFrames frames written to the sink and not played yet
+   */
+  void sinkPosition(long headFrames, long queuedFrames) {
+    this.headFrames.lazySet(headFrames);
+    this.queuedFrames.lazySet(queuedFrames);
+  }
+
+  /** StallWatchdog. Nothing was read from the network for stalledNanos. */
+  void networkStalled(long stalledNanos) {
+    networkStalls.incrementAndGet();
+    stallEvent("network", stalledNanos);
+  }
+
+  /** StallWatchdog. The sink head didn't move for stalledNanos with audio queued. */
+  void audioStalled(long stalledNanos) {
+    audioStalls.incrementAndGet();
+    stallEvent("audio", stalledNanos);
+  }
+
+  private void stallEvent(String kind, long stalledNanos) {
+    String event =
+        String.format(
+            Locale.US,
+            "+%.3fs %s %dms",
+            (System.nanoTime() - startNanos) / 1e9,
+            kind,
+            stalledNanos / 1_000_000);
+    synchronized (stallEvents) {
+      if (stallEvents.size() == MAX_STALL_EVENTS) {
+        stallEvents.removeFirst();
+      }
+      stallEvents.addLast(event);
+    }
+  }
+
+  /**
+   * Audio thread. The first audio of the stream went to the sink and is heard at heardNanos, only
+   * the first call counts.
+   */
+  void firstSound(long heardNanos) {
+    firstSoundNanos.compareAndSet(0, Math.max(1, heardNanos - startNanos));
+  }
+
+  /** Set as LatencyProfile finds out what was granted. */
+  void profile(String description) {
+    profile = description;
+  }
+
+  String profile() {
+    return profile;
+  }
+
+  long bytesReceived() {
+    return bytesReceived.get();
+  }
+
+  /** Bytes per second over the last second or so. */
+  long receiveRate() {
+    return receiveRate.get();
+  }
+
+  long packetsLost() {
+    return packetsLost.get();
+  }
+
+  long packetsLate() {
+    return packetsLate.get();
+  }
+
+  long framesDropped() {
+    return framesDropped.get();
+  }
+
+  long readStalls() {
+    return readStalls.get();
+  }
+
+  long maxReadStallNanos() {
+    return maxReadStallNanos.get();
+  }
+
+  /** Time from starting the last connection attempt until its first data. */
+  long connectNanos() {
+    return connectNanos.get();
+  }
+
+  /** Time without data around the last reconnect, from the last read of the old connection. */
+  long reconnectNanos() {
+    return reconnectNanos.get();
+  }
+
+  long reconnects() {
+    return reconnects.get();
+  }
+
+  /** Smoothed time from the socket being readable to the event loop reading it, 0 without one. */
+  long dispatchNanos() {
+    return dispatchNanos.get();
+  }
+
+  long maxDispatchNanos() {
+    return maxDispatchNanos.get();
+  }
+
+  long headFrames() {
+    return headFrames.get();
+  }
+
+  long queuedFrames() {
+    return queuedFrames.get();
+  }
+
+  long networkStalls() {
+    return networkStalls.get();
+  }
+
+  long audioStalls() {
+    return audioStalls.get();
+  }
+
+  /**
+   * The last MAX_STALL_EVENTS stalls, oldest first. Each is the time since the stream was asked
+   * for, what stalled and for how long before it was acted on.
+   */
+  List<String> stallEvents() {
+    synchronized (stallEvents) {
+      return new ArrayList<>(stallEvents);
+    }
+  }
+
+  /** Time from asking for the stream until its first audio is heard, 0 until then. */
+  long firstSoundNanos() {
+    return firstSoundNanos.get();
+  }
+
+  long underruns() {
+    return underruns.get();
+  }
+
+  long droppedNanos() {
+    return droppedNanos.get();
+  }
+
+  long concealedNanos() {
+    return concealedNanos.get();
+  }
+
+  long latencyNanos() {
+    return latencyNanos.get();
+  }
+
+  long outputNanos() {
+    return outputNanos.get();
+  }
+
+  /** Number of bursts played with a queue depth in each of DEPTH_BUCKETS_MS, plus one above. */
+  long[] depthHistogram() {
+    long[] counts = new long[depthHistogram.length()];
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = depthHistogram.get(i);
+    }
+    return counts;
+  }
+
+  /**
+   * Upper bound in ms of the histogram bucket that the given fraction of bursts fall into. Returns
+   * Integer.MAX_VALUE for the top bucket and -1 if nothing was played yet.
+   */
+  int depthPercentileMs(double fraction) {
+    long[] counts = depthHistogram();
+    long total = 0;
+    for (long c : counts) {
+      total += c;
+    }
+    long wanted = (long) Math.ceil(total * fraction);
+    long seen = 0;
+    if (total == 0) {
+      return -1;
+    }
+    for (int i = 0; i < DEPTH_BUCKETS_MS.length; i++) {
+      seen += counts[i];
+      if (seen >= wanted) {
+        return DEPTH_BUCKETS_MS[i];
+      }
+    }
+    return Integer.MAX_VALUE;
+  }
+
+  /** One line for logs and the on-screen overlay. */
+  String summary() {
+    return String.format(
+        Locale.US,
+        "%s rx:%dkB/s lost:%d late:%d decodeDrops:%d stalls:%d(max %dms) underruns:%d dropMs:%d"
+            + " concealMs:%d"
+            + " depthMs p50:%s p95:%s latencyMs:%d outMs:%d"
+            + " firstSoundMs:%d connectMs:%d reconnects:%d(last %dms) loopUs:%d(max %d)"
+            + " profile:%s watchdog:%d/%d",
+        name,
+        receiveRate() / 1000,
+        packetsLost(),
+        packetsLate(),
+        framesDropped(),
+        readStalls(),
+        maxReadStallNanos() / 1_000_000,
+        underruns(),
+        droppedNanos() / 1_000_000,
+        concealedNanos() / 1_000_000,
+        depthLabel(depthPercentileMs(0.5)),
+        depthLabel(depthPercentileMs(0.95)),
+        latencyNanos() / 1_000_000,
+        outputNanos() / 1_000_000,
+        firstSoundNanos() / 1_000_000,
+        connectNanos() / 1_000_000,
+        reconnects(),
+        reconnectNanos() / 1_000_000,
+        dispatchNanos() / 1000,
+        maxDispatchNanos() / 1000,
+        profile(),
+        networkStalls(),
+        audioStalls());
+  }
+
+  private static String depthLabel(int ms) {
+    if (ms < 0) {
+      return "-";
+    } else if (ms == Integer.MAX_VALUE) {
+      return ">" + DEPTH_BUCKETS_MS[DEPTH_BUCKETS_MS.length - 1];
+    }
+    return "<" + ms;
+  }
+}
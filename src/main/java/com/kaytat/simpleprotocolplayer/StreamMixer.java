@@ -0,0 +1,367 @@
+/*
+ * Copyright (C) 2014 kaytat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kaytat.simpleprotocolplayer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Plays several streams through one AudioSink on a single thread.
+ *
+ * <p>Each input takes bursts out of its own jitter buffer, corrects the clock drift and conceals
+ * gaps the way PlaybackLoop does. What comes out of its resampler waits in a small FIFO until the
+ * mixer takes the next burst. The inputs are scaled by their gain and summed, and a peak limiter
+ * keeps the sum from clipping. Writes to the sink are float in the channel layout of the mixer.
+ * Mono inputs go to every channel. Other layouts are matched channel by channel, anything the mixer
+ * has no channel for is left out.
+ *
+ * <p>Every input plays at the sample rate of the mixer. A stream that changes to another rate is
+ * dropped until it changes back, and counted as dropped in its metrics.
+ *
+ * <p>Inputs can be added and removed from any thread. Everything else runs on the mixer thread and
+ * allocates nothing, except when the format of an input changes.
+ */
+final class StreamMixer {
+  // Peak level the limiter holds the sum to, about -0.2 dBFS
+  static final float LIMIT = 0.98f;
+
+  // Time for the limiter gain to recover most of the way after a peak
+  static final double RELEASE_SECONDS = 0.05;
+
+  private final AudioSink sink;
+  private final int sampleRate;
+  private final int channels;
+  private final int framesPerBurst;
+  private final int sinkFrames;
+  private final float[] mix;
+  private final ByteBuffer outBuffer;
+  private final float release;
+  private float limiterGain = 1.0f;
+
+  // Replaced as a whole when inputs come and go, so the mixer thread can walk it without locking
+  private volatile Input[] inputs = new Input[0];
+
+  // Frame counters of the sink
+  private long writtenFrames;
+  private long playedFrames;
+  private int lastHead;
+
+  private final AudioSink.Timestamp timestamp = new AudioSink.Timestamp();
+  private boolean haveTimestamp;
+  private long lastTimestampNanos;
+
+  /**
+   * @param sink where to play, in float with channels channels at sampleRate
+   * @param framesPerBurst frames mixed and written at a time
+   */
+  StreamMixer(AudioSink sink, int sampleRate, int channels, int framesPerBurst) {
+    this.sink = sink;
+    this.sampleRate = sampleRate;
+    this.channels = channels;
+    this.framesPerBurst = framesPerBurst;
+    this.sinkFrames = sink.bufferSizeInFrames();
+    mix = new float[framesPerBurst * channels];
+    outBuffer =
+        ByteBuffer.allocateDirect(PcmFormat.FLOAT.bytesPerSample * mix.length)
+            .order(ByteOrder.LITTLE_ENDIAN);
+    release = (float) (1 - Math.exp(-1.0 / (RELEASE_SECONDS * sampleRate)));
+  }
+
+  int sampleRate() {
+    return sampleRate;
+  }
+
+  int framesPerBurst() {
+    return framesPerBurst;
+  }
+
+  /**
+   * Adds a stream. The jitter buffer must already use bursts of framesPerBurst() frames.
+   *
+   * @param metrics updated after every burst
+   * @param targetMs initial jitter buffer target after a format change
+   */
+  synchronized Input add(JitterBuffer jitterBuffer, StreamMetrics metrics, int targetMs) {
+    Input input = new Input(jitterBuffer, metrics, targetMs);
+    Input[] grown = Arrays.copyOf(inputs, inputs.length + 1);
+    grown[inputs.length] = input;
+    inputs = grown;
+    return input;
+  }
+
+  synchronized void remove(Input input) {
+    Input[] current = inputs;
+    for (int i = 0; i < current.length; i++) {
+      if (current[i] == input) {
+        Input[] shrunk = new Input[current.length - 1];
+        System.arraycopy(current, 0, shrunk, 0, i);
+        System.arraycopy(current, i + 1, shrunk, i, current.length - i - 1);
+        inputs = shrunk;
+        return;
+      }
+    }
+  }
+
+  /** Mixes one burst and writes it to the sink, which blocks while the sink is full. */
+  void step() {
+    // The head position is an unsigned 32 bit frame count and wraps
+    int head = sink.playbackHeadPosition();
+    playedFrames += (head - lastHead) & 0xffffffffL;
+    lastHead = head;
+    long now = System.nanoTime();
+    long heardNanos = nextHeardNanos(now);
+    long queuedFrames = writtenFrames - playedFrames;
+
+    Arrays.fill(mix, 0);
+    for (Input input : inputs) {
+      input.mixInto(queuedFrames, now, heardNanos);
+    }
+    limit();
+
+    outBuffer.clear();
+    PcmFormat.FLOAT.fromFloat(mix, 0, mix.length, outBuffer);
+    outBuffer.flip();
+    sink.write(outBuffer, outBuffer.remaining());
+    writtenFrames += framesPerBurst;
+  }
+
+  /** Scales the mix so no frame goes over LIMIT. Attacks at once and releases smoothly. */
+  private void limit() {
+    float gain = limiterGain;
+    for (int f = 0; f < mix.length; f += channels) {
+      float peak = 0;
+      for (int ch = 0; ch < channels; ch++) {
+        peak = Math.max(peak, Math.abs(mix[f + ch]));
+      }
+      gain += (1.0f - gain) * release;
+      if (peak * gain > LIMIT) {
+        gain = LIMIT / peak;
+      }
+      for (int ch = 0; ch < channels; ch++) {
+        mix[f + ch] *= gain;
+      }
+    }
+    limiterGain = gain;
+  }
+
+  /** System.nanoTime() at which the next frame written to the sink is heard. */
+  private long nextHeardNanos(long now) {
+    if (!haveTimestamp || now - lastTimestampNanos >= PlaybackLoop.TIMESTAMP_INTERVAL_NANOS) {
+      lastTimestampNanos = now;
+      haveTimestamp = sink.timestamp(timestamp);
+    }
+    if (haveTimestamp) {
+      return timestamp.nanoTime
+          + (writtenFrames - timestamp.framePosition) * 1_000_000_000L / sampleRate;
+    }
+    return now + (writtenFrames - playedFrames) * 1_000_000_000L / sampleRate;
+  }
+
+  /** One stream of the mix. Only setGain() may be called from other threads. */
+  final class Input {
+    private final JitterBuffer jitterBuffer;
+    private final StreamMetrics metrics;
+    private final int targetMs;
+    private volatile float gain = 1.0f;
+
+    // Depend on the stream format, rebuilt when it changes
+    private AudioRingBuffer ring;
+    private PcmFormat format;
+    private int inChannels;
+    private int bytesPerFrame;
+    private int burstBytes;
+    private boolean playable;
+    private DriftEstimator drift;
+    private DriftResampler resampler;
+    private LossConcealer concealer;
+    private float[] block;
+    // Resampled frames in the layout of the stream, waiting to be mixed
+    private float[] fifo;
+    private int fifoFrames;
+
+    private boolean started;
+    private boolean soundReported;
+    private long concealedNanosBase;
+    private long droppedNanos;
+
+    private Input(JitterBuffer jitterBuffer, StreamMetrics metrics, int targetMs) {
+      this.jitterBuffer = jitterBuffer;
+      this.metrics = metrics;
+      this.targetMs = targetMs;
+      configure();
+    }
+
+    /** Any thread. Scales the stream in the mix, for volume and ducking. */
+    void setGain(float gain) {
+      this.gain = gain;
+    }
+
+    private void configure() {
+      StreamFormat streamFormat = jitterBuffer.format();
+      ring = jitterBuffer.ring();
+      format = streamFormat.encoding;
+      inChannels = streamFormat.channels;
+      bytesPerFrame = streamFormat.bytesPerFrame();
+      burstBytes = jitterBuffer.burstBytes();
+      playable = streamFormat.sampleRate == sampleRate;
+      int inFrames = burstBytes / bytesPerFrame;
+      drift = new DriftEstimator(sampleRate);
+      resampler = new DriftResampler(inChannels, format, inFrames);
+      if (concealer != null) {
+        concealedNanosBase += concealer.concealedFrames() * 1_000_000_000L / sampleRate;
+      }
+      concealer = new LossConcealer(sampleRate, inChannels);
+      block =
+          new float
+              [Math.max(
+                  DriftResampler.maxOutSamples(inFrames, inChannels), framesPerBurst * inChannels)];
+      fifo = new float[block.length + framesPerBurst * inChannels];
+      fifoFrames = 0;
+    }
+
+    /** Switches to the format the network thread is waiting to change to. */
+    private void switchFormat() {
+      StreamFormat next = jitterBuffer.pendingFormat();
+      int targetBytes = (int) ((long) next.bytesPerSecond() * targetMs / 1000);
+      int nextBytesPerFrame = next.bytesPerFrame();
+      jitterBuffer.applyFormat(
+          framesPerBurst * nextBytesPerFrame,
+          Math.max(nextBytesPerFrame, targetBytes / nextBytesPerFrame * nextBytesPerFrame));
+      configure();
+    }
+
+    /** Adds a burst of this stream to the mix and reports its metrics. */
+    private void mixInto(long queuedFrames, long now, long heardNanos) {
+      while (fifoFrames < framesPerBurst && fill(queuedFrames, now, heardNanos)) {
+        // Until there is a burst to mix or nothing more to take
+      }
+      int frames = Math.min(fifoFrames, framesPerBurst);
+      add(frames);
+      fifoFrames -= frames;
+      System.arraycopy(fifo, frames * inChannels, fifo, 0, fifoFrames * inChannels);
+      reportMetrics(now, heardNanos);
+    }
+
+    /** Puts the next burst or its concealment into the FIFO. Returns false if there is none. */
+    private boolean fill(long queuedFrames, long now, long heardNanos) {
+      if (jitterBuffer.pendingFormat() != null && ring.available() < burstBytes) {
+        switchFormat();
+      }
+      try {
+        if (!jitterBuffer.await(0)) {
+          if (!started) {
+            return false;
+          }
+          append(concealer.conceal(block, framesPerBurst));
+          return true;
+        }
+      } catch (InterruptedException e) {
+        // Never waits, but keep the interrupt for the mixer thread
+        Thread.currentThread().interrupt();
+        return false;
+      }
+      started = true;
+      if (!playable) {
+        droppedNanos += jitterBuffer.bytesToNanos(ring.skip(burstBytes));
+        return false;
+      }
+
+      // While catching up, silence is the cheapest thing to leave out
+      if (jitterBuffer.speed() > 1.0
+          && PlaybackLoop.isSilent(ring, format, burstBytes)
+          && jitterBuffer.skipBurst()) {
+        return true;
+      }
+      if (concealer.isActive()) {
+        drift.reset();
+      }
+      double ratio = drift.ratio();
+      double bufferedFrames =
+          ring.available() / bytesPerFrame + fifoFrames + queuedFrames * ratio;
+      ratio =
+          drift.update(
+              now, bufferedFrames, sinkFrames + jitterBuffer.targetBytes() / bytesPerFrame);
+      ratio *= jitterBuffer.speed();
+
+      int samples = 0;
+      int remaining = burstBytes;
+      while (remaining > 0) {
+        ByteBuffer region = ring.readableRegion(remaining);
+        int n = region.remaining();
+        samples += resampler.process(region, ratio, block, samples);
+        ring.commitRead(n);
+        remaining -= n;
+      }
+      concealer.played(block, samples);
+      if (!soundReported) {
+        soundReported = true;
+        metrics.firstSound(heardNanos + fifoFrames * 1_000_000_000L / sampleRate);
+      }
+      append(samples);
+      return true;
+    }
+
+    private void append(int samples) {
+      System.arraycopy(block, 0, fifo, fifoFrames * inChannels, samples);
+      fifoFrames += samples / inChannels;
+    }
+
+    /** Adds frames frames from the front of the FIFO to the mix. */
+    private void add(int frames) {
+      float g = gain;
+      for (int f = 0; f < frames; f++) {
+        int in = f * inChannels;
+        int out = f * channels;
+        if (inChannels == 1) {
+          float s = g * fifo[in];
+          for (int ch = 0; ch < channels; ch++) {
+            mix[out + ch] += s;
+          }
+        } else if (channels == 1) {
+          float sum = 0;
+          for (int ch = 0; ch < inChannels; ch++) {
+            sum += fifo[in + ch];
+          }
+          mix[out] += g * sum / inChannels;
+        } else {
+          for (int ch = 0; ch < Math.min(channels, inChannels); ch++) {
+            mix[out + ch] += g * fifo[in + ch];
+          }
+        }
+      }
+    }
+
+    private void reportMetrics(long now, long heardNanos) {
+      long depthNanos = jitterBuffer.bytesToNanos(ring.available());
+      // The FIFO is heard before what is still in the ring
+      long position = ring.readPosition() - (long) fifoFrames * bytesPerFrame;
+      long latencyNanos = jitterBuffer.latencyProbe().latencyNanos(position, heardNanos);
+      if (latencyNanos < 0) {
+        latencyNanos = depthNanos + heardNanos - now;
+      }
+      metrics.played(
+          depthNanos,
+          latencyNanos,
+          heardNanos - now,
+          sink.underrunCount(),
+          jitterBuffer.bytesToNanos(jitterBuffer.overflowBytes()) + droppedNanos,
+          concealedNanosBase + concealer.concealedFrames() * 1_000_000_000L / sampleRate);
+    }
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2014 kaytat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kaytat.simpleprotocolplayer;
+
+import android.util.Log;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The part of receiving a stream that doesn't depend on how it is read. Compressed data goes
+ * through the decoder and the start of raw PCM through the WAV header detector, the rest goes on as
+ * it is. Used by whichever thread reads the stream.
+ */
+final class StreamReceiver {
+  // Decode statistics are logged this often
+  static final long STATS_LOG_INTERVAL_NANOS = 60_000_000_000L;
+
+  private final WorkerThreadPair syncObject;
+  private final Codec codec;
+  private final String tag;
+
+  // The jitter buffer, or something in front of it
+  private final PcmSink out;
+
+  // Null for raw PCM, which goes into the jitter buffer as is
+  private StreamDecoder decoder;
+
+  // Raw PCM over TCP may start with a WAV header that gives the format
+  private final WavHeaderDetector wavHeaderDetector;
+
+  private long lastStatsLogNanos = System.nanoTime();
+
+  // Wraps the read buffer for raw PCM that passes through the WAV header detector
+  private ByteBuffer rawBuffer;
+
+  // Decoded PCM and format changes on their way out. A format that can't be played is left out so
+  // the stream carries on as configured.
+  final PcmSink pcmSink =
+      new PcmSink() {
+        @Override
+        public void offer(ByteBuffer pcm) throws InterruptedException {
+          out.offer(pcm);
+        }
+
+        @Override
+        public void formatChanged(StreamFormat format) throws InterruptedException {
+          if (!WorkerThreadPair.isSupported(format)) {
+            Log.w(tag, "unsupported format:" + format);
+            return;
+          }
+          Log.i(tag, "format:" + format);
+          out.formatChanged(format);
+        }
+      };
+
+  StreamReceiver(WorkerThreadPair syncObject, Codec codec, PcmSink out, String tag) {
+    this.syncObject = syncObject;
+    this.codec = codec;
+    this.out = out;
+    this.tag = tag;
+    wavHeaderDetector = new WavHeaderDetector(this::offerRaw, pcmSink);
+  }
+
+  private void offerRaw(byte[] data, int off, int len) throws InterruptedException {
+    if (rawBuffer == null || rawBuffer.array() != data) {
+      rawBuffer = ByteBuffer.wrap(data);
+    }
+    rawBuffer.clear();
+    rawBuffer.limit(off + len);
+    rawBuffer.position(off);
+    out.offer(rawBuffer);
+  }
+
+  /** Creates the decoder for the codec. Returns false if the device can't decode it. */
+  boolean createDecoder() {
+    try {
+      if (codec == Codec.OPUS) {
+        decoder = new OpusDecoder(syncObject.channels, pcmSink, syncObject.metrics, tag);
+      } else if (codec == Codec.FLAC) {
+        decoder = new FlacDecoder(pcmSink);
+      }
+      return true;
+    } catch (Exception e) {
+      Log.e(tag, "unable to create " + codec + " decoder:" + e);
+      return false;
+    }
+  }
+
+  /** Null for raw PCM. */
+  StreamDecoder decoder() {
+    return decoder;
+  }
+
+  /** A new connection, the stream starts over. */
+  void reset() {
+    if (decoder != null) {
+      decoder.reset();
+    }
+    wavHeaderDetector.reset();
+  }
+
+  /** True once what is received may go straight into the ring of the jitter buffer. */
+  boolean direct() {
+    return decoder == null && !wavHeaderDetector.probing();
+  }
+
+  /** Passes len bytes of received data on. */
+  void write(byte[] data, int off, int len) throws IOException, InterruptedException {
+    if (decoder == null) {
+      wavHeaderDetector.write(data, off, len);
+      return;
+    }
+    decoder.write(data, off, len);
+    long now = System.nanoTime();
+    if (now - lastStatsLogNanos > STATS_LOG_INTERVAL_NANOS) {
+      lastStatsLogNanos = now;
+      Log.i(tag, decoder.stats());
+    }
+  }
+
+  void release() {
+    if (decoder != null) {
+      decoder.release();
+      decoder = null;
+    }
+  }
+}
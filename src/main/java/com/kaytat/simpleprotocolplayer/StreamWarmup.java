@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2014 kaytat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kaytat.simpleprotocolplayer;
+
+import android.media.AudioTrack;
+import android.util.Log;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Work that can be done before Play is tapped. While MainActivity is in front it resolves the
+ * server address, builds an AudioTrack for the configured format and, if asked, opens the TCP
+ * connection, all on a background thread. WorkerThreadPair and NetworkReadThread take what is ready
+ * and do the rest themselves.
+ *
+ * <p>Resolved addresses are kept for a while so retries don't wait for DNS either.
+ */
+final class StreamWarmup {
+  private static final String TAG = StreamWarmup.class.getSimpleName();
+
+  // How long a resolved address is used before it is looked up again
+  static final long ADDRESS_TTL_NANOS = 60_000_000_000L;
+
+  // The server sends as soon as it is connected. A small receive window holds it off until Play,
+  // so at most about this much has queued up by then.
+  static final int PRECONNECT_RECEIVE_BUFFER = 16 * 1024;
+
+  private static final ExecutorService executor =
+      Executors.newSingleThreadExecutor(
+          r -> {
+            Thread t = new Thread(r, TAG);
+            t.setDaemon(true);
+            return t;
+          });
+
+  // Guarded by the class
+  private static final Map<String, Resolved> addresses = new HashMap<>();
+  private static int generation;
+  private static AudioTrack audioTrack;
+  private static String audioTrackKey;
+  private static SocketChannel connection;
+  private static String connectionKey;
+  // Receive buffer size the connection gets back when it is taken. Set on the warm up thread and
+  // read by whichever thread takes the connection.
+  private static volatile int defaultReceiveBuffer;
+
+  private static final class Resolved {
+    final InetAddress[] addresses;
+    final long nanos;
+
+    Resolved(InetAddress[] addresses, long nanos) {
+      this.addresses = addresses;
+      this.nanos = nanos;
+    }
+  }
+
+  private StreamWarmup() {}
+
+  /**
+   * Main thread. Gets ready for a stream with these settings and drops anything prepared for
+   * others. Nothing is done while a stream is playing, it is already connected.
+   */
+  static void prepare(StreamConfig config, boolean preconnect) {
+    int current;
+    synchronized (StreamWarmup.class) {
+      current = ++generation;
+    }
+    executor.execute(() -> warmUp(current, config, preconnect));
+  }
+
+  /** Main thread. Releases whatever was prepared and not taken. */
+  static void cancel() {
+    int current;
+    synchronized (StreamWarmup.class) {
+      current = ++generation;
+    }
+    executor.execute(() -> release(current));
+  }
+
+  private static void warmUp(int current, StreamConfig config, boolean preconnect) {
+    release(current);
+    if (config.serverAddr == null || !StreamMetrics.active().isEmpty()) {
+      return;
+    }
+    try {
+      InetAddress[] resolved = resolve(config.serverAddr);
+      Log.d(TAG, "resolved:" + config.serverAddr + " to " + resolved[0]);
+
+      StreamFormat format = WorkerThreadPair.initialFormat(config);
+      int channelMask = WorkerThreadPair.channelMask(format.channels);
+      int encoding = WorkerThreadPair.encoding(WorkerThreadPair.outputFormat(format.encoding));
+      int minBuffer = AudioTrack.getMinBufferSize(format.sampleRate, channelMask, encoding);
+      AudioTrack track =
+          WorkerThreadPair.buildAudioTrack(
+              format.sampleRate, channelMask, encoding, minBuffer, config.usePerformanceMode);
+      if (!offer(
+          current,
+          audioTrackKey(
+              format.sampleRate, channelMask, encoding, minBuffer, config.usePerformanceMode),
+          track)) {
+        return;
+      }
+
+      if (preconnect && config.transport != Transport.RTP) {
+        // Both TCP transports take a SocketChannel
+        InetSocketAddress address = new InetSocketAddress(resolved[0], config.serverPort);
+        SocketChannel channel = SocketChannel.open();
+        try {
+          defaultReceiveBuffer = channel.socket().getReceiveBufferSize();
+          channel.socket().setReceiveBufferSize(PRECONNECT_RECEIVE_BUFFER);
+          channel.socket().connect(address, NetworkReadThread.SOCKET_TIMEOUT);
+        } catch (IOException e) {
+          channel.close();
+          throw e;
+        }
+        Log.d(TAG, "connected:" + address);
+        offer(current, connectionKey(config.serverAddr, config.serverPort), channel);
+      }
+    } catch (Exception e) {
+      // Play does it all again and reports the error
+      Log.i(TAG, "warmUp:exception:" + e);
+    }
+  }
+
+  /** Parks a prepared resource, or releases it if the warm up was cancelled meanwhile. */
+  private static boolean offer(int current, String key, Object resource) {
+    synchronized (StreamWarmup.class) {
+      if (current == generation) {
+        if (resource instanceof AudioTrack) {
+          audioTrack = (AudioTrack) resource;
+          audioTrackKey = key;
+        } else {
+          connection = (SocketChannel) resource;
+          connectionKey = key;
+        }
+        return true;
+      }
+    }
+    close(resource);
+    return false;
+  }
+
+  private static void release(int current) {
+    AudioTrack track;
+    Closeable opened;
+    synchronized (StreamWarmup.class) {
+      if (current != generation) {
+        return;
+      }
+      track = audioTrack;
+      opened = connection;
+      audioTrack = null;
+      connection = null;
+    }
+    close(track);
+    close(opened);
+  }
+
+  private static void close(Object resource) {
+    if (resource instanceof AudioTrack) {
+      ((AudioTrack) resource).release();
+    } else if (resource instanceof Closeable) {
+      try {
+        ((Closeable) resource).close();
+      } catch (IOException e) {
+        Log.i(TAG, "exception while closing connection:" + e);
+      }
+    }
+  }
+
+  /**
+   * Addresses of host, looked up again once they are ADDRESS_TTL_NANOS old. Any thread, blocks
+   * while a lookup is needed.
+   */
+  static InetAddress[] resolve(String host) throws UnknownHostException {
+    long now = System.nanoTime();
+    synchronized (StreamWarmup.class) {
+      Resolved resolved = addresses.get(host);
+      if (resolved != null && now - resolved.nanos < ADDRESS_TTL_NANOS) {
+        return resolved.addresses;
+      }
+    }
+    InetAddress[] resolved = InetAddress.getAllByName(host);
+    synchronized (StreamWarmup.class) {
+      addresses.put(host, new Resolved(resolved, now));
+    }
+    return resolved;
+  }
+
+  /** The AudioTrack built ahead of time if it was built the same way, else null. */
+  static AudioTrack takeAudioTrack(
+      int sampleRate,
+      int channelMask,
+      int encoding,
+      int bufferSizeInBytes,
+      boolean usePerformanceMode) {
+    String key =
+        audioTrackKey(sampleRate, channelMask, encoding, bufferSizeInBytes, usePerformanceMode);
+    synchronized (StreamWarmup.class) {
+      if (audioTrack == null || !key.equals(audioTrackKey)) {
+        return null;
+      }
+      AudioTrack track = audioTrack;
+      audioTrack = null;
+      return track;
+    }
+  }
+
+  /**
+   * The connection opened ahead of time to host and port, else null. It is in blocking mode and
+   * its receive buffer is back to the default.
+   */
+  static SocketChannel takeConnection(String host, int port) {
+    String key = connectionKey(host, port);
+    SocketChannel channel;
+    synchronized (StreamWarmup.class) {
+      if (connection == null || !key.equals(connectionKey)) {
+        return null;
+      }
+      channel = connection;
+      connection = null;
+    }
+    try {
+      channel.socket().setReceiveBufferSize(defaultReceiveBuffer);
+    } catch (IOException e) {
+      Log.i(TAG, "takeConnection:exception:" + e);
+    }
+    return channel;
+  }
+
+  private static String audioTrackKey(
+      int sampleRate,
+      int channelMask,
+      int encoding,
+      int bufferSizeInBytes,
+      boolean usePerformanceMode) {
+    return sampleRate + "/" + channelMask + "/" + encoding + "/" + bufferSizeInBytes + "/"
+        + usePerformanceMode;
+  }
+
+  private static String connectionKey(String host, int port) {
+    return host + ":" + port;
+  }
+}
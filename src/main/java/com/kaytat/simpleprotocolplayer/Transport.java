@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2014 kaytat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kaytat.simpleprotocolplayer;
+
+/**
+ * How NetworkReadThread receives the stream. The order matches the transports array in
+ * strings.xml.
+ */
+enum Transport {
+  // Socket input stream read into a heap buffer
+  TCP,
+  // SocketChannel read straight into the jitter buffer's direct memory
+  TCP_NIO,
+  // RTP with an L16 payload over UDP, listening on the port. The address is either the sender or a
+  // multicast group to join.
+  RTP;
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2014 kaytat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kaytat.simpleprotocolplayer;
+
+import android.util.Log;
+import java.io.IOException;
+
+/**
+ * Looks for a WAV header at the start of a PCM stream, as sent by tools that write a .wav file to a
+ * socket.
+ *
+ * <p>Bytes are passed through to a sink. Until the first bytes show whether there is a header they
+ * are held back, which for raw PCM is only the first read. If there is one, the format from its fmt
+ * chunk is handed to the PcmSink before any audio and the header itself is dropped. The lengths in
+ * the header are ignored since a live stream doesn't know them. A WAV file in a format that can't
+ * be played, such as 8 bit or A-law, is passed through whole with a warning rather than played as
+ * the configured format. Only used from the network thread.
+ */
+final class WavHeaderDetector {
+  private static final String TAG = WavHeaderDetector.class.getSimpleName();
+
+  // Anything longer than this isn't taken for a header
+  static final int MAX_HEADER_BYTES = 4096;
+
+  private static final int WAVE_FORMAT_PCM = 1;
+  private static final int WAVE_FORMAT_IEEE_FLOAT = 3;
+  private static final int WAVE_FORMAT_EXTENSIBLE = 0xfffe;
+
+  private static final int NEED_MORE = 0;
+  private static final int NOT_WAV = -1;
+
+  interface Sink {
+    void write(byte[] data, int off, int len) throws IOException, InterruptedException;
+  }
+
+  private final Sink sink;
+  private final PcmSink formatSink;
+
+  private final byte[] header = new byte[MAX_HEADER_BYTES];
+  private int headerBytes;
+  private boolean probing = true;
+
+  // Set by parse() when it finds a header
+  private StreamFormat format;
+
+  WavHeaderDetector(Sink sink, PcmSink formatSink) {
+    this.sink = sink;
+    this.formatSink = formatSink;
+  }
+
+  /** Start looking again, at the start of every connection. */
+  void reset() {
+    probing = true;
+    headerBytes = 0;
+  }
+
+  /** Whether the start of the stream is still being looked at. */
+  boolean probing() {
+    return probing;
+  }
+
+  void write(byte[] data, int off, int len) throws IOException, InterruptedException {
+    if (!probing) {
+      sink.write(data, off, len);
+      return;
+    }
+
+    int n = Math.min(len, MAX_HEADER_BYTES - headerBytes);
+    System.arraycopy(data, off, header, headerBytes, n);
+    headerBytes += n;
+    int headerLength = parse();
+    if (headerLength == NEED_MORE) {
+      if (headerBytes < MAX_HEADER_BYTES) {
+        return;
+      }
+      headerLength = NOT_WAV;
+    }
+
+    probing = false;
+    if (headerLength == NOT_WAV) {
+      sink.write(header, 0, headerBytes);
+    } else {
+      formatSink.formatChanged(format);
+      sink.write(header, headerLength, headerBytes - headerLength);
+    }
+    if (n < len) {
+      sink.write(data, off + n, len - n);
+    }
+  }
+
+  /**
+   * Parses what has been collected. Returns the length of the header up to the start of the
+   * audio, NEED_MORE or NOT_WAV. A header whose format can't be played counts as NOT_WAV.
+   */
+  private int parse() {
+    format = null;
+    if (!matches(0, "RIFF") || headerBytes >= 12 && !matches(8, "WAVE")) {
+      return NOT_WAV;
+    }
+    int pos = 12;
+    StreamFormat found = null;
+    while (pos + 8 <= headerBytes) {
+      int size = readInt(pos + 4);
+      if (matches(pos, "data")) {
+        if (found == null) {
+          Log.w(TAG, "unsupported WAV format, passing it through");
+          return NOT_WAV;
+        }
+        format = found;
+        return pos + 8;
+      }
+      if (matches(pos, "fmt ")) {
+        if (pos + 8 + 16 > headerBytes) {
+          return NEED_MORE;
+        }
+        // The extensible format keeps the real tag at the start of the sub format GUID
+        if (readShort(pos + 8) == WAVE_FORMAT_EXTENSIBLE
+            && size >= 40
+            && pos + 8 + 26 > headerBytes) {
+          return NEED_MORE;
+        }
+        found = parseFmt(pos + 8, size);
+      }
+      if (size < 0 || size > MAX_HEADER_BYTES) {
+        return NOT_WAV;
+      }
+      // Chunks are padded to an even length
+      pos += 8 + size + (size & 1);
+    }
+    return NEED_MORE;
+  }
+
+  private StreamFormat parseFmt(int pos, int size) {
+    int tag = readShort(pos);
+    int channels = readShort(pos + 2);
+    int sampleRate = readInt(pos + 4);
+    int bitsPerSample = readShort(pos + 14);
+    if (tag == WAVE_FORMAT_EXTENSIBLE && size >= 40) {
+      tag = readShort(pos + 24);
+    }
+
+    PcmFormat encoding = null;
+    if (tag == WAVE_FORMAT_PCM) {
+      if (bitsPerSample == 16) {
+        encoding = PcmFormat.S16;
+      } else if (bitsPerSample == 24) {
+        encoding = PcmFormat.S24;
+      } else if (bitsPerSample == 32) {
+        encoding = PcmFormat.S32;
+      }
+    } else if (tag == WAVE_FORMAT_IEEE_FLOAT && bitsPerSample == 32) {
+      encoding = PcmFormat.FLOAT;
+    }
+    if (encoding == null || channels <= 0 || sampleRate <= 0) {
+      return null;
+    }
+    return new StreamFormat(sampleRate, channels, encoding);
+  }
+
+  /** Whether the collected bytes at pos start with id, as far as they go. */
+  private boolean matches(int pos, String id) {
+    for (int i = 0; i < 4 && pos + i < headerBytes; i++) {
+      if (header[pos + i] != id.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private int readShort(int pos) {
+    return (header[pos] & 0xff) | (header[pos + 1] & 0xff) << 8;
+  }
+
+  private int readInt(int pos) {
+    return readShort(pos) | readShort(pos + 2) << 16;
+  }
+}
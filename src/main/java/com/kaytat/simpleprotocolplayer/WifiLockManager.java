@@ -21,6 +21,7 @@ package com.kaytat.simpleprotocolplayer;
 import android.content.Context;
 import android.net.wifi.WifiManager;
 import android.net.wifi.WifiManager.WifiLock;
+import android.os.Build;
 import android.util.Log;
 import androidx.annotation.Nullable;
 
@@ -39,6 +40,7 @@ import androidx.annotation.Nullable;
   @Nullable private WifiLock wifiLock;
   private boolean enabled;
   private boolean stayAwake;
+  private int mode = WifiManager.WIFI_MODE_FULL_HIGH_PERF;
 
   public WifiLockManager(Context context) {
     wifiManager =
@@ -61,7 +63,7 @@ import androidx.annotation.Nullable;
         Log.w(TAG, "WifiManager is null, therefore not creating the WifiLock.");
         return;
       }
-      wifiLock = wifiManager.createWifiLock(WifiManager.WIFI_MODE_FULL_HIGH_PERF, WIFI_LOCK_TAG);
+      wifiLock = wifiManager.createWifiLock(mode, WIFI_LOCK_TAG);
       wifiLock.setReferenceCounted(false);
     }
 
@@ -83,6 +85,38 @@ import androidx.annotation.Nullable;
     updateWifiLock();
   }
 
+  /**
+   * Sets whether the lock asks for low latency rather than high performance. Low latency needs API
+   * 29, before that the high performance lock is used either way. A lock that is held is replaced
+   * straight away.
+   *
+   * @param lowLatency True for {@link WifiManager#WIFI_MODE_FULL_LOW_LATENCY}.
+   */
+  public void setLowLatency(boolean lowLatency) {
+    int mode =
+        lowLatency && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q
+            ? WifiManager.WIFI_MODE_FULL_LOW_LATENCY
+            : WifiManager.WIFI_MODE_FULL_HIGH_PERF;
+    if (mode == this.mode) {
+      return;
+    }
+    this.mode = mode;
+    if (wifiLock != null) {
+      wifiLock.release();
+      wifiLock = null;
+      setEnabled(enabled);
+    }
+  }
+
+  /** Name of the mode of the lock if it is held, null otherwise. */
+  @Nullable
+  public String heldMode() {
+    if (wifiLock == null || !wifiLock.isHeld()) {
+      return null;
+    }
+    return mode == WifiManager.WIFI_MODE_FULL_LOW_LATENCY ? "low_latency" : "high_perf";
+  }
+
   private void updateWifiLock() {
     if (wifiLock == null) {
       return;
@@ -24,7 +24,7 @@ import android.media.AudioTrack;
 import android.os.Handler;
 import android.util.Log;
 import android.widget.Toast;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.io.IOException;
 
 /**
  * group everything belongs a stream together, makes multi stream easier including NetworkReadThread
@@ -38,62 +38,256 @@ public class WorkerThreadPair {
 
   private static final String TAG = WorkerThreadPair.class.getSimpleName();
 
+  // Range of rates a stream may announce
+  static final int MIN_SAMPLE_RATE = 8000;
+  static final int MAX_SAMPLE_RATE = 192000;
+
+  // Null when the stream is played by a mixer
   private final BufferToAudioTrackThread audioThread;
+  // TCP_NIO streams are read by the NetworkEventLoop, the others by a thread of their own
   private final NetworkReadThread networkThread;
-  private final Context context;
+  private final NetworkEventLoop.Stream networkStream;
+  // Null if the watchdog is off
+  private final StallWatchdog.Watch stallWatch;
+  private final StreamMixer mixer;
+  private final StreamMixer.Input mixerInput;
+  final Context context;
   private final StopPlaybackCallback stopPlaybackCallback;
 
-  final AudioTrack audioTrack;
+  final StreamMetrics metrics;
+  final LatencyProfile latencyProfile;
+
+  private final int requestedBufferMs;
+  private final boolean usePerformanceMode;
+  private final boolean useMinBuffer;
 
   public WorkerThreadPair(
+      Context context, StopPlaybackCallback stopPlaybackCallback, StreamConfig config) {
+    this(context, stopPlaybackCallback, config, null);
+  }
+
+  /**
+   * With a mixer the stream is played by it, there is no AudioTrack or audio thread of its own.
+   */
+  WorkerThreadPair(
       Context context,
       StopPlaybackCallback stopPlaybackCallback,
-      String serverAddr,
-      int serverPort,
-      int sampleRate,
-      boolean stereo,
-      int requestedBufferMs,
-      boolean retry,
-      boolean usePerformanceMode,
-      boolean useMinBuffer) {
+      StreamConfig config,
+      StreamMixer mixer) {
     this.context = context;
+    this.mixer = mixer;
     this.stopPlaybackCallback = stopPlaybackCallback;
-    int channelMask = stereo ? AudioFormat.CHANNEL_OUT_STEREO : AudioFormat.CHANNEL_OUT_MONO;
+    String serverAddr = config.serverAddr;
+    int serverPort = config.serverPort;
+    int requestedBufferMs = config.bufferMs;
+    metrics = new StreamMetrics(serverAddr + ":" + serverPort);
+    latencyProfile = new LatencyProfile(context, config.lowLatency, metrics, TAG);
 
     // Sanitize input, just in case
+    if (requestedBufferMs <= 5) {
+      requestedBufferMs = MusicService.DEFAULT_BUFFER_MS;
+    }
+    this.requestedBufferMs = requestedBufferMs;
+    this.usePerformanceMode = config.usePerformanceMode;
+    this.useMinBuffer = config.useMinBuffer;
+    Log.d(TAG, "useMinBuffer:" + useMinBuffer);
+    Log.d(TAG, "usePerformanceMode:" + usePerformanceMode);
+
+    // The settings are only a starting point, the stream may say otherwise
+    StreamFormat streamFormat = initialFormat(config);
+    configure(streamFormat);
+    jitterBuffer =
+        new JitterBuffer(
+            streamFormat,
+            burstBytes,
+            bytesPerAudioPacket,
+            MusicService.DEFAULT_UNDERRUNS_PER_MINUTE,
+            config.overflowPolicy,
+            config.maxLatencyMs);
+    Log.d(TAG, "overflowPolicy:" + config.overflowPolicy + " maxLatencyMs:" + config.maxLatencyMs);
+
+    if (mixer != null) {
+      audioThread = null;
+      mixerInput = mixer.add(jitterBuffer, metrics, requestedBufferMs);
+    } else {
+      audioThread = new BufferToAudioTrackThread(this, "audio:" + serverAddr + ":" + serverPort);
+      mixerInput = null;
+    }
+    if (config.transport == Transport.TCP_NIO) {
+      networkThread = null;
+    } else {
+      networkThread =
+          new NetworkReadThread(
+              this,
+              serverAddr,
+              serverPort,
+              config.failoverAddrs,
+              config.retry,
+              config.transport,
+              config.codec,
+              "net:" + serverAddr + ":" + serverPort);
+    }
+    Log.d(TAG, "transport:" + config.transport + " codec:" + config.codec);
+    Log.d(TAG, "failoverAddrs:" + config.failoverAddrs);
+
+    metrics.register();
+    if (audioThread != null) {
+      audioThread.start();
+    }
+    if (networkThread != null) {
+      networkThread.start();
+      networkStream = null;
+    } else {
+      networkStream = addToEventLoop(config);
+    }
+    // Without retry a reconnect would end the stream, the socket timeout is left to decide then.
+    // The mixer has no sink per stream to restart.
+    Runnable onNetworkStall = config.retry ? this::networkStalled : null;
+    Runnable onAudioStall = audioThread != null ? audioThread::restartSink : null;
+    if (config.stallMs > 0 && (onNetworkStall != null || onAudioStall != null)) {
+      stallWatch = StallWatchdog.watch(metrics, config.stallMs, onNetworkStall, onAudioStall);
+    } else {
+      stallWatch = null;
+    }
+    Log.d(TAG, "stallMs:" + config.stallMs);
+  }
+
+  /** Called by StallWatchdog, the connection is made again without waiting for its timeout. */
+  private void networkStalled() {
+    if (networkThread != null) {
+      networkThread.reconnect();
+    } else if (networkStream != null) {
+      networkStream.reconnect();
+    }
+  }
+
+  private NetworkEventLoop.Stream addToEventLoop(StreamConfig config) {
+    try {
+      return NetworkEventLoop.add(
+          this,
+          config.serverAddr,
+          config.serverPort,
+          config.failoverAddrs,
+          config.retry,
+          config.codec,
+          "net:" + config.serverAddr + ":" + config.serverPort);
+    } catch (IOException e) {
+      Log.e(TAG, "unable to start network loop:" + e);
+      brokenShutdown();
+      return null;
+    }
+  }
+
+  /** The format a stream starts in, from its settings. */
+  static StreamFormat initialFormat(StreamConfig config) {
+    int sampleRate = config.sampleRate;
+    int channels = config.channels;
+    PcmFormat format = config.sampleFormat;
     if (sampleRate <= 0) {
       sampleRate = MusicService.DEFAULT_SAMPLE_RATE;
     }
+    if (channelMask(channels) == AudioFormat.CHANNEL_INVALID) {
+      channels = MusicService.DEFAULT_CHANNELS;
+    }
+    if (config.codec == Codec.OPUS) {
+      // Always decoded at its native rate and depth
+      sampleRate = OpusDecoder.SAMPLE_RATE;
+      format = PcmFormat.S16;
+    }
+    return new StreamFormat(sampleRate, channels, format);
+  }
+
+  /**
+   * 16 bit is played as is, anything deeper as float which every device takes since API 21. Hi-res
+   * output is always float, so 32 bit input keeps only the 24 bits of float's mantissa.
+   */
+  static PcmFormat outputFormat(PcmFormat format) {
+    return format == PcmFormat.S16 ? PcmFormat.S16 : PcmFormat.FLOAT;
+  }
 
-    int audioTrackMinBuffer =
-        AudioTrack.getMinBufferSize(sampleRate, channelMask, AudioFormat.ENCODING_PCM_16BIT);
+  /**
+   * Works out the sizes for a stream format and builds a new sink for it. Called from the
+   * constructor and by the audio thread when the format changes, the network thread waits until the
+   * jitter buffer has switched over before it reads any of this again.
+   */
+  void configure(StreamFormat streamFormat) {
+    sampleRate = streamFormat.sampleRate;
+    channels = streamFormat.channels;
+    format = streamFormat.encoding;
+    outputFormat = outputFormat(format);
+    int channelMask = channelMask(channels);
+    int encoding = encoding(outputFormat);
+
+    // The ring holds frames as they arrive, AudioTrack sizes are converted to match
+    int bytesPerFrame = streamFormat.bytesPerFrame();
+    if (mixer != null) {
+      // The mixer plays everything, only the sizes are needed
+      bytesPerAudioPacket = calcBytesPerAudioPacket(sampleRate, bytesPerFrame, requestedBufferMs);
+      burstBytes = mixer.framesPerBurst() * bytesPerFrame;
+      Log.d(TAG, "format:" + streamFormat + " mixed, burstBytes:" + burstBytes);
+      return;
+    }
+    int audioTrackMinBuffer = AudioTrack.getMinBufferSize(sampleRate, channelMask, encoding);
+    int minBufferBytes =
+        audioTrackMinBuffer / (channels * outputFormat.bytesPerSample) * bytesPerFrame;
     Log.d(TAG, "audioTrackMinBuffer:" + audioTrackMinBuffer);
+    Log.d(TAG, "format:" + streamFormat + " output:" + outputFormat);
 
     if (useMinBuffer) {
-      bytesPerAudioPacket = calcMinBytesPerAudioPacket(stereo, audioTrackMinBuffer);
+      bytesPerAudioPacket = calcMinBytesPerAudioPacket(bytesPerFrame, minBufferBytes);
     } else {
-      if (requestedBufferMs <= 5) {
-        requestedBufferMs = MusicService.DEFAULT_BUFFER_MS;
-      }
-      bytesPerAudioPacket = calcBytesPerAudioPacket(sampleRate, stereo, requestedBufferMs);
+      bytesPerAudioPacket = calcBytesPerAudioPacket(sampleRate, bytesPerFrame, requestedBufferMs);
     }
-    Log.d(TAG, "useMinBuffer:" + useMinBuffer);
 
-    // The agreement here is that audioTrack will be shutdown by the helper
-    audioTrack = buildAudioTrack(sampleRate, channelMask, audioTrackMinBuffer, usePerformanceMode);
-    Log.d(TAG, "usePerformanceMode:" + usePerformanceMode);
+    // The network side queues whatever has arrived, the audio side writes in bursts of its own.
+    // The configured packet size only sets the initial jitter buffer target.
+    burstBytes = calcBurstBytes(bytesPerFrame, minBufferBytes, bytesPerAudioPacket);
+    int burstFrames = latencyProfile.burstFrames(sampleRate);
+    if (burstFrames > 0) {
+      // Whole native bursts, so the fast mixer never has to wait for part of one
+      burstBytes = burstFrames * bytesPerFrame;
+      bytesPerAudioPacket = (bytesPerAudioPacket + burstBytes - 1) / burstBytes * burstBytes;
+    }
+    Log.d(TAG, "burstBytes:" + burstBytes);
+
+    // The agreement here is that the sink will be shutdown by the helper. A track built ahead of
+    // time by StreamWarmup saves doing it now.
+    AudioTrack audioTrack =
+        StreamWarmup.takeAudioTrack(
+            sampleRate, channelMask, encoding, audioTrackMinBuffer, usePerformanceMode);
+    if (audioTrack == null) {
+      audioTrack =
+          buildAudioTrack(
+              sampleRate, channelMask, encoding, audioTrackMinBuffer, usePerformanceMode);
+    }
+    latencyProfile.trackBuilt(audioTrack, burstFrames);
+    audioSink = new AudioTrackSink(audioTrack);
+    audioSink.setVolume(volume);
+  }
 
-    audioThread = new BufferToAudioTrackThread(this, "audio:" + serverAddr + ":" + serverPort);
-    networkThread =
-        new NetworkReadThread(
-            this, serverAddr, serverPort, retry, "net:" + serverAddr + ":" + serverPort);
+  /** Called from the main thread, also applies to any sink built later. */
+  void setVolume(float volume) {
+    this.volume = volume;
+    if (mixerInput != null) {
+      mixerInput.setGain(volume);
+    } else {
+      audioSink.setVolume(volume);
+    }
+  }
 
-    audioThread.start();
-    networkThread.start();
+  /** Whether an AudioTrack can be built for a format the stream announced. */
+  static boolean isSupported(StreamFormat format) {
+    return channelMask(format.channels) != AudioFormat.CHANNEL_INVALID
+        && format.sampleRate >= MIN_SAMPLE_RATE
+        && format.sampleRate <= MAX_SAMPLE_RATE;
   }
 
   static AudioTrack buildAudioTrack(
-      int sampleRate, int channelMask, int audioTrackMinBuffer, boolean usePerformanceMode) {
+      int sampleRate,
+      int channelMask,
+      int encoding,
+      int audioTrackMinBuffer,
+      boolean usePerformanceMode) {
     AudioTrack.Builder audioTrackBuilder =
         new AudioTrack.Builder()
             .setAudioAttributes(
@@ -103,7 +297,7 @@ public class WorkerThreadPair {
                     .build())
             .setAudioFormat(
                 new AudioFormat.Builder()
-                    .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+                    .setEncoding(encoding)
                     .setSampleRate(sampleRate)
                     .setChannelMask(channelMask)
                     .build())
@@ -115,21 +309,34 @@ public class WorkerThreadPair {
     return audioTrackBuilder.build();
   }
 
-  static int calcBytesPerAudioPacket(int sampleRate, boolean stereo, int requestedBufferMs) {
-
-    // Assume 16 bits per sample
-    int bytesPerSecond = sampleRate * 2;
-    if (stereo) {
-      bytesPerSecond *= 2;
+  /** Channel mask for a channel count, CHANNEL_INVALID if there is no standard layout. */
+  static int channelMask(int channels) {
+    switch (channels) {
+      case 1:
+        return AudioFormat.CHANNEL_OUT_MONO;
+      case 2:
+        return AudioFormat.CHANNEL_OUT_STEREO;
+      case 6:
+        return AudioFormat.CHANNEL_OUT_5POINT1;
+      case 8:
+        return AudioFormat.CHANNEL_OUT_7POINT1_SURROUND;
+      default:
+        return AudioFormat.CHANNEL_INVALID;
     }
+  }
 
-    int result = (bytesPerSecond * requestedBufferMs) / 1000;
+  /** AudioTrack encoding for an output format, which is only ever S16 or FLOAT. */
+  static int encoding(PcmFormat outputFormat) {
+    return outputFormat == PcmFormat.FLOAT
+        ? AudioFormat.ENCODING_PCM_FLOAT
+        : AudioFormat.ENCODING_PCM_16BIT;
+  }
 
-    if (stereo) {
-      result = (result + 3) & ~0x3;
-    } else {
-      result = (result + 1) & ~0x1;
-    }
+  static int calcBytesPerAudioPacket(int sampleRate, int bytesPerFrame, int requestedBufferMs) {
+    int bytesPerSecond = sampleRate * bytesPerFrame;
+
+    int result = (int) ((long) bytesPerSecond * requestedBufferMs / 1000);
+    result = (result + bytesPerFrame - 1) / bytesPerFrame * bytesPerFrame;
 
     Log.d(TAG, "calcBytesPerAudioPacket:bytes / second:" + bytesPerSecond);
     Log.d(TAG, "calcBytesPerAudioPacket:" + result);
@@ -137,14 +344,15 @@ public class WorkerThreadPair {
     return result;
   }
 
-  static int calcMinBytesPerAudioPacket(boolean stereo, int audioTrackMinBuffer) {
-    int bytesPerAudioPacket;
+  static int calcBurstBytes(int bytesPerFrame, int audioTrackMinBuffer, int bytesPerAudioPacket) {
+    // Half the AudioTrack buffer keeps it topped up without waking up more often than needed
+    int burst = Math.min(audioTrackMinBuffer / 2, bytesPerAudioPacket);
+    return Math.max(bytesPerFrame, burst / bytesPerFrame * bytesPerFrame);
+  }
 
-    if (stereo) {
-      bytesPerAudioPacket = (audioTrackMinBuffer + 3) & ~0x3;
-    } else {
-      bytesPerAudioPacket = (audioTrackMinBuffer + 1) & ~0x1;
-    }
+  static int calcMinBytesPerAudioPacket(int bytesPerFrame, int audioTrackMinBuffer) {
+    int bytesPerAudioPacket =
+        (audioTrackMinBuffer + bytesPerFrame - 1) / bytesPerFrame * bytesPerFrame;
 
     Log.d(TAG, "calcMinBytesPerAudioPacket:audioTrackMinBuffer:" + audioTrackMinBuffer);
     Log.d(TAG, "calcMinBytesPerAudioPacket:" + bytesPerAudioPacket);
@@ -152,15 +360,38 @@ public class WorkerThreadPair {
     return bytesPerAudioPacket;
   }
 
-  public static final int NUM_PACKETS = 3;
+  // Set by configure()
+  int sampleRate;
+  int channels;
+  // Format of the ring and of what AudioTrack is given
+  PcmFormat format;
+  PcmFormat outputFormat;
+  // The largest single read from the network, also the initial jitter buffer target
+  int bytesPerAudioPacket;
+  int burstBytes;
+  // Null when the stream is played by a mixer
+  volatile AudioSink audioSink;
 
-  // The amount of data to read from the network before sending to AudioTrack
-  final int bytesPerAudioPacket;
+  // Kept so the sink for a new format plays at the same volume
+  private volatile float volume = 1.0f;
 
-  final ArrayBlockingQueue<byte[]> dataQueue = new ArrayBlockingQueue<>(NUM_PACKETS);
+  final JitterBuffer jitterBuffer;
 
   public void stopAndInterrupt() {
+    if (stallWatch != null) {
+      stallWatch.cancel();
+    }
+    metrics.unregister();
+    if (mixer != null) {
+      mixer.remove(mixerInput);
+    }
+    if (networkStream != null) {
+      networkStream.remove();
+    }
     for (ThreadStoppable it : new ThreadStoppable[] {audioThread, networkThread}) {
+      if (it == null) {
+        continue;
+      }
 
       try {
         it.customStop();
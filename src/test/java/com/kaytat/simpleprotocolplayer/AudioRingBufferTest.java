@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2014 kaytat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kaytat.simpleprotocolplayer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+public class AudioRingBufferTest {
+  private static final int FRAME = 4;
+
+  @Test
+  public void capacityIsWholeFrames() {
+    AudioRingBuffer ring = new AudioRingBuffer(30, FRAME);
+    assertEquals(32, ring.capacity());
+    assertEquals(32, ring.writable());
+  }
+
+  @Test
+  public void partialFrameIsHeldBack() {
+    AudioRingBuffer ring = new AudioRingBuffer(64, FRAME);
+    assertEquals(3, ring.write(new byte[] {1, 2, 3}, 0, 3));
+    assertEquals(0, ring.available());
+    assertEquals(5, ring.write(new byte[] {4, 5, 6, 7, 8}, 0, 5));
+    assertEquals(8, ring.available());
+
+    // A restarted stream forgets the partial frame
+    ring.write(new byte[] {9}, 0, 1);
+    ring.dropPartialFrame();
+    ring.write(new byte[] {10, 11, 12, 13}, 0, 4);
+    assertEquals(12, ring.available());
+    byte[] out = read(ring, 12);
+    assertEquals(10, out[8]);
+  }
+
+  @Test
+  public void writeStopsWhenFull() {
+    AudioRingBuffer ring = new AudioRingBuffer(16, FRAME);
+    assertEquals(16, ring.write(new byte[24], 0, 24));
+    assertEquals(0, ring.writable());
+    assertEquals(0, ring.write(new byte[4], 0, 4));
+  }
+
+  @Test
+  public void dataSurvivesWrapAround() {
+    AudioRingBuffer ring = new AudioRingBuffer(16, FRAME);
+    byte next = 0;
+    byte expected = 0;
+    for (int i = 0; i < 20; i++) {
+      // 12 bytes in and out each time, so the data wraps at a different place every pass
+      byte[] chunk = new byte[12];
+      for (int j = 0; j < chunk.length; j++) {
+        chunk[j] = next++;
+      }
+      assertEquals(12, ring.write(ByteBuffer.wrap(chunk)));
+      for (byte b : read(ring, 12)) {
+        assertEquals(expected++, b);
+      }
+    }
+    assertEquals(240, ring.writePosition());
+    assertEquals(240, ring.readPosition());
+  }
+
+  @Test
+  public void skipDiscardsOldestData() {
+    AudioRingBuffer ring = new AudioRingBuffer(16, FRAME);
+    ring.write(new byte[] {1, 1, 1, 1, 2, 2, 2, 2}, 0, 8);
+    assertEquals(4, ring.skip(4));
+    assertEquals(2, read(ring, 4)[0]);
+    assertEquals(0, ring.skip(4));
+  }
+
+  @Test
+  public void writerListenerRunsOnceAfterRead() {
+    AudioRingBuffer ring = new AudioRingBuffer(16, FRAME);
+    ring.write(new byte[16], 0, 16);
+    AtomicInteger runs = new AtomicInteger();
+    Runnable listener = runs::incrementAndGet;
+    ring.setWriterListener(listener);
+    read(ring, 4);
+    read(ring, 4);
+    assertEquals(1, runs.get());
+
+    // A cleared listener is not run
+    ring.setWriterListener(listener);
+    ring.clearWriterListener(listener);
+    ring.skip(4);
+    assertEquals(1, runs.get());
+  }
+
+  @Test
+  public void awaitAvailableTimesOut() throws InterruptedException {
+    AudioRingBuffer ring = new AudioRingBuffer(16, FRAME);
+    ring.write(new byte[4], 0, 4);
+    assertFalse(ring.awaitAvailable(8, 1_000_000L));
+  }
+
+  @Test
+  public void awaitWritableReturnsOnceReaderMadeRoom() throws InterruptedException {
+    AudioRingBuffer ring = new AudioRingBuffer(16, FRAME);
+    ring.write(new byte[16], 0, 16);
+    Thread reader =
+        new Thread(
+            () -> {
+              try {
+                Thread.sleep(20);
+              } catch (InterruptedException e) {
+                return;
+              }
+              ring.skip(8);
+            });
+    reader.start();
+    ring.awaitWritable(8);
+    assertEquals(8, ring.writable());
+    reader.join();
+  }
+
+  private static byte[] read(AudioRingBuffer ring, int len) {
+    byte[] out = new byte[len];
+    int done = 0;
+    while (done < len) {
+      ByteBuffer region = ring.readableRegion(len - done);
+      int n = region.remaining();
+      region.get(out, done, n);
+      ring.commitRead(n);
+      done += n;
+    }
+    return out;
+  }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2014 kaytat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kaytat.simpleprotocolplayer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class DriftEstimatorTest {
+  private static final int RATE = 48000;
+  private static final long STEP_NANOS = 10_000_000L;
+
+  @Test
+  public void holdsStillDuringWarmUp() {
+    DriftEstimator drift = new DriftEstimator(RATE);
+    long now = 1;
+    for (; now < DriftEstimator.WARMUP_NANOS; now += STEP_NANOS) {
+      assertEquals(1.0, drift.update(now, 10 * RATE, 0), 0);
+    }
+  }
+
+  @Test
+  public void correctionIsLimited() {
+    DriftEstimator drift = new DriftEstimator(RATE);
+    double ratio = 1.0;
+    for (long now = 1; now < 60_000_000_000L; now += STEP_NANOS) {
+      // Seconds of audio too much, far more than the controller may correct at once
+      ratio = drift.update(now, 10 * RATE, 0);
+      assertTrue(ratio <= 1.0 + DriftEstimator.MAX_CORRECTION);
+    }
+    assertEquals(1.0 + DriftEstimator.MAX_CORRECTION, ratio, 1e-12);
+    assertEquals(DriftEstimator.MAX_DRIFT * 1e6, drift.driftPpm(), 1e-6);
+  }
+
+  @Test
+  public void locksOntoTheSenderClock() {
+    // The sender runs 100 ppm fast, the buffer between it and the output starts on target
+    double senderPpm = 100;
+    double target = 4800;
+    double buffered = target;
+    DriftEstimator drift = new DriftEstimator(RATE);
+    double ratio = 1.0;
+    double dt = STEP_NANOS / 1e9;
+    for (long now = 1; now < 20 * 60_000_000_000L; now += STEP_NANOS) {
+      ratio = drift.update(now, buffered, target);
+      buffered += RATE * dt * (1 + senderPpm / 1e6) - RATE * dt * ratio;
+    }
+    assertEquals(senderPpm, drift.driftPpm(), 1);
+    assertEquals(1 + senderPpm / 1e6, ratio, 2e-6);
+    // And the fill it drifted away from is worked off again
+    assertEquals(target, buffered, 10);
+  }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2014 kaytat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kaytat.simpleprotocolplayer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import org.junit.Test;
+
+public class DriftResamplerTest {
+  private static final int CHANNELS = 2;
+  private static final int FRAMES = 240;
+  // Output frames lag the input by half the filter at ratio 1
+  private static final int DELAY = DriftResampler.TAPS / 2;
+
+  private final DriftResampler resampler = new DriftResampler(CHANNELS, PcmFormat.S16, FRAMES);
+  private final float[] block = new float[DriftResampler.maxOutSamples(FRAMES, CHANNELS)];
+  private final ByteBuffer in =
+      ByteBuffer.allocate(FRAMES * CHANNELS * 2).order(ByteOrder.LITTLE_ENDIAN);
+  private final Random random = new Random(1);
+
+  /** Puts a burst of random samples into in and returns them. */
+  private short[] burst() {
+    short[] samples = new short[FRAMES * CHANNELS];
+    in.clear();
+    for (int i = 0; i < samples.length; i++) {
+      samples[i] = (short) random.nextInt();
+      in.putShort(samples[i]);
+    }
+    in.flip();
+    return samples;
+  }
+
+  /** Feeds bursts at a fixed ratio and returns the number of output frames. */
+  private long run(double ratio, int bursts) {
+    long outFrames = 0;
+    for (int b = 0; b < bursts; b++) {
+      burst();
+      outFrames += resampler.process(in, ratio, block, 0) / CHANNELS;
+    }
+    return outFrames;
+  }
+
+  @Test
+  public void passesThroughBitExactAtRatioOne() {
+    short[] previous = new short[FRAMES * CHANNELS];
+    for (int b = 0; b < 50; b++) {
+      short[] samples = burst();
+      assertEquals(FRAMES * CHANNELS, resampler.process(in, 1.0, block, 0));
+      for (int i = 0; i < FRAMES * CHANNELS; i++) {
+        int source = i - DELAY * CHANNELS;
+        float expected;
+        if (source >= 0) {
+          expected = samples[source] / 32768f;
+        } else {
+          expected = b == 0 ? 0 : previous[previous.length + source] / 32768f;
+        }
+        assertEquals(expected, block[i], 0);
+      }
+      previous = samples;
+    }
+  }
+
+  @Test
+  public void smallDriftDropsWholeFrames() {
+    // 100 ppm is slipped a frame at a time rather than filtered
+    double ratio = 1.0001;
+    int bursts = 1000;
+    long inFrames = (long) bursts * FRAMES;
+    assertEquals(inFrames / ratio, run(ratio, bursts), 2);
+  }
+
+  @Test
+  public void smallDriftRepeatsWholeFrames() {
+    double ratio = 0.9999;
+    int bursts = 1000;
+    long inFrames = (long) bursts * FRAMES;
+    assertEquals(inFrames / ratio, run(ratio, bursts), 2);
+  }
+
+  @Test
+  public void largeCorrectionResamplesContinuously() {
+    double ratio = 1 + DriftEstimator.MAX_CORRECTION;
+    int bursts = 200;
+    long inFrames = (long) bursts * FRAMES;
+    assertEquals(inFrames / ratio, run(ratio, bursts), 2);
+  }
+
+  /**
+   * Feeds bursts at a fixed ratio, playing them as they are whenever the resampler would only copy
+   * them. Keeps the input if asked, puts what would reach the sink into out and returns the number
+   * of frames.
+   */
+  private int runSkipping(double ratio, int bursts, short[] input, float[] out) {
+    int outSamples = 0;
+    for (int b = 0; b < bursts; b++) {
+      short[] samples = burst();
+      if (input != null) {
+        System.arraycopy(samples, 0, input, b * samples.length, samples.length);
+      }
+      if (b % 3 != 0 && resampler.passesThrough(FRAMES, ratio)) {
+        outSamples += resampler.drain(out, outSamples);
+        resampler.skip(in, ratio);
+        for (short sample : samples) {
+          out[outSamples++] = sample / 32768f;
+        }
+      } else {
+        outSamples += resampler.process(in, ratio, out, outSamples);
+      }
+    }
+    return outSamples / CHANNELS;
+  }
+
+  @Test
+  public void skippingKeepsTheStreamContinuous() {
+    int bursts = 30;
+    short[] input = new short[bursts * FRAMES * CHANNELS];
+    float[] out = new float[input.length + FRAMES * CHANNELS];
+    int frames = runSkipping(1.0, bursts, input, out);
+
+    // The last burst was played as it is, so nothing is held back at the end
+    assertEquals(bursts * FRAMES + DELAY, frames);
+    // Nothing left out or played twice, only delayed as without skipping
+    for (int i = 0; i < frames * CHANNELS; i++) {
+      float expected = i < DELAY * CHANNELS ? 0 : input[i - DELAY * CHANNELS] / 32768f;
+      assertEquals("sample " + i, expected, out[i], 0);
+    }
+  }
+
+  @Test
+  public void skippingStillSlipsForDrift() {
+    double ratio = 1.0001;
+    int bursts = 1000;
+    long inFrames = (long) bursts * FRAMES;
+    float[] out = new float[(int) (inFrames * 2) * CHANNELS];
+    assertEquals(inFrames / ratio, runSkipping(ratio, bursts, null, out), 2);
+  }
+
+  @Test
+  public void passesThroughOnlyWhileNothingIsDue() {
+    assertTrue(resampler.passesThrough(FRAMES, 1.0));
+    assertTrue(resampler.passesThrough(FRAMES, 1.0 + 0.5 / FRAMES));
+    // A whole frame to slip during the burst
+    assertFalse(resampler.passesThrough(FRAMES, 1.0 + 1.0 / FRAMES));
+    // Resampled continuously
+    assertFalse(resampler.passesThrough(FRAMES, 1.01));
+  }
+
+  @Test
+  public void resetStartsFromSilence() {
+    run(1.001, 10);
+    resampler.reset();
+    burst();
+    resampler.process(in, 1.0, block, 0);
+    for (int i = 0; i < DELAY * CHANNELS; i++) {
+      assertEquals(0, block[i], 0);
+    }
+  }
+}
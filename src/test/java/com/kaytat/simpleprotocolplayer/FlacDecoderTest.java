@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2014 kaytat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kaytat.simpleprotocolplayer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import org.junit.Test;
+
+public class FlacDecoderTest {
+  // 384 stereo 16 bit frames at 44.1 kHz from samples(), encoded by a reference FLAC encoder with
+  // a block size of 128. STREAMINFO and padding come first, the frames start at FRAME_OFFSETS.
+  private static final String VECTOR =
+      "664c61430000002200800080ffffff0000000ac442f00000000000000000000000000000000000000000"
+          + "810000280000000000000000000000000000000000000000000000000000000000000000000000000000"
+          + "0000fff86918007fc5142ee02d000125743b4adad78627996293db0cb0cb1b94257c5114af2d6634fa11"
+          + "d278c6d0cc40000000000000000000000000000072d0e765742b787af3b6795c5630d5e59b62f296524d"
+          + "665acded0b7d2cc2ba84800000000000000000000000000000328676956d9852d59d31b8da13c53b8ca9"
+          + "b14e890e980012cb8819e22924bc18dbb6639b26180e8603a1827685976382a2cbd9e76bc3e215786d86"
+          + "09883b5000000000000000da502866cb8822bc0d2fb49d288b08d60f2f6752617b59d161b090743ceae9"
+          + "4123e2cec117a16000000000000002420e9316452761c491df182754a1b63865874709800ac7fff86918"
+          + "017fd014fa5ff882016b92192acf0af4dee9e492bdb5aa4bee000000000000001a591532496e50e7d535"
+          + "e17d90c155f54f1510cb2cd4437f5ce52c345f95f5454d94d13c50540000000000000012c53c315135b0"
+          + "4d3d114b34305f94f64f2471533491430534433452d37456d94d11413cbc760000000000000018414534"
+          + "8a016681e300a8ec96cf9db046f09d56f6588c8887eb17aa000000011a49bdb2c52da5765dea360bd24b"
+          + "07cbfede6e25c71cb89579716b6c65e17b65ff4dea4f78de683e00000005d36f2cdc64a60cb7e26c7296"
+          + "05edb749bd95cdee564d2c1ef12e5363eaa994a4f789a0df128330000000be0e3df415ccfff86918027f"
+          + "ef14dc62de43012f0e661ebdf5d4ab1a6e9a87f90a7fd3ad3cbf31d497595615511a6b60000000000000"
+          + "00000000000000002b3c22a2ad238efa72ad27243f961186274b7f519425bc4234943fcc47ea2eb56000"
+          + "0000000000000000000000000003d7f76de5fda5d08dd0feb3abd293b5619f4275e6f82823ac21d2022f"
+          + "028ec0d2ebbc64591af09f1e81f290e1f35b478682e518322c170904430111c15e3c4c00000000000000"
+          + "1edb02a38110f0ab064d6ec8f376103ee860560c6f891f7ab68589b10af2d03e518a9f1c0b8491800000"
+          + "000000000055734652341734f05c42ab881f79d797e736923074d43689426500d043";
+  private static final int[] FRAME_OFFSETS = {86, 332, 582};
+  private static final int FRAMES = 384;
+  private static final int BLOCK_SIZE = 128;
+
+  // 192 stereo 24 bit frames at 96 kHz from samples24(), encoded the same way in blocks of 96
+  private static final String VECTOR_24 =
+      "664c61430000002200600060ffffff000000177003700000000000000000000000000000000000000000"
+          + "810000280000000000000000000000000000000000000000000000000000000000000000000000000000"
+          + "0000fff86b1c005fa2142edf802cff870324017ff4003bff400affd802c017ff80060027ff9ff9006002"
+          + "8013ffdffb000cffb000cffb001bff90040024017ffc0050011ff4802fff200d006ffe001400fffa0011"
+          + "ffd0027ff800c006ffd000cffc7fc000000000000000000000000000007002c01000e0077fe4017ff400"
+          + "2bff7ff8007802fff3ffb0067ff8015ffc0057fe3ff000d0067fe8019ffb006002fff20090067fd2004f"
+          + "fd60067fda00cffdffec01000b007ffd200cff8a7447c074bfc68196005ffc4000cfff0011ff48012005"
+          + "ffe000c006ffddffb003001c00dff93ff0b0006ffc30001dff0c0013ffb004002c00bffb001c0015ff16"
+          + "005ffec00f003bff5ffe0008ff890057fde001bff600180027fe2000effd7fc0000000000000037fe900"
+          + "4000a0019ffb002ffe20008ffb3ff2003400bffeffd20077fca0023fec0023ff5ff8003c00bffd801dff"
+          + "480180067ff00160077fc58006ffc24001dff0f003bfebffa4010004800fff8b003bfe9f32fff86b1c01"
+          + "5fb714276020293c27036a008002200000000000000000a7ff000a7febffc8025ff98029ff8002200a00"
+          + "25ff8ffe400a002bff87fe60080023ffa002400b7fe800a7ff400affe5ffb002bff90021ff9002a00cff"
+          + "f000afff400dffee009ffe4009002bffd8035ffa002600bffee00000000000000001a00580110053ff20"
+          + "048016ffe4010ffe7ffd0053ff5ffe0017ffd8010ffc0015005fff5004fff10050010ffcbff2ffcc0140"
+          + "043ff7fff401dffe8012ffc3ff4005fff9005fff5000a76283075aa3681bf0043ff40000000002200600"
+          + "1effa3ff6c018ffe401effc00160064018ffd7ff60070008ffe5ffc8021ffa7ff800b0014fff001effbc"
+          + "0047ff8ffa40047ff6004bff6007c00effd80023ff74004bfea8037ffb002c0047fe440043fff005800b"
+          + "ffd500000000008ffd2004c01effd80160029ff68011ffbbff2e00f7fd1ffb0005ffe90025ff8003e005"
+          + "ffff006fff30070012ffe3ff8ffe001d004bfebffcb800b7fdb0063ff2fff000bffdb002ffff80009881";
+  private static final int FRAMES_24 = 192;
+
+  // What the decoder handed on
+  private final ByteBuffer pcm = ByteBuffer.allocate(FRAMES * 6).order(ByteOrder.LITTLE_ENDIAN);
+  private StreamFormat format;
+  private final FlacDecoder decoder =
+      new FlacDecoder(
+          new PcmSink() {
+            @Override
+            public void offer(ByteBuffer data) {
+              pcm.put(data);
+            }
+
+            @Override
+            public void formatChanged(StreamFormat f) {
+              format = f;
+            }
+          });
+
+  /** The encoded signal, a triangle wave on both channels with a little noise, interleaved. */
+  private static int[] samples() {
+    int[] samples = new int[FRAMES * 2];
+    int seed = 12345;
+    for (int i = 0; i < FRAMES; i++) {
+      seed = seed * 1103515245 + 12345;
+      int noise = (seed >>> 16) % 8 - 4;
+      int triangle = Math.abs((i * 160) % 16000 - 8000) * 3 - 12000;
+      samples[2 * i] = triangle + noise;
+      samples[2 * i + 1] = -triangle / 2 + noise * 3;
+    }
+    return samples;
+  }
+
+  /** Like samples() with 8 more bits below, so every bit of a 24 bit sample is used. */
+  private static int[] samples24() {
+    int[] samples = new int[FRAMES_24 * 2];
+    int seed = 12345;
+    for (int i = 0; i < FRAMES_24; i++) {
+      seed = seed * 1103515245 + 12345;
+      int noise = (seed >>> 16) % 8 - 4;
+      int triangle = Math.abs((i * 160) % 16000 - 8000) * 3 - 12000;
+      samples[2 * i] = (triangle + noise) * 256 + (i * 7) % 256 - 128;
+      samples[2 * i + 1] = (-triangle / 2 + noise * 3) * 256 + (i * 13) % 256 - 128;
+    }
+    return samples;
+  }
+
+  private static byte[] vector() {
+    return parse(VECTOR);
+  }
+
+  private static byte[] parse(String hex) {
+    byte[] bytes = new byte[hex.length() / 2];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+    }
+    return bytes;
+  }
+
+  /** Writes bytes from off on in pieces that don't line up with the frames. */
+  private void write(byte[] bytes, int off) throws Exception {
+    for (int i = off; i < bytes.length; i += 100) {
+      decoder.write(bytes, i, Math.min(100, bytes.length - i));
+    }
+  }
+
+  @Test
+  public void decodesTheReferenceStreamBitExact() throws Exception {
+    write(vector(), 0);
+    assertEquals(new StreamFormat(44100, 2, PcmFormat.S16), format);
+    assertEquals(3, decoder.frames());
+    assertEquals(0, decoder.errors());
+
+    int[] expected = samples();
+    pcm.flip();
+    assertEquals(expected.length, pcm.remaining() / 2);
+    for (int i = 0; i < expected.length; i++) {
+      assertEquals("sample " + i, expected[i], pcm.getShort(2 * i));
+    }
+  }
+
+  @Test
+  public void decodesA24BitStreamAt24Bits() throws Exception {
+    write(parse(VECTOR_24), 0);
+    assertEquals(new StreamFormat(96000, 2, PcmFormat.S24), format);
+    assertEquals(2, decoder.frames());
+    assertEquals(0, decoder.errors());
+
+    int[] expected = samples24();
+    pcm.flip();
+    assertEquals(expected.length, pcm.remaining() / 3);
+    for (int i = 0; i < expected.length; i++) {
+      int p = 3 * i;
+      int sample = pcm.get(p) & 0xff | (pcm.get(p + 1) & 0xff) << 8 | pcm.get(p + 2) << 16;
+      assertEquals("sample " + i, expected[i], sample);
+    }
+  }
+
+  @Test
+  public void joinsAStreamInTheMiddle() throws Exception {
+    // Start part way into the first frame, the decoder has to find the sync code of the second
+    write(vector(), FRAME_OFFSETS[0] + 20);
+    assertEquals(2, decoder.frames());
+
+    int[] expected = samples();
+    pcm.flip();
+    assertEquals(expected.length - 2 * BLOCK_SIZE, pcm.remaining() / 2);
+    for (int i = 0; i < pcm.remaining() / 2; i++) {
+      assertEquals("sample " + i, expected[2 * BLOCK_SIZE + i], pcm.getShort(2 * i));
+    }
+  }
+
+  @Test
+  public void skipsAFrameThatFailsItsCrc() throws Exception {
+    byte[] bytes = vector();
+    bytes[FRAME_OFFSETS[1] + 20] ^= 0x10;
+    write(bytes, 0);
+    assertEquals(2, decoder.frames());
+    assertTrue(decoder.errors() > 0);
+
+    // The frames either side are still played, in order
+    int[] expected = samples();
+    pcm.flip();
+    for (int i = 0; i < 2 * BLOCK_SIZE; i++) {
+      assertEquals(expected[i], pcm.getShort(2 * i));
+      assertEquals(expected[4 * BLOCK_SIZE + i], pcm.getShort(2 * (2 * BLOCK_SIZE + i)));
+    }
+  }
+}
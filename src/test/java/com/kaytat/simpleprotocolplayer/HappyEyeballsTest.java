@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2014 kaytat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kaytat.simpleprotocolplayer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Test;
+
+public class HappyEyeballsTest {
+  private final List<ServerSocket> servers = new ArrayList<>();
+  private final List<Socket> accepted = new ArrayList<>();
+
+  @After
+  public void tearDown() throws IOException {
+    for (ServerSocket server : servers) {
+      server.close();
+    }
+    synchronized (accepted) {
+      for (Socket socket : accepted) {
+        socket.close();
+      }
+    }
+  }
+
+  /** A server on loopback that accepts one connection and sends a byte if talking. */
+  private InetSocketAddress server(boolean talking) throws IOException {
+    ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    servers.add(server);
+    Thread thread =
+        new Thread(
+            () -> {
+              try {
+                Socket socket = server.accept();
+                synchronized (accepted) {
+                  accepted.add(socket);
+                }
+                if (talking) {
+                  socket.getOutputStream().write(1);
+                }
+              } catch (IOException e) {
+                // Closed by tearDown()
+              }
+            });
+    thread.setDaemon(true);
+    thread.start();
+    return (InetSocketAddress) server.getLocalSocketAddress();
+  }
+
+  /** A loopback address nothing listens on. */
+  private static InetSocketAddress refused() throws IOException {
+    try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+      return (InetSocketAddress) server.getLocalSocketAddress();
+    }
+  }
+
+  private static int remotePort(SocketChannel channel) throws IOException {
+    return ((InetSocketAddress) channel.getRemoteAddress()).getPort();
+  }
+
+  @Test
+  public void connectionWithDataWins() throws Exception {
+    InetSocketAddress talking = server(true);
+    try (SocketChannel channel =
+        new HappyEyeballs(Arrays.asList(talking, server(false)), 5000).connect()) {
+      assertEquals(talking.getPort(), remotePort(channel));
+    }
+  }
+
+  @Test
+  public void laterServerWinsOverASilentOne() throws Exception {
+    InetSocketAddress silent = server(false);
+    InetSocketAddress talking = server(true);
+    long start = System.nanoTime();
+    try (SocketChannel channel =
+        new HappyEyeballs(Arrays.asList(silent, talking), 5000).connect()) {
+      assertEquals(talking.getPort(), remotePort(channel));
+    }
+    // The second attempt only starts after the delay, the first one connected
+    assertTrue(System.nanoTime() - start >= HappyEyeballs.ATTEMPT_DELAY_NANOS);
+  }
+
+  @Test
+  public void refusedConnectionMovesOnStraightAway() throws Exception {
+    InetSocketAddress talking = server(true);
+    long start = System.nanoTime();
+    try (SocketChannel channel =
+        new HappyEyeballs(Arrays.asList(refused(), talking), 5000).connect()) {
+      assertEquals(talking.getPort(), remotePort(channel));
+    }
+    assertTrue(System.nanoTime() - start < HappyEyeballs.ATTEMPT_DELAY_NANOS);
+  }
+
+  @Test(expected = ConnectException.class)
+  public void everyConnectionRefused() throws Exception {
+    new HappyEyeballs(Arrays.asList(refused(), refused()), 5000).connect();
+  }
+
+  @Test(expected = SocketTimeoutException.class)
+  public void silentServerTimesOut() throws Exception {
+    new HappyEyeballs(Arrays.asList(server(false)), 300).connect();
+  }
+
+  @Test
+  public void candidatesKeepServerOrder() throws Exception {
+    List<InetSocketAddress> candidates =
+        HappyEyeballs.candidates(Arrays.asList("127.0.0.2", "127.0.0.1"), 12345);
+    assertEquals(
+        Arrays.asList(
+            new InetSocketAddress("127.0.0.2", 12345), new InetSocketAddress("127.0.0.1", 12345)),
+        candidates);
+  }
+}
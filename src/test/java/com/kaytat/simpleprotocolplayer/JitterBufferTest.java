@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2014 kaytat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kaytat.simpleprotocolplayer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import org.junit.Test;
+
+public class JitterBufferTest {
+  // 48 kHz stereo 16 bit, 192000 bytes a second
+  private static final StreamFormat FORMAT = new StreamFormat(48000, 2, PcmFormat.S16);
+  private static final int BURST = 960;
+  private static final int TARGET = 1920;
+  // 100 ms
+  private static final int MAX_LATENCY_MS = 100;
+  private static final int MAX_LATENCY_BYTES = 19200;
+
+  private static JitterBuffer create(OverflowPolicy policy) {
+    return new JitterBuffer(FORMAT, BURST, TARGET, 1f, policy, MAX_LATENCY_MS);
+  }
+
+  /** Bytes numbered by frame, so the first frame left in the ring tells how much was dropped. */
+  private static ByteBuffer frames(int bytes) {
+    ByteBuffer data = ByteBuffer.allocate(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    for (int frame = 0; frame < bytes / 4; frame++) {
+      data.putInt(frame);
+    }
+    data.flip();
+    return data;
+  }
+
+  private static int firstFrame(JitterBuffer jitterBuffer) {
+    return jitterBuffer.ring().readableRegion(4).getInt();
+  }
+
+  @Test
+  public void startsOnceFilledToTheTarget() throws InterruptedException {
+    JitterBuffer jitterBuffer = create(OverflowPolicy.DROP_OLDEST);
+    jitterBuffer.offer(frames(TARGET - 4));
+    assertFalse(jitterBuffer.await(0));
+    jitterBuffer.offer(frames(4));
+    assertTrue(jitterBuffer.await(0));
+
+    // Playing on only needs a burst
+    jitterBuffer.ring().skip(TARGET - BURST);
+    assertTrue(jitterBuffer.await(0));
+  }
+
+  @Test
+  public void refillsToTheTargetAfterAnUnderrun() throws InterruptedException {
+    JitterBuffer jitterBuffer = create(OverflowPolicy.DROP_OLDEST);
+    jitterBuffer.offer(frames(TARGET));
+    assertTrue(jitterBuffer.await(0));
+    jitterBuffer.ring().skip(TARGET);
+    assertFalse(jitterBuffer.await(0));
+
+    // A burst is no longer enough, the buffer fills up to the target again first
+    int target = jitterBuffer.targetBytes();
+    jitterBuffer.offer(frames(BURST));
+    assertFalse(jitterBuffer.await(0));
+    jitterBuffer.offer(frames(target - BURST));
+    assertTrue(jitterBuffer.await(0));
+  }
+
+  @Test
+  public void slowsDownUntilRefilled() throws InterruptedException {
+    JitterBuffer jitterBuffer =
+        new JitterBuffer(FORMAT, BURST, 4 * BURST, 1f, OverflowPolicy.DROP_OLDEST, MAX_LATENCY_MS);
+    jitterBuffer.offer(frames(4 * BURST));
+    assertTrue(jitterBuffer.await(0));
+    assertEquals(1.0, jitterBuffer.speed(), 0);
+
+    // Under half the target but not dry
+    jitterBuffer.ring().skip(4 * BURST - 3 * BURST / 2);
+    assertTrue(jitterBuffer.await(0));
+    assertEquals(JitterBuffer.REFILL_SPEED, jitterBuffer.speed(), 0);
+
+    // Still slow until the target is reached again
+    jitterBuffer.offer(frames(2 * BURST));
+    assertTrue(jitterBuffer.await(0));
+    assertEquals(JitterBuffer.REFILL_SPEED, jitterBuffer.speed(), 0);
+    jitterBuffer.offer(frames(BURST / 2));
+    assertTrue(jitterBuffer.await(0));
+    assertEquals(1.0, jitterBuffer.speed(), 0);
+  }
+
+  @Test
+  public void formatChangeDoesNotWaitForTheTarget() throws InterruptedException {
+    JitterBuffer jitterBuffer = create(OverflowPolicy.DROP_OLDEST);
+    jitterBuffer.offer(frames(BURST));
+    assertFalse(jitterBuffer.await(0));
+
+    // The rest of the old format is played out as it is
+    jitterBuffer.announceFormat(new StreamFormat(44100, 2, PcmFormat.S16));
+    assertTrue(jitterBuffer.await(0));
+  }
+
+  @Test
+  public void dropOldestKeepsTheMaximumLatency() throws InterruptedException {
+    JitterBuffer jitterBuffer = create(OverflowPolicy.DROP_OLDEST);
+    jitterBuffer.offer(frames(30000));
+    assertTrue(jitterBuffer.await(0));
+    assertEquals(MAX_LATENCY_BYTES, jitterBuffer.ring().available());
+    assertEquals(30000 - MAX_LATENCY_BYTES, jitterBuffer.overflowBytes());
+    assertEquals((30000 - MAX_LATENCY_BYTES) / 4, firstFrame(jitterBuffer));
+  }
+
+  @Test
+  public void skipToLiveJumpsBackToTheTarget() throws InterruptedException {
+    JitterBuffer jitterBuffer = create(OverflowPolicy.SKIP_TO_LIVE);
+    jitterBuffer.offer(frames(30000));
+    assertTrue(jitterBuffer.await(0));
+    assertEquals(TARGET, jitterBuffer.ring().available());
+    assertEquals((30000 - TARGET) / 4, firstFrame(jitterBuffer));
+  }
+
+  @Test
+  public void catchUpSpeedsUpAndSkipsBursts() throws InterruptedException {
+    JitterBuffer jitterBuffer = create(OverflowPolicy.CATCH_UP);
+    // Over twice the target but under the maximum latency
+    jitterBuffer.offer(frames(10000));
+    assertTrue(jitterBuffer.await(0));
+    assertEquals(10000, jitterBuffer.ring().available());
+    assertEquals(JitterBuffer.CATCH_UP_SPEED, jitterBuffer.speed(), 0);
+    assertTrue(jitterBuffer.skipBurst());
+    assertEquals(10000 - BURST, jitterBuffer.ring().available());
+    assertEquals(BURST, jitterBuffer.overflowBytes());
+
+    // Back at the target it plays normally again
+    jitterBuffer.ring().skip(10000 - BURST - TARGET);
+    assertTrue(jitterBuffer.await(0));
+    assertEquals(1.0, jitterBuffer.speed(), 0);
+    assertFalse(jitterBuffer.skipBurst());
+  }
+
+  @Test
+  public void overflowPoliciesLeaveLatencyUnderTheMaximumAlone() throws InterruptedException {
+    for (OverflowPolicy policy : OverflowPolicy.values()) {
+      JitterBuffer jitterBuffer = create(policy);
+      jitterBuffer.offer(frames(3000));
+      assertTrue(jitterBuffer.await(0));
+      assertEquals(policy.name(), 3000, jitterBuffer.ring().available());
+      assertEquals(policy.name(), 0, jitterBuffer.overflowBytes());
+    }
+  }
+
+  @Test
+  public void offerNowTakesWhatFits() {
+    JitterBuffer jitterBuffer = create(OverflowPolicy.DROP_OLDEST);
+    int capacity = jitterBuffer.ring().capacity();
+    ByteBuffer data = frames(capacity + 400);
+    assertFalse(jitterBuffer.offerNow(data));
+    assertEquals(400, data.remaining());
+    assertEquals(capacity, jitterBuffer.ring().available());
+
+    jitterBuffer.ring().skip(400);
+    assertTrue(jitterBuffer.offerNow(data));
+    assertEquals(0, data.remaining());
+  }
+
+  @Test
+  public void formatSwitchReplacesTheRing() {
+    JitterBuffer jitterBuffer = create(OverflowPolicy.DROP_OLDEST);
+    StreamFormat mono = new StreamFormat(44100, 1, PcmFormat.S16);
+    assertFalse(jitterBuffer.announceFormat(FORMAT));
+    assertTrue(jitterBuffer.announceFormat(mono));
+    assertEquals(mono, jitterBuffer.pendingFormat());
+
+    AudioRingBuffer old = jitterBuffer.ring();
+    boolean[] woken = new boolean[1];
+    old.setWriterListener(() -> woken[0] = true);
+    jitterBuffer.applyFormat(882, 1764);
+    assertNull(jitterBuffer.pendingFormat());
+    assertEquals(mono, jitterBuffer.format());
+    assertEquals(2, jitterBuffer.ring().bytesPerFrame());
+    assertTrue(woken[0]);
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2014 kaytat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kaytat.simpleprotocolplayer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LossConcealerTest {
+  // 1 kHz mono, so a millisecond is a frame: 10 source frames, a 40 frame fade, 5 to crossfade
+  private static final int SAMPLE_RATE = 1000;
+
+  private final LossConcealer concealer = new LossConcealer(SAMPLE_RATE, 1);
+
+  /** Plays a ramp of frames samples ending at 1, returns it. */
+  private float[] playRamp(int frames) {
+    float[] ramp = new float[frames];
+    for (int i = 0; i < frames; i++) {
+      ramp[i] = (i + 1) / (float) frames;
+    }
+    concealer.played(ramp.clone(), frames);
+    return ramp;
+  }
+
+  @Test
+  public void playsTheLastAudioBackwardsAndForwards() {
+    float[] ramp = playRamp(20);
+    float[] out = new float[25];
+    assertEquals(25, concealer.conceal(out, 25));
+    assertTrue(concealer.isActive());
+
+    // Back from the last frame over the 10 kept, then forward again, while fading
+    for (int f = 0; f < 10; f++) {
+      assertEquals(ramp[19 - f] * (1 - f / 40f), out[f], 1e-6);
+    }
+    assertEquals(ramp[11] * (1 - 10 / 40f), out[10], 1e-6);
+  }
+
+  @Test
+  public void fadesToSilence() {
+    playRamp(20);
+    float[] out = new float[60];
+    concealer.conceal(out, 60);
+    for (int f = 40; f < 60; f++) {
+      assertEquals(0, out[f], 0);
+    }
+    assertEquals(60, concealer.concealedFrames());
+  }
+
+  @Test
+  public void crossfadesBackIn() {
+    playRamp(20);
+    concealer.conceal(new float[60], 60);
+
+    // Concealment has faded out, so the crossfade starts from silence
+    float[] out = {1, 1, 1, 1, 1, 1, 1, 1};
+    concealer.played(out, out.length);
+    assertFalse(concealer.isActive());
+    for (int f = 0; f < 5; f++) {
+      assertEquals((f + 1) / 6f, out[f], 1e-6);
+    }
+    assertEquals(1, out[5], 0);
+  }
+
+  @Test
+  public void concealsSilenceWithoutAnyAudio() {
+    float[] out = {1, 1, 1};
+    concealer.conceal(out, 3);
+    assertEquals(0, out[0], 0);
+    assertEquals(0, out[2], 0);
+  }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2014 kaytat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kaytat.simpleprotocolplayer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+
+public class OpusDecoderTest {
+  @Test
+  public void stereoUsesMappingFamilyZero() {
+    ByteBuffer head = OpusDecoder.opusHead(2);
+    assertEquals(19, head.remaining());
+    assertEquals(2, head.get(9));
+    assertEquals(OpusDecoder.SAMPLE_RATE, head.getInt(12));
+    assertEquals(0, head.get(18));
+  }
+
+  @Test
+  public void surroundHasAChannelMappingTable() {
+    ByteBuffer head = OpusDecoder.opusHead(6);
+    assertEquals(21 + 6, head.remaining());
+    assertEquals(6, head.get(9));
+    assertEquals(1, head.get(18));
+    // 5.1 is four streams, two of them coupled, in Vorbis channel order
+    assertEquals(4, head.get(19));
+    assertEquals(2, head.get(20));
+    byte[] mapping = new byte[6];
+    head.position(21);
+    head.get(mapping);
+    assertArrayEquals(new byte[] {0, 4, 1, 2, 3, 5}, mapping);
+  }
+
+  @Test(expected = IOException.class)
+  public void rejectsMoreChannelsThanTheMappingCovers() throws IOException {
+    new OpusDecoder(OpusDecoder.MAX_CHANNELS + 1, null, null, "test");
+  }
+}
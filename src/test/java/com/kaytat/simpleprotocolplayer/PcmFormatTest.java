@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2014 kaytat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kaytat.simpleprotocolplayer;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import org.junit.Test;
+
+public class PcmFormatTest {
+  private final Random random = new Random(1);
+
+  private static ByteBuffer buffer(PcmFormat format, int samples) {
+    return ByteBuffer.allocate(samples * format.bytesPerSample).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  /** Converts in to floats and back, checking both move the position to the end. */
+  private static ByteBuffer roundTrip(PcmFormat format, ByteBuffer in) {
+    int samples = in.remaining() / format.bytesPerSample;
+    float[] floats = new float[samples + 1];
+    assertEquals(samples, format.toFloat(in, floats, 1));
+    assertEquals(in.limit(), in.position());
+
+    ByteBuffer out = buffer(format, samples);
+    format.fromFloat(floats, 1, samples, out);
+    assertEquals(out.limit(), out.position());
+    out.flip();
+    return out;
+  }
+
+  private static void put24(ByteBuffer out, int v) {
+    out.put((byte) v).put((byte) (v >> 8)).put((byte) (v >> 16));
+  }
+
+  private static int get24(ByteBuffer in, int i) {
+    int p = 3 * i;
+    return in.get(p) & 0xff | (in.get(p + 1) & 0xff) << 8 | in.get(p + 2) << 16;
+  }
+
+  @Test
+  public void s16RoundTripsEveryValueExactly() {
+    ByteBuffer in = buffer(PcmFormat.S16, 0x10000);
+    for (int v = Short.MIN_VALUE; v <= Short.MAX_VALUE; v++) {
+      in.putShort((short) v);
+    }
+    in.flip();
+    ByteBuffer out = roundTrip(PcmFormat.S16, in);
+    for (int i = 0; i < 0x10000; i++) {
+      assertEquals(in.getShort(2 * i), out.getShort(2 * i));
+    }
+  }
+
+  @Test
+  public void s24RoundTripsExactly() {
+    int samples = 10000;
+    ByteBuffer in = buffer(PcmFormat.S24, samples);
+    put24(in, -0x800000);
+    put24(in, 0x7fffff);
+    put24(in, 0);
+    put24(in, -1);
+    for (int i = 4; i < samples; i++) {
+      put24(in, random.nextInt() >> 8);
+    }
+    in.flip();
+    ByteBuffer out = roundTrip(PcmFormat.S24, in);
+    for (int i = 0; i < samples; i++) {
+      assertEquals("sample " + i, get24(in, i), get24(out, i));
+    }
+  }
+
+  @Test
+  public void s32RoundTripsToFloatPrecision() {
+    int samples = 10000;
+    ByteBuffer in = buffer(PcmFormat.S32, samples);
+    in.putInt(Integer.MIN_VALUE).putInt(Integer.MAX_VALUE).putInt(0);
+    for (int i = 3; i < samples; i++) {
+      in.putInt(random.nextInt());
+    }
+    in.flip();
+    ByteBuffer out = roundTrip(PcmFormat.S32, in);
+    for (int i = 0; i < samples; i++) {
+      // A float keeps 24 bits, so full scale samples are off by up to half of 2^8
+      assertEquals("sample " + i, in.getInt(4 * i), out.getInt(4 * i), 128);
+    }
+  }
+
+  @Test
+  public void floatRoundTripsExactly() {
+    int samples = 1000;
+    ByteBuffer in = buffer(PcmFormat.FLOAT, samples);
+    for (int i = 0; i < samples; i++) {
+      in.putFloat((float) random.nextGaussian());
+    }
+    in.flip();
+    ByteBuffer out = roundTrip(PcmFormat.FLOAT, in);
+    for (int i = 0; i < samples; i++) {
+      assertEquals(in.getFloat(4 * i), out.getFloat(4 * i), 0);
+    }
+  }
+
+  @Test
+  public void clipsToTheRangeOfTheFormat() {
+    float[] loud = {1.5f, -1.5f, 1f};
+    ByteBuffer s16 = buffer(PcmFormat.S16, loud.length);
+    PcmFormat.S16.fromFloat(loud, 0, loud.length, s16);
+    assertEquals(Short.MAX_VALUE, s16.getShort(0));
+    assertEquals(Short.MIN_VALUE, s16.getShort(2));
+    assertEquals(Short.MAX_VALUE, s16.getShort(4));
+
+    ByteBuffer s24 = buffer(PcmFormat.S24, loud.length);
+    PcmFormat.S24.fromFloat(loud, 0, loud.length, s24);
+    assertEquals(0x7fffff, get24(s24, 0));
+    assertEquals(-0x800000, get24(s24, 1));
+    assertEquals(0x7fffff, get24(s24, 2));
+
+    ByteBuffer s32 = buffer(PcmFormat.S32, loud.length);
+    PcmFormat.S32.fromFloat(loud, 0, loud.length, s32);
+    assertEquals(Integer.MAX_VALUE, s32.getInt(0));
+    assertEquals(Integer.MIN_VALUE, s32.getInt(4));
+    assertEquals(Integer.MAX_VALUE, s32.getInt(8));
+
+    // Float is played as it is, AudioTrack clips it
+    ByteBuffer f = buffer(PcmFormat.FLOAT, loud.length);
+    PcmFormat.FLOAT.fromFloat(loud, 0, loud.length, f);
+    assertEquals(1.5f, f.getFloat(0), 0);
+    assertEquals(-1.5f, f.getFloat(4), 0);
+  }
+
+  @Test
+  public void peakIsTheLargestMagnitude() {
+    float[] samples = {0.25f, -0.5f, 0.125f, 0f};
+    for (PcmFormat format : PcmFormat.values()) {
+      ByteBuffer pcm = buffer(format, samples.length);
+      format.fromFloat(samples, 0, samples.length, pcm);
+      pcm.flip();
+      assertEquals(format.name(), 0.5f, format.peak(pcm), 1e-6f);
+      // Leaves the buffer as it was
+      assertEquals(0, pcm.position());
+    }
+  }
+
+  @Test
+  public void peakOfFullScaleNegativeIsOne() {
+    ByteBuffer s16 = buffer(PcmFormat.S16, 1).putShort(Short.MIN_VALUE);
+    s16.flip();
+    assertEquals(1f, PcmFormat.S16.peak(s16), 0);
+
+    ByteBuffer s32 = buffer(PcmFormat.S32, 1).putInt(Integer.MIN_VALUE);
+    s32.flip();
+    assertEquals(1f, PcmFormat.S32.peak(s32), 0);
+  }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2014 kaytat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kaytat.simpleprotocolplayer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import org.junit.Test;
+
+public class PlaybackLoopTest {
+  // 48 kHz stereo 16 bit, 5 ms bursts
+  private static final StreamFormat FORMAT = new StreamFormat(48000, 2, PcmFormat.S16);
+  private static final int BURST = 960;
+  private static final int BURST_FRAMES = BURST / 4;
+  private static final int BURSTS = 10;
+  // The resampler looks ahead by half its filter even when passing through
+  private static final int DELAY = DriftResampler.TAPS / 2;
+
+  /** Plays instantly, so everything written has been played. */
+  private static final class CaptureSink implements AudioSink {
+    final ByteArrayOutputStream written = new ByteArrayOutputStream();
+    // Writes of the buffer given, to tell bursts played straight from the ring
+    ByteBuffer watched;
+    int watchedWrites;
+
+    @Override
+    public void play() {}
+
+    @Override
+    public int write(ByteBuffer data, int size) {
+      if (data == watched) {
+        watchedWrites++;
+      }
+      for (int i = 0; i < size; i++) {
+        written.write(data.get());
+      }
+      return size;
+    }
+
+    @Override
+    public int playbackHeadPosition() {
+      return written.size() / 4;
+    }
+
+    @Override
+    public int bufferSizeInFrames() {
+      return 4 * BURST_FRAMES;
+    }
+
+    @Override
+    public boolean timestamp(Timestamp timestamp) {
+      return false;
+    }
+
+    @Override
+    public int underrunCount() {
+      return 0;
+    }
+
+    @Override
+    public void setVolume(float volume) {}
+
+    @Override
+    public void pause() {}
+
+    @Override
+    public void release() {}
+
+    short sample(int i) {
+      return ByteBuffer.wrap(written.toByteArray()).order(ByteOrder.LITTLE_ENDIAN).getShort(2 * i);
+    }
+  }
+
+  private final JitterBuffer jitterBuffer =
+      new JitterBuffer(FORMAT, BURST, 2 * BURST, 1f, OverflowPolicy.DROP_OLDEST, 1000);
+  private final CaptureSink sink = new CaptureSink();
+  private final PlaybackLoop loop =
+      new PlaybackLoop(jitterBuffer, sink, PcmFormat.S16, new StreamMetrics("test"), 0, 0);
+
+  /** A different value for every sample, well inside the 16 bit range. */
+  private static short input(int i) {
+    return (short) ((i * 37) % 20000 - 10000);
+  }
+
+  private void offerBursts() throws InterruptedException {
+    ByteBuffer data = ByteBuffer.allocate(BURSTS * BURST).order(ByteOrder.LITTLE_ENDIAN);
+    for (int i = 0; i < BURSTS * BURST / 2; i++) {
+      data.putShort(input(i));
+    }
+    data.flip();
+    jitterBuffer.offer(data);
+  }
+
+  @Test
+  public void passesTheStreamThroughBitExact() throws InterruptedException {
+    offerBursts();
+    // The ring hands out the same view of its storage every time
+    sink.watched = jitterBuffer.ring().readableRegion(0);
+    for (int i = 0; i < BURSTS; i++) {
+      assertTrue(loop.step());
+    }
+    assertEquals(0, jitterBuffer.ring().available());
+    assertEquals(1.0, loop.ratio(), 0);
+    // Played straight from the ring, after the silence the resampler started with
+    assertEquals(BURSTS, sink.watchedWrites);
+    assertEquals(BURSTS * BURST + DELAY * 4, sink.written.size());
+
+    for (int i = 0; i < 2 * DELAY; i++) {
+      assertEquals(0, sink.sample(i));
+    }
+    for (int i = 2 * DELAY; i < BURSTS * BURST / 2 + 2 * DELAY; i++) {
+      assertEquals("sample " + i, input(i - 2 * DELAY), sink.sample(i));
+    }
+  }
+
+  @Test
+  public void concealsFromAudioPlayedStraightFromTheRing() throws InterruptedException {
+    offerBursts();
+    for (int i = 0; i < BURSTS; i++) {
+      loop.step();
+    }
+    int played = sink.written.size() / 2;
+
+    // The network is late, concealment starts from the last frame played at full level
+    assertTrue(loop.step());
+    assertTrue(loop.concealing());
+    assertEquals(sink.sample(played - 2), sink.sample(played));
+    assertEquals(sink.sample(played - 1), sink.sample(played + 1));
+  }
+
+  @Test
+  public void concealsWhenTheNetworkIsLate() throws InterruptedException {
+    offerBursts();
+    for (int i = 0; i < BURSTS; i++) {
+      loop.step();
+    }
+    assertFalse(loop.concealing());
+    int written = sink.written.size();
+
+    assertTrue(loop.step());
+    assertTrue(loop.concealing());
+    assertEquals(BURST_FRAMES, loop.concealedFrames());
+    assertEquals(written + BURST, sink.written.size());
+  }
+
+  @Test
+  public void waitsWithoutConcealingBeforeTheFirstBurst() throws InterruptedException {
+    assertTrue(loop.step());
+    assertFalse(loop.concealing());
+    assertEquals(0, sink.written.size());
+  }
+
+  @Test
+  public void stopsForAFormatChangeOnceTheOldFormatIsPlayed() throws InterruptedException {
+    offerBursts();
+    assertTrue(jitterBuffer.announceFormat(new StreamFormat(44100, 2, PcmFormat.S16)));
+    for (int i = 0; i < BURSTS; i++) {
+      assertTrue(loop.step());
+    }
+    assertFalse(loop.step());
+    // All of it, with the frames the resampler held back
+    assertEquals(BURSTS * BURST + DELAY * 4, sink.written.size());
+  }
+}
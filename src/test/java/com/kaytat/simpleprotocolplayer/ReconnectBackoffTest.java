@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2014 kaytat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kaytat.simpleprotocolplayer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import org.junit.Test;
+
+public class ReconnectBackoffTest {
+  @Test
+  public void delaysDoubleUpToTheMaximum() {
+    ReconnectBackoff backoff = new ReconnectBackoff(new Random(1));
+    long cap = ReconnectBackoff.INITIAL_NANOS;
+    for (int attempt = 0; attempt < 20; attempt++) {
+      long delay = backoff.nextDelayNanos(0);
+      // Half of each delay is random
+      assertTrue(delay >= cap / 2);
+      assertTrue(delay <= cap);
+      cap = Math.min(ReconnectBackoff.MAX_NANOS, cap * 2);
+    }
+    assertEquals(20, backoff.attempts());
+  }
+
+  @Test
+  public void failingTimeCountsFromTheFirstFailure() {
+    ReconnectBackoff backoff = new ReconnectBackoff(new Random(1));
+    assertEquals(0, backoff.failingNanos(1000));
+    backoff.nextDelayNanos(1000);
+    backoff.nextDelayNanos(5000);
+    assertEquals(9000, backoff.failingNanos(10_000));
+  }
+
+  @Test
+  public void resetStartsOver() {
+    ReconnectBackoff backoff = new ReconnectBackoff(new Random(1));
+    for (int i = 0; i < 5; i++) {
+      backoff.nextDelayNanos(i);
+    }
+    backoff.reset();
+    assertEquals(0, backoff.attempts());
+    assertEquals(0, backoff.failingNanos(100));
+    assertTrue(backoff.nextDelayNanos(100) <= ReconnectBackoff.INITIAL_NANOS);
+    assertEquals(50, backoff.failingNanos(150));
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2014 kaytat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kaytat.simpleprotocolplayer;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+public class RtpReorderBufferTest {
+  // What reached the sink, by the sequence number each payload was pushed with
+  private final List<Integer> out = new ArrayList<>();
+  private final RtpReorderBuffer buffer =
+      new RtpReorderBuffer((timestamp, data, off, len) -> out.add((int) timestamp), 4, 16);
+
+  /** Pushes one payload per sequence number, with the sequence number as its timestamp. */
+  private void push(int... sequences) throws IOException, InterruptedException {
+    for (int sequence : sequences) {
+      buffer.push(sequence, sequence, new byte[8], 0, 8);
+    }
+  }
+
+  @Test
+  public void passesInOrderPacketsStraightOn() throws Exception {
+    push(10, 11, 12);
+    assertEquals(Arrays.asList(10, 11, 12), out);
+    assertEquals(0, buffer.lost());
+  }
+
+  @Test
+  public void putsReorderedPacketsBackInOrder() throws Exception {
+    push(0, 2, 1, 4, 3);
+    assertEquals(Arrays.asList(0, 1, 2, 3, 4), out);
+    assertEquals(0, buffer.lost());
+    assertEquals(0, buffer.late());
+  }
+
+  @Test
+  public void givesUpOnAMissingPacketOnceTheWindowIsFull() throws Exception {
+    push(0, 2, 3, 4);
+    assertEquals(Arrays.asList(0), out);
+    push(5);
+    assertEquals(Arrays.asList(0, 2, 3, 4, 5), out);
+    assertEquals(1, buffer.lost());
+
+    // Too late now
+    push(1);
+    assertEquals(1, buffer.late());
+    assertEquals(5, out.size());
+  }
+
+  @Test
+  public void dropsDuplicates() throws Exception {
+    push(0, 1, 1, 3, 3, 2);
+    assertEquals(Arrays.asList(0, 1, 2, 3), out);
+    assertEquals(2, buffer.duplicates());
+    assertEquals(0, buffer.late());
+  }
+
+  @Test
+  public void followsSequenceNumbersAcrossTheWrap() throws Exception {
+    push(65534, 0, 65535, 1);
+    assertEquals(Arrays.asList(65534, 65535, 0, 1), out);
+    assertEquals(0, buffer.lost());
+  }
+
+  @Test
+  public void flushSkipsOverMissingPackets() throws Exception {
+    push(0, 2);
+    buffer.flush();
+    assertEquals(Arrays.asList(0, 2), out);
+    assertEquals(1, buffer.lost());
+  }
+
+  @Test
+  public void largeJumpIsASenderRestart() throws Exception {
+    push(100, 101);
+    // Further ahead of the expected 102 than any dropout
+    int restart = 102 + RtpReorderBuffer.MAX_DROPOUT + 1;
+    push(restart, restart + 1);
+    assertEquals(4, out.size());
+    assertEquals(0, buffer.lost());
+  }
+}
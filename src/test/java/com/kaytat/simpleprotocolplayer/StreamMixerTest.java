@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2014 kaytat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kaytat.simpleprotocolplayer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import org.junit.Test;
+
+public class StreamMixerTest {
+  private static final int SAMPLE_RATE = 48000;
+  private static final int CHANNELS = 2;
+  // 5 ms
+  private static final int BURST_FRAMES = 240;
+  private static final int BURSTS = 20;
+  // Bursts mixed before the resampler delay and the start are past
+  private static final int SETTLE = 2;
+
+  /** Plays instantly and keeps the last burst written. */
+  private static final class CaptureSink implements AudioSink {
+    final float[] last = new float[BURST_FRAMES * CHANNELS];
+    int frames;
+
+    @Override
+    public void play() {}
+
+    @Override
+    public int write(ByteBuffer data, int size) {
+      for (int i = 0; i < size / 4; i++) {
+        last[i] = data.getFloat();
+      }
+      frames += size / (4 * CHANNELS);
+      return size;
+    }
+
+    @Override
+    public int playbackHeadPosition() {
+      return frames;
+    }
+
+    @Override
+    public int bufferSizeInFrames() {
+      return 4 * BURST_FRAMES;
+    }
+
+    @Override
+    public boolean timestamp(Timestamp timestamp) {
+      return false;
+    }
+
+    @Override
+    public int underrunCount() {
+      return 0;
+    }
+
+    @Override
+    public void setVolume(float volume) {}
+
+    @Override
+    public void pause() {}
+
+    @Override
+    public void release() {}
+  }
+
+  private final CaptureSink sink = new CaptureSink();
+  private final StreamMixer mixer = new StreamMixer(sink, SAMPLE_RATE, CHANNELS, BURST_FRAMES);
+
+  /** A jitter buffer holding BURSTS bursts with the same value in each channel. */
+  private static JitterBuffer stream(int sampleRate, float... values) throws InterruptedException {
+    StreamFormat format = new StreamFormat(sampleRate, values.length, PcmFormat.S16);
+    int burstBytes = BURST_FRAMES * format.bytesPerFrame();
+    JitterBuffer jitterBuffer =
+        new JitterBuffer(format, burstBytes, burstBytes, 1f, OverflowPolicy.DROP_OLDEST, 1000);
+    ByteBuffer data = ByteBuffer.allocate(BURSTS * burstBytes).order(ByteOrder.LITTLE_ENDIAN);
+    while (data.hasRemaining()) {
+      for (float value : values) {
+        data.putShort((short) Math.round(value * 0x8000));
+      }
+    }
+    data.flip();
+    jitterBuffer.offer(data);
+    return jitterBuffer;
+  }
+
+  private StreamMixer.Input add(JitterBuffer jitterBuffer) {
+    return mixer.add(jitterBuffer, new StreamMetrics("test"), 10);
+  }
+
+  private void settle() {
+    for (int i = 0; i < SETTLE; i++) {
+      mixer.step();
+    }
+  }
+
+  /** Checks every frame of the last burst is left, right. */
+  private void assertLastBurst(float left, float right) {
+    for (int i = 0; i < BURST_FRAMES; i++) {
+      assertEquals("left " + i, left, sink.last[2 * i], 1e-4f);
+      assertEquals("right " + i, right, sink.last[2 * i + 1], 1e-4f);
+    }
+  }
+
+  @Test
+  public void sumsTheStreamsScaledByTheirGain() throws InterruptedException {
+    add(stream(SAMPLE_RATE, 0.25f, -0.125f));
+    StreamMixer.Input quiet = add(stream(SAMPLE_RATE, 0.5f, 0.5f));
+    quiet.setGain(0.5f);
+    settle();
+    mixer.step();
+    assertLastBurst(0.5f, 0.125f);
+  }
+
+  @Test
+  public void playsMonoOnEveryChannel() throws InterruptedException {
+    add(stream(SAMPLE_RATE, 0.25f));
+    settle();
+    mixer.step();
+    assertLastBurst(0.25f, 0.25f);
+  }
+
+  @Test
+  public void limitsTheSumToTheLimit() throws InterruptedException {
+    add(stream(SAMPLE_RATE, 0.75f, -0.75f));
+    add(stream(SAMPLE_RATE, 0.75f, -0.75f));
+    settle();
+    mixer.step();
+    assertLastBurst(StreamMixer.LIMIT, -StreamMixer.LIMIT);
+  }
+
+  @Test
+  public void dropsAStreamAtAnotherRate() throws InterruptedException {
+    JitterBuffer other = stream(44100, 0.5f, 0.5f);
+    add(stream(SAMPLE_RATE, 0.25f, 0.25f));
+    add(other);
+    int before = other.ring().available();
+    settle();
+    mixer.step();
+    assertLastBurst(0.25f, 0.25f);
+    // Taken out of its buffer all the same, so it doesn't fall behind
+    assertTrue(other.ring().available() < before);
+  }
+
+  @Test
+  public void removedStreamIsNoLongerMixed() throws InterruptedException {
+    add(stream(SAMPLE_RATE, 0.25f, 0.25f));
+    StreamMixer.Input removed = add(stream(SAMPLE_RATE, 0.5f, 0.5f));
+    settle();
+    mixer.remove(removed);
+    mixer.step();
+    assertLastBurst(0.25f, 0.25f);
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2014 kaytat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kaytat.simpleprotocolplayer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import org.junit.Test;
+
+public class WavHeaderDetectorTest {
+  private static final byte[] AUDIO = {1, 2, 3, 4, 5, 6, 7, 8};
+
+  private final ByteArrayOutputStream passed = new ByteArrayOutputStream();
+  private StreamFormat format;
+  private final WavHeaderDetector detector =
+      new WavHeaderDetector(
+          passed::write,
+          new PcmSink() {
+            @Override
+            public void offer(ByteBuffer pcm) {}
+
+            @Override
+            public void formatChanged(StreamFormat f) {
+              format = f;
+            }
+          });
+
+  /** A header with a fmt chunk of fmtSize bytes and a LIST chunk before the data, then AUDIO. */
+  private static byte[] wav(int tag, int channels, int rate, int bits, int fmtSize, int subTag) {
+    ByteBuffer b = ByteBuffer.allocate(256).order(ByteOrder.LITTLE_ENDIAN);
+    b.put("RIFF".getBytes()).putInt(-1).put("WAVE".getBytes());
+    b.put("fmt ".getBytes()).putInt(fmtSize);
+    int fmt = b.position();
+    b.putShort((short) tag).putShort((short) channels).putInt(rate);
+    b.putInt(rate * channels * bits / 8).putShort((short) (channels * bits / 8));
+    b.putShort((short) bits);
+    if (fmtSize >= 40) {
+      b.putShort((short) 22).putShort((short) bits).putInt(3).putShort((short) subTag);
+    }
+    b.position(fmt + fmtSize);
+    // An odd sized chunk, padded to an even length
+    b.put("LIST".getBytes()).putInt(3).put(new byte[4]);
+    b.put("data".getBytes()).putInt(-1).put(AUDIO);
+    return Arrays.copyOf(b.array(), b.position());
+  }
+
+  private void write(byte[] data, int chunk) throws Exception {
+    for (int i = 0; i < data.length; i += chunk) {
+      detector.write(data, i, Math.min(chunk, data.length - i));
+    }
+  }
+
+  @Test
+  public void stripsAPcmHeader() throws Exception {
+    write(wav(1, 2, 48000, 16, 16, 0), 1000);
+    assertEquals(new StreamFormat(48000, 2, PcmFormat.S16), format);
+    assertArrayEquals(AUDIO, passed.toByteArray());
+    assertFalse(detector.probing());
+  }
+
+  @Test
+  public void readsAnExtensibleHeaderSplitAcrossReads() throws Exception {
+    write(wav(0xfffe, 2, 96000, 24, 40, 1), 3);
+    assertEquals(new StreamFormat(96000, 2, PcmFormat.S24), format);
+    assertArrayEquals(AUDIO, passed.toByteArray());
+
+    detector.reset();
+    passed.reset();
+    write(wav(0xfffe, 1, 44100, 32, 40, 3), 3);
+    assertEquals(new StreamFormat(44100, 1, PcmFormat.FLOAT), format);
+    assertArrayEquals(AUDIO, passed.toByteArray());
+  }
+
+  @Test
+  public void passesAnUnsupportedFormatThroughWhole() throws Exception {
+    for (byte[] wav : new byte[][] {wav(1, 2, 8000, 8, 16, 0), wav(6, 1, 8000, 8, 16, 0)}) {
+      detector.reset();
+      passed.reset();
+      write(wav, 5);
+      assertNull(format);
+      assertArrayEquals(wav, passed.toByteArray());
+    }
+  }
+
+  @Test
+  public void passesRawPcmThroughAtOnce() throws Exception {
+    detector.write(AUDIO, 0, AUDIO.length);
+    assertFalse(detector.probing());
+    assertNull(format);
+    assertArrayEquals(AUDIO, passed.toByteArray());
+
+    detector.write(AUDIO, 2, 3);
+    assertEquals(AUDIO.length + 3, passed.size());
+  }
+
+  @Test
+  public void holdsBackAPartialHeader() throws Exception {
+    byte[] wav = wav(1, 2, 48000, 16, 16, 0);
+    detector.write(wav, 0, 20);
+    assertTrue(detector.probing());
+    assertEquals(0, passed.size());
+  }
+}